@@ -25,10 +25,11 @@ import java.awt.datatransfer.Transferable;
 import java.awt.event.*;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import javax.swing.border.Border;
 import javax.swing.event.ChangeEvent;
@@ -40,6 +41,7 @@ import javax.swing.text.*;
 import editor.FileHandler.*;
 import editor.FileHandler.ImportInfo.ActivityListener;
 import papafile.*;
+import papafile.PapaFileSnapshot.TextureSnapshot;
 import papafile.PapaTexture.ImmutableTextureSettings;
 
 public class BatchConvert extends JDialog  {
@@ -258,7 +260,7 @@ public class BatchConvert extends JDialog  {
 		private FileNameExtensionFilter fileExtensionFilter;
 		private boolean papaInput, recursive, writeLinked, overwrite, ignoreHierarchy;
 		private AtomicInteger processedFiles = new AtomicInteger();
-		private float totalFiles;
+		private AtomicInteger totalFiles = new AtomicInteger(); // set on the reading threads, the display follows later
 		
 		public FileWorker(File inputDirectory, File outputDirectory, ImportInterface importInterface, FileNameExtensionFilter fileExtensionFilter, ImmutableTextureSettings settings,
 							boolean recursive, boolean writeLinked, boolean overwrite, boolean ignoreHierarchy) {
@@ -292,23 +294,24 @@ public class BatchConvert extends JDialog  {
 			info.setActivityListener(new ActivityListener() {
 				
 				@Override
-				public void onFoundAcceptableFile(File f, int currentTotal) {
-					SwingUtilities.invokeLater(() -> {
-						progressSection.setTotal(currentTotal);
-						progressSection.setProcessed(0);
-					});
+				public void onFoundAcceptableFile(File f, int currentTotal) { // files are converted while the walk goes on
+					totalFiles.accumulateAndGet(currentTotal, Math::max);
+					SwingUtilities.invokeLater(() -> progressSection.setTotal(currentTotal));
 				}
 				@Override
-				public void onGotTotalFiles(int totalFiles) {
+				public void onGotTotalFiles(int total) {
+					totalFiles.set(total);
 					SwingUtilities.invokeLater(() -> {
-						FileWorker.this.totalFiles = totalFiles;
-						progressSection.setTotal(totalFiles);
+						progressSection.setTotal(total);
 						progressSection.setStatus(null);
 					});
 				}
 				@Override
 				public void onEndProcessFile(File f, String threadName, boolean success) {
-					setProgress((int) ((float)processedFiles.getAndAdd(1) / totalFiles * 100));
+					int processed = processedFiles.incrementAndGet();
+					int total = totalFiles.get();
+					if(total != 0)
+						setProgress(Math.min(100, Math.max(0, processed * 100 / total)));
 				}
 				@Override
 				public void onRejectFile(File f, String reason) {
@@ -364,21 +367,24 @@ public class BatchConvert extends JDialog  {
 			File f = p.getFile();
 			File targetLocation = getFileRelative(inputString, outputString, f);
 			boolean hasMadeDir = false;
-			String rejectMessage ="";
 			if(papaInput) {
 				if(p.getNumTextures()==0) {
 					rejectFile(f, "File contains no textures");
 					return;
 				}
-				for(int i = 0;i<p.getNumTextures();i++) {
-					PapaTexture tex = p.getTexture(0);
+				// the textures are exported in parallel from a snapshot while this thread moves on to the next file
+				PapaFileSnapshot snapshot = p.snapshot();
+				StringBuffer rejectMessage = new StringBuffer();
+				ArrayList<CompletableFuture<Void>> exports = new ArrayList<CompletableFuture<Void>>();
+				for(int i = 0;i<snapshot.getNumTextures();i++) {
+					TextureSnapshot tex = snapshot.getTexture(i);
 					if(tex.isLinked()) {
 						if( ! writeLinked) {
-							rejectMessage+="Ignoring linked texture "+tex.getName()+"; ";
+							rejectMessage.append("Ignoring linked texture "+tex.getName()+"; ");
 							continue;
 						}
-						if( ! tex.linkValid()) {
-							rejectMessage+="Linked texture "+tex.getName()+" not found; ";
+						if(tex.getLinkedTexture() == null) {
+							rejectMessage.append("Linked texture "+tex.getName()+" not found; ");
 							continue;
 						}
 						tex = tex.getLinkedTexture();
@@ -386,7 +392,7 @@ public class BatchConvert extends JDialog  {
 					File targetLocationImage = new File(targetLocation.getParent()+File.separator 
 							+replaceExtension(extractName(tex.getName()),fileExtensionFilter.getExtensions()[0]));
 					if(targetLocationImage.exists() && ! overwrite) {
-						rejectMessage+="File"+targetLocationImage+" already exists; ";
+						rejectMessage.append("File"+targetLocationImage+" already exists; ");
 						continue;
 					}
 					
@@ -397,12 +403,17 @@ public class BatchConvert extends JDialog  {
 						}
 						hasMadeDir = true;
 					}
-					try {
-						FileHandler.exportImage(tex, targetLocationImage);
-					} catch (IOException e) {
-						rejectMessage+=e.getMessage()+"; ";
-					}
+					exports.add(FileHandler.exportImageAsync(tex, targetLocationImage, (IOException e) -> {
+						if(e != null)
+							rejectMessage.append(e.getMessage()+"; ");
+					}));
 				}
+				CompletableFuture.allOf(exports.toArray(new CompletableFuture<?>[exports.size()])).thenRun(() -> {
+					if(rejectMessage.length() == 0)
+						acceptFile(f);
+					else
+						rejectFile(f, rejectMessage.substring(0,rejectMessage.length() - 2));
+				});
 			} else {
 				if(!ignoreHierarchy && !makeDirectory(targetLocation.getParentFile())) {
 					rejectFile(f, "Could not create directory "+targetLocation.getParentFile());
@@ -413,18 +424,13 @@ public class BatchConvert extends JDialog  {
 					rejectFile(f, "File"+targetLocationTexture+" already exists; ");
 					return;
 				}
-				try {
-					FileHandler.writeFile(p, targetLocationTexture);
-				} catch (IOException e) {
-					rejectFile(f, e.getMessage());
-					return;
-				}
+				FileHandler.writeFileAsync(p, targetLocationTexture, (IOException e) -> {
+					if(e == null)
+						acceptFile(f);
+					else
+						rejectFile(f, e.getMessage());
+				});
 			}
-			if(rejectMessage.equals(""))
-				acceptFile(f);
-			else
-				rejectFile(f, rejectMessage.substring(0,rejectMessage.length() - 2));
-				
 		}
 		
 		private String extractName(String in) {
@@ -605,7 +611,7 @@ public class BatchConvert extends JDialog  {
 			
 			
 			formats = new JComboBox<String>();
-			for(String s : ImageIO.getWriterFileSuffixes())
+			for(String s : FileHandler.getImageWriterSuffixes())
 				formats.addItem(s);
 			layout.putConstraint(SpringLayout.NORTH, formats, 5, SpringLayout.SOUTH, output);
 			layout.putConstraint(SpringLayout.WEST, formats, 25, SpringLayout.EAST, toImage);
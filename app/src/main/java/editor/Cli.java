@@ -0,0 +1,660 @@
+/*
+ *  This file is part of PTexEdit 
+ * 
+ *  Texture editor for Planetary Annihilation's papa files.
+ *  Copyright (C) 2020 Marcus Der <marcusder@hotmail.com>
+ * 
+ *  PTexEdit is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  PTexEdit is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU General Public License
+ *  along with PTexEdit.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package editor;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+import editor.FileHandler.ImportInfo;
+import editor.FileHandler.ImportInfo.ActivityListener;
+import editor.FileHandler.ImportInterface;
+import io.github.memo33.jsquish.Squish.CompressionMethod;
+import papafile.*;
+import papafile.PapaTexture.TextureSettings;
+
+/**
+ * Runs conversions from the command line without a display. No window is ever created, so this works on a headless
+ * machine. At the end a JSON report is written with the outcome and timing of every file. The exit code is 0 if every
+ * file succeeded, 1 if any failed and 2 for invalid arguments.<br>
+ * Run it with <code>java -cp &lt;classpath&gt; editor.Cli &lt;command&gt; ...</code>.
+ */
+public class Cli {
+	
+	private static final String USAGE = String.join(System.lineSeparator(),
+			"Usage: editor.Cli <command> [options]",
+			"",
+			"Commands:",
+			"  convert <input> <output>   Convert a file or folder. Images become papa files, papa files become images.",
+			"  export <papa> <image>      Export a texture of a papa file to an image.",
+			"  probe <file>...            Describe papa files, images and the files in folders.",
+			"  dedup <folder>             Find textures stored in more than one papa file below the folder.",
+			"",
+			"Options:",
+			"  --to <extension>           Output type of convert: papa (default) or an image extension such as png.",
+			"  --threads <n>              Number of decoding threads, 0 for one per processor.",
+			"  --in-flight <n>            Number of files in flight at once, 0 for automatic.",
+			"  --report <file>            Where to write the JSON report, - for standard output (default).",
+			"  --media <folder>           The Planetary Annihilation media folder, needed for linked textures.",
+			"  --overwrite                Replace existing output files.",
+			"  --no-recursive             Only convert the top level of the input folder.",
+			"  --flat                     Write all outputs into the output folder, ignoring the input hierarchy.",
+			"  --linked                   Also export linked textures of papa files.",
+			"  --texture <index>          The texture to export, 0 by default.",
+			"  --compact                  Compact papa files before writing them.",
+			"  --signature <text>         Signature of written papa files.",
+			"  --allow-empty              Accept papa files without textures.",
+			"  --suppress-warnings        Do not fail files which build with warnings.",
+			"  --deflate <level>          PNG deflate level from 0 to 9, or -1 for the default.",
+			"  --parallel-deflate         Deflate PNG output on several threads.",
+			"  --pixels                   Let dedup compare decoded pixels instead of the encoded data.",
+			"  --link                     Let dedup replace the copies with links to one file. Needs --media.",
+			"",
+			"Texture options:",
+			"  --format <format>          DXT1, DXT5, R8G8B8A8, R8G8B8X8, B8G8R8A8, R8, auto, dxt-auto or auto-lossless.",
+			"  --dxt-method <method>      cluster-fit, range-fit or iterative-cluster-fit.",
+			"  --no-mipmaps               Do not generate mipmaps.",
+			"  --mipmap-filter <filter>   nearest, bilinear or bicubic.",
+			"  --srgb                     Mark every texture as sRGB.",
+			"  --srgb-names <regex>       Mark textures whose names match as sRGB.",
+			"  --no-resize                Do not resize images to powers of two.",
+			"  --resize-filter <filter>   nearest, bilinear or bicubic.",
+			"  --resize-mode <mode>       nearest, up or down.");
+	
+	private final PrintStream stdout = System.out;
+	private final TextureSettings settings = TextureSettings.defaultSettings();
+	private final List<String> operands = new ArrayList<String>();
+	private final Map<String, FileResult> results = new ConcurrentHashMap<String, FileResult>();
+	private String command;
+	private String target = "papa";
+	private String reportLocation = "-";
+	private String signature = "";
+	private boolean overwrite, recursive = true, flat, linked, compact, comparePixels, linkDuplicates;
+	private int textureIndex = 0;
+	private File outputRoot;
+	private String inputRoot;
+	
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		Cli cli = new Cli();
+		System.setOut(System.err); // the libraries log to standard output, which is kept free for the report
+		int code;
+		try {
+			cli.parse(args);
+			code = cli.run();
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			code = 2;
+		} catch (IOException | InterruptedException e) {
+			System.err.println(e);
+			code = 1;
+		}
+		System.exit(code);
+	}
+	
+	private void parse(String[] args) {
+		if(args.length == 0 || args[0].equals("--help") || args[0].equals("-h")) {
+			stdout.println(USAGE);
+			System.exit(0);
+		}
+		command = args[0];
+		for(int i = 1;i<args.length;i++) {
+			String arg = args[i];
+			if(!arg.startsWith("--")) {
+				operands.add(arg);
+				continue;
+			}
+			switch(arg) {
+				case "--overwrite":			overwrite = true; break;
+				case "--no-recursive":		recursive = false; break;
+				case "--flat":				flat = true; break;
+				case "--linked":			linked = true; break;
+				case "--compact":			compact = true; break;
+				case "--pixels":			comparePixels = true; break;
+				case "--link":				linkDuplicates = true; break;
+				case "--allow-empty":		FileHandler.setAllowEmptyFiles(true); break;
+				case "--suppress-warnings":	FileHandler.setSuppressWarnings(true); break;
+				case "--parallel-deflate":	FileHandler.setParallelDeflate(true); break;
+				case "--no-mipmaps":		settings.setGenerateMipmaps(false); break;
+				case "--srgb":				settings.setSRGB(true); break;
+				case "--no-resize":			settings.setResize(false); break;
+				default:
+					if(i + 1 == args.length)
+						throw new IllegalArgumentException("Unknown option or missing value: "+arg);
+					if(!parseValue(arg, args[++i]))
+						throw new IllegalArgumentException("Unknown option "+arg);
+			}
+		}
+	}
+	
+	/**
+	 * Applies an option which takes a value, returns false if the option is unknown.
+	 */
+	private boolean parseValue(String option, String value) {
+		try {
+			switch(option) {
+				case "--to":				target = value.toLowerCase(); break;
+				case "--threads":			FileHandler.setMaxThreads(Integer.parseInt(value)); break;
+				case "--in-flight":			FileHandler.setMaxInFlight(Integer.parseInt(value)); break;
+				case "--report":			reportLocation = value; break;
+				case "--media":				PapaFile.setPADirectory(new File(value).getAbsoluteFile()); break;
+				case "--texture":			textureIndex = Integer.parseInt(value); break;
+				case "--signature":			signature = value; break;
+				case "--deflate":			FileHandler.setPNGDeflateLevel(Integer.parseInt(value)); break;
+				case "--format":			settings.setFormat(parseFormat(value)); break;
+				case "--dxt-method":		settings.setCompressionMethod(CompressionMethod.valueOf(value.toUpperCase().replace('-', '_'))); break;
+				case "--mipmap-filter":		settings.setMipmapResizeMethod(parseFilter(value)); break;
+				case "--srgb-names":		settings.setSRGBTexname(value); break;
+				case "--resize-filter":		settings.setResizeMethod(parseFilter(value)); break;
+				case "--resize-mode":		settings.setResizeMode(parseResizeMode(value)); break;
+				default:
+					return false;
+			}
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Invalid value for "+option+": "+value);
+		}
+		return true;
+	}
+	
+	private static String parseFormat(String value) {
+		switch(value.toLowerCase()) {
+			case "auto":			return TextureSettings.AUTO;
+			case "dxt-auto":		return TextureSettings.DXT_AUTO;
+			case "auto-lossless":	return TextureSettings.AUTO_LOSSLESS;
+		}
+		for(String format : new String[] {TextureSettings.DXT1, TextureSettings.DXT5, TextureSettings.R8G8B8A8, TextureSettings.R8G8B8X8,
+				TextureSettings.B8G8R8A8, TextureSettings.R8})
+			if(format.equalsIgnoreCase(value))
+				return format;
+		throw new IllegalArgumentException();
+	}
+	
+	private static int parseFilter(String value) {
+		switch(value.toLowerCase()) {
+			case "nearest":		return TextureSettings.RESIZE_TYPE_NEAREST_NEIGHBOUR;
+			case "bilinear":	return TextureSettings.RESIZE_TYPE_BILEANR;
+			case "bicubic":		return TextureSettings.RESIZE_TYPE_BICUIBIC;
+		}
+		throw new IllegalArgumentException();
+	}
+	
+	private static int parseResizeMode(String value) {
+		switch(value.toLowerCase()) {
+			case "nearest":	return TextureSettings.RESIZE_NEAREST;
+			case "up":		return TextureSettings.RESIZE_UP;
+			case "down":	return TextureSettings.RESIZE_DOWN;
+		}
+		throw new IllegalArgumentException();
+	}
+	
+	private int run() throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		switch(command) {
+			case "convert":
+				requireOperands(2);
+				convert(new File(operands.get(0)).getCanonicalFile(), new File(operands.get(1)).getAbsoluteFile());
+				break;
+			case "export":
+				requireOperands(2);
+				export(new File(operands.get(0)).getCanonicalFile(), new File(operands.get(1)).getAbsoluteFile());
+				break;
+			case "probe":
+				if(operands.isEmpty())
+					throw new IllegalArgumentException("probe needs at least one file");
+				for(String s : operands)
+					probe(new File(s).getCanonicalFile());
+				break;
+			case "dedup":
+				requireOperands(1);
+				dedup(new File(operands.get(0)).getCanonicalFile());
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown command "+command);
+		}
+		long elapsed = System.nanoTime() - start;
+		
+		int failed = 0;
+		for(FileResult r : results.values())
+			if(!r.ok)
+				failed++;
+		writeReport(elapsed, failed);
+		return failed != 0 || results.isEmpty() ? 1 : 0;
+	}
+	
+	private void requireOperands(int count) {
+		if(operands.size() != count)
+			throw new IllegalArgumentException(command+" needs "+count+" files, got "+operands.size());
+	}
+	
+	private void convert(File input, File output) throws IOException, InterruptedException {
+		boolean toPapa = target.equals("papa");
+		if(!toPapa && !Arrays.asList(FileHandler.getImageWriterSuffixes()).contains(target))
+			throw new IllegalArgumentException("Cannot write images of type "+target);
+		inputRoot = input.isDirectory() ? input.getPath() : input.getParent();
+		outputRoot = input.isDirectory() || output.isDirectory() ? output : null; // null when the output names a file
+		
+		ImportInterface importInterface = toPapa ? FileHandler.IMAGE_INTERFACE : FileHandler.PAPA_INTERFACE;
+		read(input, importInterface, (PapaFile p) -> {
+			if(toPapa)
+				writePapa(p, output);
+			else
+				writeImages(p, output);
+		});
+	}
+	
+	private void export(File input, File output) throws IOException {
+		FileResult result = result(input);
+		result.start(Thread.currentThread().getName());
+		try {
+			PapaFile p = new PapaFile(input.getPath());
+			if(textureIndex < 0 || textureIndex >= p.getNumTextures())
+				throw new IOException("File has no texture "+textureIndex);
+			PapaTexture tex = p.getTexture(textureIndex);
+			if(tex.isLinked()) {
+				if(!tex.linkValid())
+					throw new IOException("Linked texture "+tex.getName()+" not found");
+				tex = tex.getLinkedTexture();
+			}
+			if(output.exists() && !overwrite)
+				throw new IOException("File "+output+" already exists");
+			FileHandler.exportImage(tex, output);
+			result.succeed(output);
+		} catch (IOException | RuntimeException e) {
+			result.fail(e.getMessage());
+		}
+	}
+	
+	private void probe(File input) throws IOException, InterruptedException {
+		FileHandler.setAllowEmptyFiles(true); // a papa file without textures is still worth describing
+		FileConsumer describe = (PapaFile p) -> result(p.getFile()).succeed(describe(p));
+		if(input.isDirectory()) { // a folder is probed for both kinds of file
+			read(input, FileHandler.PAPA_INTERFACE, describe);
+			List<File> images;
+			try (Stream<Path> paths = Files.walk(input.toPath(), recursive ? Integer.MAX_VALUE : 1)) {
+				images = paths.map(Path::toFile).filter((File f) -> f.isFile() && FileHandler.IMAGE_INTERFACE.filter(f))
+						.collect(Collectors.toList());
+			}
+			for(File f : images)
+				probeImage(f);
+		} else if(FileHandler.isPapa(input))
+			read(input, FileHandler.PAPA_INTERFACE, describe);
+		else
+			probeImage(input);
+	}
+	
+	/**
+	 * Describes an image from its header alone, an image is never decoded or converted by a probe.
+	 */
+	private void probeImage(File input) {
+		FileResult result = result(input);
+		result.start(Thread.currentThread().getName());
+		try {
+			result.succeed(input.getName().toLowerCase().endsWith(".dds") ? describeDDS(input) : describeImage(input));
+		} catch (IOException | RuntimeException e) {
+			result.fail(e.getMessage());
+		}
+	}
+	
+	private void dedup(File root) {
+		if(!root.isDirectory())
+			throw new IllegalArgumentException(root+" is not a folder");
+		FileResult result = result(root);
+		result.start(Thread.currentThread().getName());
+		ExecutorService pool = Executors.newFixedThreadPool(FileHandler.getDecodeThreads());
+		try {
+			TextureDeduplicator.Report report = TextureDeduplicator.deduplicate(root, comparePixels, linkDuplicates, pool);
+			result.succeed(describe(report));
+			for(String problem : report.getProblems())
+				result.fail(problem);
+		} catch (IOException | RuntimeException e) {
+			result.fail(e.getMessage());
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	private void read(File input, ImportInterface importInterface, FileConsumer consumer) throws InterruptedException {
+		ImportInfo info = new ImportInfo();
+		info.setTextureSettings(settings.immutable());
+		info.setSignature(signature);
+		info.setInternalMode(true);
+		info.setActivityListener(new ActivityListener() {
+			@Override
+			public void onStartProcessFile(File f, String threadName) {
+				result(f).start(threadName);
+			}
+			@Override
+			public void onRejectFile(File f, String reason) {
+				result(f).fail(reason);
+			}
+			@Override
+			public void onAcceptFile(PapaFile p) {
+				try {
+					consumer.accept(p);
+				} catch (IOException | RuntimeException e) {
+					result(p.getFile()).fail(e.getMessage());
+				}
+			}
+		});
+		FileHandler.readFiles(input, importInterface, info, recursive, true);
+	}
+	
+	private void writePapa(PapaFile p, File output) throws IOException {
+		File f = p.getFile();
+		File location = outputRoot == null ? output : replaceExtension(relativeOutput(f), "papa");
+		if(location.exists() && !overwrite)
+			throw new IOException("File "+location+" already exists");
+		makeParent(location);
+		if(compact)
+			PapaFileCompactor.compact(p);
+		FileHandler.writeFileAsync(p, location, (IOException e) -> {
+			if(e == null)
+				result(f).succeed(location);
+			else
+				result(f).fail(e.getMessage());
+		});
+	}
+	
+	private void writeImages(PapaFile p, File output) throws IOException {
+		File f = p.getFile();
+		FileResult result = result(f);
+		List<File> written = new ArrayList<File>();
+		for(int i = 0;i<p.getNumTextures();i++) {
+			PapaTexture tex = p.getTexture(i);
+			if(tex.isLinked()) {
+				if(!linked)
+					continue;
+				if(!tex.linkValid())
+					throw new IOException("Linked texture "+tex.getName()+" not found");
+				tex = tex.getLinkedTexture();
+			}
+			File location = outputRoot == null ? output : new File(relativeOutput(f).getParentFile(), replaceExtension(new File(tex.getName()), target).getName());
+			if(location.exists() && !overwrite)
+				throw new IOException("File "+location+" already exists");
+			makeParent(location);
+			FileHandler.exportImage(tex, location);
+			written.add(location);
+		}
+		if(written.isEmpty())
+			throw new IOException("File contains no textures to export");
+		result.succeed(written.toArray(new File[written.size()]));
+	}
+	
+	private File relativeOutput(File input) {
+		if(flat)
+			return new File(outputRoot, input.getName());
+		String path = input.getAbsolutePath();
+		return new File(outputRoot, path.substring(Math.min(inputRoot.length(), path.length())));
+	}
+	
+	private static File replaceExtension(File f, String extension) {
+		String name = f.getName();
+		int index = name.lastIndexOf('.');
+		return new File(f.getParentFile(), (index == -1 ? name : name.substring(0, index))+"."+extension);
+	}
+	
+	private static void makeParent(File f) throws IOException {
+		File parent = f.getParentFile();
+		if(parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+			throw new IOException("Could not create directory "+parent);
+	}
+	
+	private static String describe(PapaFile p) {
+		StringBuilder sb = new StringBuilder("{");
+		field(sb, "signature", p.getSignature()).append(',');
+		field(sb, "textures", p.getNumTextures()).append(',');
+		field(sb, "vertexBuffers", p.getNumVBuffers()).append(',');
+		field(sb, "indexBuffers", p.getNumIBuffers()).append(',');
+		field(sb, "materials", p.getNumMaterials()).append(',');
+		field(sb, "meshes", p.getNumMeshes()).append(',');
+		field(sb, "skeletons", p.getNumSkeletons()).append(',');
+		field(sb, "models", p.getNumModels()).append(',');
+		field(sb, "animations", p.getNumAnimations()).append(",\"textureList\":[");
+		for(int i = 0;i<p.getNumTextures();i++) {
+			PapaTexture t = p.getTexture(i);
+			sb.append(i == 0 ? "{" : ",{");
+			field(sb, "name", t.getName()).append(',');
+			if(t.isLinked()) {
+				field(sb, "linked", true).append(',');
+				field(sb, "linkValid", t.linkValid()).append('}');
+				continue;
+			}
+			field(sb, "format", t.getFormat()).append(',');
+			field(sb, "width", t.getWidth()).append(',');
+			field(sb, "height", t.getHeight()).append(',');
+			field(sb, "mips", t.getMips()).append(',');
+			field(sb, "srgb", t.getSRGB()).append('}');
+		}
+		return sb.append("]}").toString();
+	}
+	
+	private static String describe(TextureDeduplicator.Report report) {
+		StringBuilder sb = new StringBuilder("{");
+		field(sb, "filesScanned", report.getFilesScanned()).append(',');
+		field(sb, "texturesScanned", report.getTexturesScanned()).append(',');
+		field(sb, "bytesDuplicated", report.getBytesDuplicated()).append(',');
+		field(sb, "filesRewritten", report.getFilesRewritten()).append(',');
+		field(sb, "texturesLinked", report.getTexturesLinked()).append(',');
+		field(sb, "bytesSaved", report.getBytesSaved()).append(",\"groups\":[");
+		List<TextureDeduplicator.Group> groups = report.getGroups();
+		for(int i = 0;i<groups.size();i++) {
+			TextureDeduplicator.Group g = groups.get(i);
+			sb.append(i == 0 ? "{" : ",{");
+			field(sb, "key", g.getKey()).append(',');
+			field(sb, "canonical", g.getCanonical() == null ? null : g.getCanonical().getFile().getPath()).append(",\"members\":[");
+			List<TextureDeduplicator.Entry> members = g.getMembers();
+			for(int j = 0;j<members.size();j++) {
+				TextureDeduplicator.Entry e = members.get(j);
+				sb.append(j == 0 ? "{" : ",{");
+				field(sb, "file", e.getFile().getPath()).append(',');
+				field(sb, "texture", e.getTextureIndex()).append(',');
+				field(sb, "name", e.getTextureName()).append(',');
+				field(sb, "size", e.getSize()).append(',');
+				field(sb, "standalone", e.isStandalone()).append(',');
+				field(sb, "linked", e.isLinked()).append('}');
+			}
+			sb.append("]}");
+		}
+		return sb.append("]}").toString();
+	}
+	
+	private static String describeDDS(File f) throws IOException {
+		DDSFile.Header h;
+		try (InputStream in = new BufferedInputStream(new FileInputStream(f))) {
+			h = DDSFile.readHeader(in);
+		}
+		StringBuilder sb = new StringBuilder("{");
+		field(sb, "type", "dds").append(',');
+		field(sb, "width", h.getWidth()).append(',');
+		field(sb, "height", h.getHeight()).append(',');
+		field(sb, "format", h.getFormat()).append(',');
+		field(sb, "mips", h.getNumImages() - 1).append(',');
+		field(sb, "srgb", h.getSRGB());
+		return sb.append('}').toString();
+	}
+	
+	private static String describeImage(File f) throws IOException {
+		try (ImageInputStream in = ImageIO.createImageInputStream(f)) {
+			Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+			if(readers == null || !readers.hasNext())
+				throw new IOException("No reader found for "+f.getName());
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				ImageTypeSpecifier type = reader.getRawImageType(0);
+				if(type == null)
+					type = reader.getImageTypes(0).next();
+				ColorModel model = type.getColorModel();
+				StringBuilder sb = new StringBuilder("{");
+				field(sb, "type", reader.getFormatName().toLowerCase()).append(',');
+				field(sb, "width", reader.getWidth(0)).append(',');
+				field(sb, "height", reader.getHeight(0)).append(',');
+				field(sb, "layout", layout(model)).append(',');
+				field(sb, "bitsPerPixel", model.getPixelSize()).append(',');
+				field(sb, "alpha", model.hasAlpha());
+				return sb.append('}').toString();
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+	
+	private static String layout(ColorModel model) {
+		String colours = model instanceof IndexColorModel ? "indexed"
+						: model.getColorSpace().getType() == ColorSpace.TYPE_GRAY ? "grey"
+						: model.getColorSpace().getType() == ColorSpace.TYPE_RGB ? "rgb" : "other";
+		return model.hasAlpha() && !(model instanceof IndexColorModel) ? colours+"+alpha" : colours;
+	}
+	
+	private FileResult result(File f) {
+		return results.computeIfAbsent(f.getAbsolutePath(), (String path) -> new FileResult(path));
+	}
+	
+	private void writeReport(long elapsed, int failed) throws IOException {
+		List<FileResult> sorted = new ArrayList<FileResult>(results.values());
+		sorted.sort((FileResult a, FileResult b) -> a.input.compareTo(b.input));
+		
+		StringBuilder sb = new StringBuilder("{\n  ");
+		field(sb, "command", command).append(",\n  \"arguments\":[");
+		for(int i = 0;i<operands.size();i++)
+			quote(sb.append(i == 0 ? "" : ","), operands.get(i));
+		sb.append("],\n  ");
+		field(sb, "decodeThreads", FileHandler.getDecodeThreads()).append(",\n  ");
+		field(sb, "ioThreads", FileHandler.getIOThreads()).append(",\n  ");
+		field(sb, "succeeded", sorted.size() - failed).append(",\n  ");
+		field(sb, "failed", failed).append(",\n  ");
+		field(sb, "elapsedMs", elapsed / 1e6).append(",\n  \"files\":[");
+		for(int i = 0;i<sorted.size();i++)
+			sorted.get(i).toJson(sb.append(i == 0 ? "\n    " : ",\n    "));
+		sb.append(sorted.isEmpty() ? "]\n}\n" : "\n  ]\n}\n");
+		
+		if(reportLocation.equals("-")) {
+			stdout.print(sb);
+			stdout.flush();
+		} else {
+			try (Writer w = new OutputStreamWriter(new FileOutputStream(reportLocation), StandardCharsets.UTF_8)) {
+				w.write(sb.toString());
+			}
+		}
+	}
+	
+	private static StringBuilder field(StringBuilder sb, String name, Object value) {
+		quote(sb, name).append(':');
+		if(value == null)
+			return sb.append("null");
+		if(value instanceof Number || value instanceof Boolean)
+			return sb.append(value);
+		return quote(sb, value.toString());
+	}
+	
+	private static StringBuilder quote(StringBuilder sb, String s) {
+		sb.append('"');
+		for(int i = 0;i<s.length();i++) {
+			char c = s.charAt(i);
+			switch(c) {
+				case '"':	sb.append("\\\""); break;
+				case '\\':	sb.append("\\\\"); break;
+				case '\n':	sb.append("\\n"); break;
+				case '\r':	sb.append("\\r"); break;
+				case '\t':	sb.append("\\t"); break;
+				default:
+					if(c < 0x20)
+						sb.append(String.format("\\u%04x", (int) c));
+					else
+						sb.append(c);
+			}
+		}
+		return sb.append('"');
+	}
+	
+	private interface FileConsumer {
+		void accept(PapaFile p) throws IOException;
+	}
+	
+	private static class FileResult {
+		private final String input;
+		private boolean ok;
+		private String message;
+		private String thread;
+		private String details; // already in JSON
+		private File[] outputs = new File[0];
+		private long start = System.nanoTime(), end;
+		
+		private FileResult(String input) {
+			this.input = input;
+		}
+		
+		private synchronized void start(String threadName) {
+			thread = threadName;
+			start = System.nanoTime();
+		}
+		
+		private synchronized void succeed(File... outputs) {
+			this.outputs = outputs;
+			if(end == 0) // a failure stays a failure
+				ok = true;
+			end = System.nanoTime();
+		}
+		
+		private synchronized void succeed(String details) {
+			this.details = details;
+			succeed();
+		}
+		
+		private synchronized void fail(String reason) {
+			ok = false;
+			message = message == null ? reason : message+"; "+reason;
+			end = System.nanoTime();
+		}
+		
+		private synchronized void toJson(StringBuilder sb) {
+			sb.append('{');
+			field(sb, "input", input).append(',');
+			field(sb, "status", ok ? "ok" : "failed").append(',');
+			if(message != null)
+				field(sb, "message", message).append(',');
+			if(thread != null)
+				field(sb, "thread", thread).append(',');
+			sb.append("\"outputs\":[");
+			for(int i = 0;i<outputs.length;i++)
+				quote(sb.append(i == 0 ? "" : ","), outputs[i].getPath());
+			sb.append("],");
+			if(details != null)
+				sb.append("\"details\":").append(details).append(',');
+			field(sb, "elapsedMs", ((end == 0 ? System.nanoTime() : end) - start) / 1e6).append('}');
+		}
+	}
+}
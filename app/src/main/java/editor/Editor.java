@@ -25,6 +25,7 @@ import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.text.AttributeSet;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.PlainDocument;
+import javax.swing.table.DefaultTableModel;
 import javax.swing.tree.*;
 import javax.swing.border.Border;
 import javax.swing.event.*;
@@ -56,6 +57,7 @@ import java.util.List;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.prefs.Preferences;
+import java.util.zip.Deflater;
 
 public class Editor extends JFrame {
 	
@@ -85,7 +87,8 @@ public class Editor extends JFrame {
 	private static final ImageIcon upArrowIcon = loadIconFromResources("upArrow.png");
 	private static final Properties prop = new Properties();
 	private static final Clipboard clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
-	//private static int maxThreads;
+	private static int maxThreads; // from the config, 0 = one per processor
+	private static int threadsOverride = -1; // from the command line
 	private JPanel contentPane;
 	
 	private PapaFile activeFile = null;
@@ -114,6 +117,8 @@ public class Editor extends JFrame {
 	private int loadCounter = 0;
 	
 	public static void main(String[] args) {
+		args = parseOptions(args);
+		String[] files = args;
 		applyPlatformChanges();
 		
 		SwingUtilities.invokeLater(new Runnable() {
@@ -121,6 +126,7 @@ public class Editor extends JFrame {
 				APPLICATION_WINDOW = new Editor();
 				
 				readAndApplyConfig();
+				applyThreadCount();
 				addShutdownHooks();
 				addUncaughtExceptionHandler();
 				
@@ -129,15 +135,15 @@ public class Editor extends JFrame {
 				APPLICATION_WINDOW.setTitle(APPLICATION_NAME);
 				APPLICATION_WINDOW.setVisible(true);
 				
-				if(args.length != 0) {
+				if(files.length != 0) {
 					APPLICATION_WINDOW.startOperation();
 					try {
-						File[] files = new File[args.length];
-						for(int i = 0;i<args.length;i++) {
-							files[i] = new File(args[i]).getCanonicalFile();
-							
+						File[] toOpen = new File[files.length];
+						for(int i = 0;i<files.length;i++) {
+							toOpen[i] = new File(files[i]).getCanonicalFile();
+						
 						}
-						APPLICATION_WINDOW.readAll(null, files);
+						APPLICATION_WINDOW.readAll(null, toOpen);
 					} catch (IOException e) {
 						showError("Failed to open file: "+e, "Error", new Object[] {"OK"}, "OK");
 					}
@@ -148,6 +154,28 @@ public class Editor extends JFrame {
 		});
 	}
 	
+	/**
+	 * Removes the options from the arguments, leaving the files to open.
+	 */
+	private static String[] parseOptions(String[] args) {
+		ArrayList<String> files = new ArrayList<String>();
+		for(int i = 0;i<args.length;i++) {
+			if(args[i].equals("--threads") && i + 1 < args.length) {
+				try {
+					threadsOverride = Math.max(0, Integer.parseInt(args[++i]));
+				} catch (NumberFormatException e) {
+					System.err.println("Invalid thread count "+args[i]);
+				}
+			} else
+				files.add(args[i]);
+		}
+		return files.toArray(new String[files.size()]);
+	}
+	
+	private static void applyThreadCount() {
+		FileHandler.setMaxThreads(threadsOverride >= 0 ? threadsOverride : maxThreads);
+	}
+	
 	private static BufferedImage loadImageFromResources(String name) {
 		URL imageURL = getResourceURL(name);
 		if (imageURL != null) {
@@ -205,8 +233,11 @@ public class Editor extends JFrame {
 		if(Boolean.parseBoolean(prop.getProperty("Application.Menu.Options.WriteToDefaultOutput", "false")))
 			e.menu.mOptionsWriteToOutput.doClick(0);
 		e.associationState = Integer.parseInt(prop.getProperty("Application.Menu.Options.Associate", "0"));
-		//e.maxThreads = Integer.valueOf(prop.getProperty("Application.Config.MaxThreads", "4"));
-		
+		maxThreads = Math.max(0, Integer.parseInt(prop.getProperty("Application.Config.MaxThreads", "0")));
+		FileHandler.setMaxInFlight(Math.max(0, Integer.parseInt(prop.getProperty("Application.Config.MaxInFlight", ""+FileHandler.getMaxInFlight()))));
+		FileHandler.setPNGDeflateLevel(getIntProperty("Application.Config.PNGDeflateLevel", FileHandler.getPNGDeflateLevel(), Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION));
+		FileHandler.setParallelDeflate(Boolean.parseBoolean(prop.getProperty("Application.Config.ParallelDeflate", ""+FileHandler.isParallelDeflate())));
+
 		e.defaultSignature = prop.getProperty("Application.Menu.Options.DefaultSignature","");
 		
 		TextureSettings t = new TextureSettings();
@@ -243,6 +274,19 @@ public class Editor extends JFrame {
 
 	}
 	
+	/**
+	 * Reads an integer setting, falling back to the default if it is malformed or out of range.
+	 */
+	private static int getIntProperty(String key, int def, int min, int max) {
+		try {
+			int value = Integer.parseInt(prop.getProperty(key, ""+def).trim());
+			if(value >= min && value <= max)
+				return value;
+		} catch (NumberFormatException e) {}
+		System.err.println("Invalid setting "+key+", using "+def);
+		return def;
+	}
+	
 	private static void addShutdownHooks() {
 		Runtime.getRuntime().addShutdownHook(onExit);
 	}
@@ -327,7 +371,10 @@ public class Editor extends JFrame {
 			prop.setProperty("Application.Menu.Options.AllowEmpty",				""+e.menu.mOptionsAllowEmpty.isSelected());
 			prop.setProperty("Application.Menu.Options.SuppressWarnings",		""+e.menu.mOptionsSuppressWarnings.isSelected());
 			prop.setProperty("Application.Menu.Options.WriteToDefaultOutput",	""+e.menu.mOptionsWriteToOutput.isSelected());
-			//prop.setProperty("Application.Config.MaxThreads", 	""+e.maxThreads);
+			prop.setProperty("Application.Config.MaxThreads",					""+maxThreads);
+			prop.setProperty("Application.Config.MaxInFlight",					""+FileHandler.getMaxInFlight());
+			prop.setProperty("Application.Config.PNGDeflateLevel",				""+FileHandler.getPNGDeflateLevel());
+			prop.setProperty("Application.Config.ParallelDeflate",				""+FileHandler.isParallelDeflate());
 			prop.setProperty("Application.Menu.Options.DefaultSignature",		""+e.defaultSignature);
 			prop.setProperty("Application.Menu.Options.Associate",				""+e.associationState);
 			
@@ -1367,6 +1414,7 @@ public class Editor extends JFrame {
 			mOptions.add(mOptionsAllowEmpty);
 			mOptionsAllowEmpty.addActionListener((ActionEvent e) -> {
 				ALLOW_EMPTY_FILES = mOptionsAllowEmpty.isSelected();
+				FileHandler.setAllowEmptyFiles(ALLOW_EMPTY_FILES);
 				if(!ALLOW_EMPTY_FILES)
 					configSelector.removeEmptyFiles();
 			});
@@ -1376,6 +1424,7 @@ public class Editor extends JFrame {
 			mOptions.add(mOptionsSuppressWarnings);
 			mOptionsSuppressWarnings.addActionListener((ActionEvent e) -> {
 				SUPPRESS_WARNINGS = mOptionsSuppressWarnings.isSelected();
+				FileHandler.setSuppressWarnings(SUPPRESS_WARNINGS);
 			});
 			mOptionsSuppressWarnings.setMnemonic('s');
 			
@@ -3810,6 +3859,24 @@ public class Editor extends JFrame {
 		
 	}
 	
+	/**
+	 * A table of the files which could not be read and why, for the import summary.
+	 */
+	static JComponent getErrorTable(File[] rejectedFiles, String[] reasons) {
+		JTable j = new JTable();
+		JScrollPane jsp = new JScrollPane(j, JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
+		DefaultTableModel model = (DefaultTableModel) j.getModel();
+		model.addColumn("File");
+		model.addColumn("Reason");
+		jsp.setPreferredSize(new Dimension(950,150));
+		j.getColumnModel().getColumn(0).setPreferredWidth(300);
+		j.getColumnModel().getColumn(1).setPreferredWidth(650);
+		for(int i =0;i<rejectedFiles.length;i++)
+			model.addRow(new Object[] {rejectedFiles[i].getName(),reasons[i]});
+		
+		return jsp;
+	}
+	
 	public static int showError(Object message, String title, Object[] options, Object Default)
 	{
 		exclamationSound();
@@ -0,0 +1,320 @@
+/*
+ *  This file is part of PTexEdit 
+ * 
+ *  Texture editor for Planetary Annihilation's papa files.
+ *  Copyright (C) 2020 Marcus Der <marcusder@hotmail.com>
+ * 
+ *  PTexEdit is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  PTexEdit is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU General Public License
+ *  along with PTexEdit.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package editor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes an 8 bit RGBA PNG incrementally, a few rows at a time, so that the image never has to be held in memory.<br>
+ * When given an executor the rows are cut into groups which are deflated in parallel. Each group is primed with the
+ * end of the previous one, so the output is a single standard zlib stream and compresses almost as well.
+ */
+public class PNGWriter {
+	// https://www.w3.org/TR/png/
+	
+	private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+	private static final int IDAT_SIZE = 1 << 16;
+	private static final int GROUP_SIZE = 1 << 18;
+	private static final int DICTIONARY_SIZE = 1 << 15;
+	
+	private final OutputStream out;
+	private final int width;
+	private final int height;
+	private final int level;
+	private final ExecutorService pool;
+	private final int maxPending;
+	
+	private final byte[] raw, previous;
+	private final byte[][] filtered = new byte[5][];
+	private final Adler32 adler = new Adler32();
+	private final ByteArrayOutputStream idat = new ByteArrayOutputStream(IDAT_SIZE + 1024);
+	private int rowsWritten = 0;
+	
+	private Deflater deflater;
+	private byte[] deflateBuffer;
+	
+	private ByteArrayOutputStream group;
+	private byte[] dictionary;
+	private ArrayDeque<Future<byte[]>> pending;
+	
+	/**
+	 * @param level The deflate level from 0 to 9, or -1 for the default.
+	 * @param pool The executor to deflate on, or null to deflate on the calling thread.
+	 * @param parallelism The number of groups which may be deflating at the same time.
+	 */
+	public PNGWriter(OutputStream out, int width, int height, int level, ExecutorService pool, int parallelism) throws IOException {
+		if(width <= 0 || height <= 0)
+			throw new IllegalArgumentException("Invalid image size "+width+" by "+height);
+		if(level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("Invalid deflate level "+level);
+		this.out = out;
+		this.width = width;
+		this.height = height;
+		this.level = level;
+		this.pool = pool;
+		this.maxPending = Math.max(parallelism, 1);
+		
+		raw = new byte[width * 4];
+		previous = new byte[width * 4];
+		for(int i = 0;i<filtered.length;i++) {
+			filtered[i] = new byte[width * 4 + 1];
+			filtered[i][0] = (byte) i;
+		}
+		
+		if(pool == null) {
+			deflater = new Deflater(level, true);
+			deflateBuffer = new byte[IDAT_SIZE];
+		} else {
+			group = new ByteArrayOutputStream(GROUP_SIZE + raw.length + 1);
+			pending = new ArrayDeque<Future<byte[]>>();
+		}
+		
+		out.write(SIGNATURE);
+		byte[] header = new byte[13];
+		putInt(header, 0, width);
+		putInt(header, 4, height);
+		header[8] = 8; // bit depth
+		header[9] = 6; // RGBA
+		writeChunk("IHDR", header, 0, header.length);
+		
+		idat.write(0x78); // zlib header, 32K window
+		idat.write(zlibLevelFlag());
+	}
+	
+	/**
+	 * Writes the next rows of the image from packed ARGB pixels.
+	 */
+	public void writeRows(int[] argb, int offset, int rows) throws IOException {
+		if(rowsWritten + rows > height)
+			throw new IllegalStateException("More rows written than the image height of "+height);
+		for(int r = 0;r<rows;r++) {
+			int index = offset + r * width;
+			for(int x = 0, j = 0;x<width;x++) {
+				int pixel = argb[index + x];
+				raw[j++] = (byte) (pixel>>>16);
+				raw[j++] = (byte) (pixel>>>8);
+				raw[j++] = (byte) pixel;
+				raw[j++] = (byte) (pixel>>>24);
+			}
+			byte[] row = filterRow();
+			adler.update(row);
+			if(pool == null)
+				deflate(row);
+			else {
+				group.write(row, 0, row.length);
+				if(group.size() >= GROUP_SIZE)
+					submitGroup(false);
+			}
+			System.arraycopy(raw, 0, previous, 0, raw.length);
+			rowsWritten++;
+		}
+	}
+	
+	/**
+	 * Completes the image. The underlying stream is flushed but not closed.
+	 */
+	public void finish() throws IOException {
+		if(rowsWritten != height)
+			throw new IllegalStateException("Only "+rowsWritten+" of "+height+" rows were written");
+		if(pool == null) {
+			deflater.finish();
+			while(!deflater.finished())
+				idat.write(deflateBuffer, 0, deflater.deflate(deflateBuffer));
+			deflater.end();
+		} else {
+			submitGroup(true);
+			while(!pending.isEmpty())
+				idat.write(takeGroup());
+		}
+		long checksum = adler.getValue();
+		idat.write((int) (checksum>>>24));
+		idat.write((int) (checksum>>>16));
+		idat.write((int) (checksum>>>8));
+		idat.write((int) checksum);
+		flushIDAT(true);
+		writeChunk("IEND", new byte[0], 0, 0);
+		out.flush();
+	}
+	
+	private void deflate(byte[] row) throws IOException {
+		deflater.setInput(row);
+		while(!deflater.needsInput())
+			idat.write(deflateBuffer, 0, deflater.deflate(deflateBuffer));
+		flushIDAT(false);
+	}
+	
+	private void submitGroup(boolean last) throws IOException {
+		byte[] data = group.toByteArray();
+		group.reset();
+		byte[] dict = dictionary;
+		pending.add(pool.submit(() -> deflateGroup(data, dict, level, last)));
+		dictionary = Arrays.copyOfRange(data, Math.max(0, data.length - DICTIONARY_SIZE), data.length);
+		while(pending.size() > maxPending) {
+			idat.write(takeGroup());
+			flushIDAT(false);
+		}
+	}
+	
+	private byte[] takeGroup() throws IOException {
+		try {
+			return pending.poll().get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while compressing image", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to compress image", e.getCause());
+		}
+	}
+	
+	private static byte[] deflateGroup(byte[] data, byte[] dictionary, int level, boolean last) {
+		Deflater d = new Deflater(level, true);
+		try {
+			if(dictionary != null && dictionary.length != 0)
+				d.setDictionary(dictionary);
+			d.setInput(data);
+			ByteArrayOutputStream result = new ByteArrayOutputStream(data.length / 2 + 64);
+			byte[] buf = new byte[IDAT_SIZE];
+			if(last) {
+				d.finish();
+				while(!d.finished())
+					result.write(buf, 0, d.deflate(buf));
+			} else { // a sync flush ends the group on a byte boundary without ending the stream
+				int n;
+				do {
+					n = d.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+					result.write(buf, 0, n);
+				} while(n == buf.length);
+			}
+			return result.toByteArray();
+		} finally {
+			d.end();
+		}
+	}
+	
+	private void flushIDAT(boolean all) throws IOException {
+		if(idat.size() < IDAT_SIZE && !all)
+			return;
+		byte[] data = idat.toByteArray();
+		idat.reset();
+		int offset = 0;
+		while(data.length - offset >= IDAT_SIZE) {
+			writeChunk("IDAT", data, offset, IDAT_SIZE);
+			offset += IDAT_SIZE;
+		}
+		if(all) {
+			if(offset < data.length)
+				writeChunk("IDAT", data, offset, data.length - offset);
+		} else
+			idat.write(data, offset, data.length - offset);
+	}
+	
+	/**
+	 * Applies every filter type to the current row and returns the one with the lowest sum of absolute differences, which is
+	 * the heuristic suggested by the specification. Without compression the filter is skipped.
+	 */
+	private byte[] filterRow() {
+		byte[] none = filtered[0];
+		System.arraycopy(raw, 0, none, 1, raw.length);
+		if(level == Deflater.NO_COMPRESSION)
+			return none;
+		
+		byte[] sub = filtered[1], up = filtered[2], average = filtered[3], paeth = filtered[4];
+		long sumNone = 0, sumSub = 0, sumUp = 0, sumAverage = 0, sumPaeth = 0;
+		for(int i = 0;i<raw.length;i++) {
+			int x = raw[i] & 0xff;
+			int a = i >= 4 ? raw[i - 4] & 0xff : 0;
+			int b = previous[i] & 0xff;
+			int c = i >= 4 ? previous[i - 4] & 0xff : 0;
+			
+			byte s = (byte) (x - a), u = (byte) (x - b), v = (byte) (x - ((a + b)>>>1)), p = (byte) (x - paethPredictor(a, b, c));
+			sub[i + 1] = s;
+			up[i + 1] = u;
+			average[i + 1] = v;
+			paeth[i + 1] = p;
+			sumNone += Math.abs((byte) x);
+			sumSub += Math.abs(s);
+			sumUp += Math.abs(u);
+			sumAverage += Math.abs(v);
+			sumPaeth += Math.abs(p);
+		}
+		
+		byte[] best = none;
+		long bestSum = sumNone;
+		if(sumSub < bestSum) { best = sub; bestSum = sumSub; }
+		if(sumUp < bestSum) { best = up; bestSum = sumUp; }
+		if(sumAverage < bestSum) { best = average; bestSum = sumAverage; }
+		if(sumPaeth < bestSum) { best = paeth; bestSum = sumPaeth; }
+		return best;
+	}
+	
+	private static int paethPredictor(int a, int b, int c) {
+		int p = a + b - c;
+		int pa = Math.abs(p - a);
+		int pb = Math.abs(p - b);
+		int pc = Math.abs(p - c);
+		if(pa <= pb && pa <= pc)
+			return a;
+		if(pb <= pc)
+			return b;
+		return c;
+	}
+	
+	private int zlibLevelFlag() {
+		if(level == Deflater.DEFAULT_COMPRESSION || level == 6)
+			return 0x9c;
+		if(level <= 1)
+			return 0x01;
+		if(level <= 5)
+			return 0x5e;
+		return 0xda;
+	}
+	
+	private void writeChunk(String type, byte[] data, int offset, int length) throws IOException {
+		byte[] header = new byte[8];
+		putInt(header, 0, length);
+		for(int i = 0;i<4;i++)
+			header[4 + i] = (byte) type.charAt(i);
+		CRC32 crc = new CRC32();
+		crc.update(header, 4, 4);
+		crc.update(data, offset, length);
+		byte[] trailer = new byte[4];
+		putInt(trailer, 0, (int) crc.getValue());
+		
+		out.write(header);
+		out.write(data, offset, length);
+		out.write(trailer);
+	}
+	
+	private static void putInt(byte[] buf, int offset, int value) {
+		buf[offset] = (byte) (value>>>24);
+		buf[offset + 1] = (byte) (value>>>16);
+		buf[offset + 2] = (byte) (value>>>8);
+		buf[offset + 3] = (byte) value;
+	}
+}
@@ -288,7 +288,7 @@ public class PapaOptions extends JDialog  {
 		
 		private boolean checkIsDXT() {
 			String value = (String) formatSelector.getSelectedItem();
-			return value.equals(TextureSettings.DXT1) || value.equals(TextureSettings.DXT5) || value.equals(TextureSettings.DXT_AUTO);
+			return value.equals(TextureSettings.DXT1) || value.equals(TextureSettings.DXT5) || value.equals(TextureSettings.DXT_AUTO) || value.equals(TextureSettings.AUTO);
 		}
 		
 		public GeneralSection(TextureSettings settings) {
@@ -299,7 +299,7 @@ public class PapaOptions extends JDialog  {
 			
 			final int leftOffset = 85;
 			
-			final String[] formats = new String[] {TextureSettings.DXT_AUTO, TextureSettings.DXT1,TextureSettings.DXT5,
+			final String[] formats = new String[] {TextureSettings.DXT_AUTO, TextureSettings.AUTO, TextureSettings.AUTO_LOSSLESS, TextureSettings.DXT1,TextureSettings.DXT5,
 					TextureSettings.R8G8B8A8,TextureSettings.R8G8B8X8,TextureSettings.B8G8R8A8,TextureSettings.R8}; // DXT3
 			
 			formatSelector = new JComboBox<String>();
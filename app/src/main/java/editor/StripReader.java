@@ -0,0 +1,415 @@
+/*
+ *  This file is part of PTexEdit 
+ * 
+ *  Texture editor for Planetary Annihilation's papa files.
+ *  Copyright (C) 2020 Marcus Der <marcusder@hotmail.com>
+ * 
+ *  PTexEdit is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  PTexEdit is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU General Public License
+ *  along with PTexEdit.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package editor;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import papafile.RasterConverter;
+
+/**
+ * Reads an image from top to bottom a strip of rows at a time, so that the full image is never in memory.<br>
+ * Only non interlaced PNG files are supported, which are decoded in a single pass. Other formats are not streamed: the
+ * JDK readers of formats such as JPEG cannot seek, so every ImageReader source region decodes the file again from the
+ * top, which makes reading in strips far slower than reading the whole image.
+ */
+public abstract class StripReader implements Closeable {
+	
+	protected int width;
+	protected int height;
+	protected int rowsRead = 0;
+	
+	/**
+	 * Opens the file for strip reading, or returns null if it is not a PNG which can be streamed.
+	 */
+	public static StripReader open(File file) throws IOException {
+		return PNGStripReader.tryOpen(file);
+	}
+	
+	public int getWidth() {
+		return width;
+	}
+	
+	public int getHeight() {
+		return height;
+	}
+	
+	/**
+	 * The number of rows which can be read at once efficiently. This is always a multiple of 4.
+	 */
+	public abstract int getPreferredRows();
+	
+	/**
+	 * Reads the next rows into out as packed ARGB, returning the number of rows read which is 0 at the end of the image.
+	 */
+	public int read(int[] out, int rows) throws IOException {
+		rows = Math.min(rows, height - rowsRead);
+		if(rows <= 0)
+			return 0;
+		readRows(out, rows);
+		rowsRead += rows;
+		return rows;
+	}
+	
+	protected abstract void readRows(int[] out, int rows) throws IOException;
+	
+	private static class PNGStripReader extends StripReader {
+		// https://www.w3.org/TR/png/
+		
+		private static final long SIGNATURE = 0x89504e470d0a1a0aL;
+		private static final int IHDR = 0x49484452, PLTE = 0x504c5445, TRNS = 0x74524e53, IDAT = 0x49444154;
+		
+		private final DataInputStream in;
+		private DataInputStream pixels;
+		private int bitDepth, colourType, channels, bytesPerPixel;
+		private int[] palette;
+		private int transparent = -1; // the raw grey sample which is transparent
+		private long transparentRGB = -1; // the raw RGB samples which are transparent, 16 bits each
+		private byte[] row, previous;
+		private int[] greyTable;
+
+		/**
+		 * Returns a reader if the file is a PNG which can be streamed, null otherwise.
+		 */
+		private static StripReader tryOpen(File file) throws IOException {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+			boolean success = false;
+			try {
+				PNGStripReader r = new PNGStripReader(in);
+				success = r.readHeader();
+				return success ? r : null;
+			} catch (EOFException e) {
+				return null; // not a complete PNG file, let ImageIO report it
+			} finally {
+				if(!success)
+					in.close();
+			}
+		}
+		
+		private PNGStripReader(DataInputStream in) {
+			this.in = in;
+		}
+		
+		private boolean readHeader() throws IOException {
+			if(in.readLong() != SIGNATURE)
+				return false;
+			int length = in.readInt();
+			if(in.readInt() != IHDR || length != 13)
+				return false;
+			width = in.readInt();
+			height = in.readInt();
+			bitDepth = in.readUnsignedByte();
+			colourType = in.readUnsignedByte();
+			int compression = in.readUnsignedByte();
+			int filter = in.readUnsignedByte();
+			int interlace = in.readUnsignedByte();
+			in.readInt(); // CRC
+			if(compression != 0 || filter != 0 || interlace != 0 || width <= 0 || height <= 0)
+				return false;
+			
+			switch(colourType) {
+				case 0:
+					channels = 1;
+					break;
+				case 2:
+					channels = 3;
+					break;
+				case 3:
+					channels = 1;
+					break;
+				case 4:
+					channels = 2;
+					break;
+				case 6:
+					channels = 4;
+					break;
+				default:
+					return false;
+			}
+			if(bitDepth != 1 && bitDepth != 2 && bitDepth != 4 && bitDepth != 8 && bitDepth != 16)
+				return false;
+			if(bitDepth < 8 && colourType != 0 && colourType != 3 || bitDepth == 16 && colourType == 3)
+				return false;
+			
+			while(true) { // read up to the first IDAT
+				length = in.readInt();
+				int type = in.readInt();
+				if(type == IDAT)
+					break;
+				if(length < 0)
+					return false;
+				byte[] chunk = new byte[length];
+				in.readFully(chunk);
+				in.readInt(); // CRC
+				if(type == PLTE)
+					readPalette(chunk);
+				else if(type == TRNS)
+					readTransparency(chunk);
+			}
+			if(colourType == 3 && palette == null)
+				return false;
+			
+			if((colourType == 0 || colourType == 4) && bitDepth >= 8)
+				greyTable = RasterConverter.getGreyTable(bitDepth); // ImageIO applies gamma to grey images
+			bytesPerPixel = Math.max(1, channels * bitDepth / 8);
+			int rowBytes = (width * channels * bitDepth + 7) / 8;
+			row = new byte[rowBytes];
+			previous = new byte[rowBytes];
+			pixels = new DataInputStream(new InflaterInputStream(new IDATStream(in, length), new Inflater(), 1 << 16));
+			return true;
+		}
+		
+		private void readPalette(byte[] chunk) {
+			int entries = chunk.length / 3;
+			int[] p = new int[256];
+			Arrays.fill(p, 0xff000000);
+			for(int i = 0;i<entries && i<256;i++)
+				p[i] = 0xff000000 | (chunk[3*i] & 0xff)<<16 | (chunk[3*i+1] & 0xff)<<8 | (chunk[3*i+2] & 0xff);
+			if(palette != null) // tRNS came first, which is invalid but harmless
+				for(int i = 0;i<256;i++)
+					p[i] = (p[i] & 0x00ffffff) | (palette[i] & 0xff000000);
+			palette = p;
+		}
+		
+		private void readTransparency(byte[] chunk) {
+			if(colourType == 3) {
+				if(palette == null) {
+					palette = new int[256];
+					Arrays.fill(palette, 0xff000000);
+				}
+				for(int i = 0;i<chunk.length && i<256;i++)
+					palette[i] = (palette[i] & 0x00ffffff) | (chunk[i] & 0xff)<<24;
+			} else if(colourType == 0 && chunk.length >= 2) {
+				transparent = (chunk[0] & 0xff)<<8 | (chunk[1] & 0xff);
+			} else if(colourType == 2 && chunk.length >= 6) {
+				transparentRGB = (long) ((chunk[0] & 0xff)<<8 | (chunk[1] & 0xff))<<32
+								| (long) ((chunk[2] & 0xff)<<8 | (chunk[3] & 0xff))<<16
+								| (long) ((chunk[4] & 0xff)<<8 | (chunk[5] & 0xff));
+			}
+		}
+		
+		@Override
+		public int getPreferredRows() {
+			return 16;
+		}
+		
+		@Override
+		protected void readRows(int[] out, int rows) throws IOException {
+			for(int r = 0;r<rows;r++) {
+				int filter = pixels.readUnsignedByte();
+				pixels.readFully(row);
+				unfilter(filter);
+				convert(out, r * width);
+				byte[] tmp = previous;
+				previous = row;
+				row = tmp;
+			}
+		}
+		
+		private void unfilter(int filter) throws IOException {
+			int bpp = bytesPerPixel;
+			switch(filter) {
+				case 0:
+					break;
+				case 1:
+					for(int i = bpp;i<row.length;i++)
+						row[i] += row[i - bpp];
+					break;
+				case 2:
+					for(int i = 0;i<row.length;i++)
+						row[i] += previous[i];
+					break;
+				case 3:
+					for(int i = 0;i<row.length;i++) {
+						int a = i >= bpp ? row[i - bpp] & 0xff : 0;
+						row[i] += (a + (previous[i] & 0xff))>>>1;
+					}
+					break;
+				case 4:
+					for(int i = 0;i<row.length;i++) {
+						int a = i >= bpp ? row[i - bpp] & 0xff : 0;
+						int b = previous[i] & 0xff;
+						int c = i >= bpp ? previous[i - bpp] & 0xff : 0;
+						int p = a + b - c;
+						int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+						row[i] += pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+					}
+					break;
+				default:
+					throw new IOException("Invalid PNG filter type "+filter);
+			}
+		}
+		
+		private void convert(int[] out, int offset) {
+			switch(colourType) {
+				case 0:
+				case 3:
+					for(int x = 0;x<width;x++) {
+						int sample = sample(x);
+						int argb;
+						if(colourType == 3)
+							argb = palette[sample];
+						else {
+							int grey = greyTable != null ? greyTable[sample] & 0xffffff : scale(sample) * 0x010101;
+							argb = sample == transparent ? grey : 0xff000000 | grey;
+						}
+						out[offset + x] = argb;
+					}
+					break;
+				case 2:
+					for(int x = 0;x<width;x++) {
+						int r, g, b;
+						long raw;
+						if(bitDepth == 16) {
+							int i = x * 6;
+							r = channel16(i);
+							g = channel16(i + 2);
+							b = channel16(i + 4);
+							raw = transparentRGB == -1 ? -2 : (long) short16(i)<<32 | (long) short16(i + 2)<<16 | short16(i + 4);
+						} else {
+							int i = x * 3;
+							r = row[i] & 0xff;
+							g = row[i + 1] & 0xff;
+							b = row[i + 2] & 0xff;
+							raw = (long) r<<32 | (long) g<<16 | b;
+						}
+						int alpha = raw == transparentRGB ? 0 : 0xff000000;
+						out[offset + x] = alpha | r<<16 | g<<8 | b;
+					}
+					break;
+				case 4:
+					for(int x = 0;x<width;x++) {
+						int step = bitDepth == 16 ? 2 : 1;
+						int i = x * 2 * step;
+						int grey = greyTable[step == 2 ? short16(i) : row[i] & 0xff] & 0xffffff;
+						int a = step == 2 ? channel16(i + 2) : row[i + 1] & 0xff;
+						out[offset + x] = a<<24 | grey;
+					}
+					break;
+				case 6:
+					if(bitDepth == 16)
+						for(int x = 0;x<width;x++) {
+							int i = x * 8;
+							out[offset + x] = channel16(i + 6)<<24 | channel16(i)<<16 | channel16(i + 2)<<8 | channel16(i + 4);
+						}
+					else
+						for(int x = 0;x<width;x++) {
+							int i = x * 4;
+							out[offset + x] = (row[i + 3] & 0xff)<<24 | (row[i] & 0xff)<<16 | (row[i + 1] & 0xff)<<8 | (row[i + 2] & 0xff);
+						}
+					break;
+			}
+		}
+		
+		/**
+		 * The raw sample of a single channel image at x.
+		 */
+		private int sample(int x) {
+			switch(bitDepth) {
+				case 16:
+					return short16(x * 2);
+				case 8:
+					return row[x] & 0xff;
+				default:
+					int perByte = 8 / bitDepth;
+					int shift = 8 - bitDepth * (x % perByte + 1);
+					return (row[x / perByte] >>> shift) & ((1 << bitDepth) - 1);
+			}
+		}
+		
+		private int scale(int sample) {
+			return sample * 255 / ((1 << bitDepth) - 1);
+		}
+		
+		private int short16(int index) {
+			return (row[index] & 0xff)<<8 | (row[index + 1] & 0xff);
+		}
+		
+		/**
+		 * A 16 bit sample reduced to 8 bits with rounding, as ImageIO does.
+		 */
+		private int channel16(int index) {
+			return RasterConverter.reduce(short16(index));
+		}
+		
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Presents the contents of consecutive IDAT chunks as one stream.
+	 */
+	private static class IDATStream extends InputStream {
+		
+		private final DataInputStream in;
+		private int remaining;
+		private boolean done = false;
+		
+		private IDATStream(DataInputStream in, int firstLength) {
+			this.in = in;
+			this.remaining = firstLength;
+		}
+		
+		private boolean nextChunk() throws IOException {
+			while(remaining == 0 && !done) {
+				in.readInt(); // CRC of the previous chunk
+				int length = in.readInt();
+				if(in.readInt() != PNGStripReader.IDAT) {
+					done = true;
+					return false;
+				}
+				remaining = length;
+			}
+			return !done;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			if(!nextChunk())
+				return -1;
+			remaining--;
+			return in.read();
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(len == 0)
+				return 0;
+			if(!nextChunk())
+				return -1;
+			int n = in.read(b, off, Math.min(len, remaining));
+			if(n == -1)
+				throw new EOFException("Unexpected end of PNG data");
+			remaining -= n;
+			return n;
+		}
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ *  This file is part of PapaFile
+ * 
+ *  File IO tools for Planetary Annihilation's papa files.
+ *  Copyright (C) 2020 Marcus Der <marcusder@hotmail.com>
+ * 
+ *  PapaFile is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  PapaFile is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU General Public License
+ *  along with PapaFile.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package papafile;
+
+/**
+ * Changes the frame rate of animations. New frames are interpolated from the old ones, with rotations interpolated
+ * spherically, and the result is compared against every original frame to measure the error introduced. Errors are
+ * measured per bone relative to its parent.
+ */
+public class AnimationResampler {
+	
+	private static final int T = PapaAnimation.TRANSFORM_SIZE;
+	
+	private AnimationResampler() {}
+	
+	/**
+	 * Resamples the animation to the given frame rate. The animation keeps its duration, a last frame which does not land
+	 * on the new rate is held at the final pose.
+	 * @param apply Whether to replace the frames of the animation, otherwise only the error is measured.
+	 */
+	public static Result resample(PapaAnimation animation, int fpsNumerator, int fpsDenominator, boolean apply) {
+		if(fpsNumerator <= 0 || fpsDenominator <= 0)
+			throw new IllegalArgumentException("Invalid frame rate "+fpsNumerator+"/"+fpsDenominator);
+		int bones = animation.getNumBones();
+		int frames = animation.getNumFrames();
+		float[] source = animation.getTransforms();
+		double oldFps = (double) animation.getFpsNumerator() / animation.getFpsDenominator();
+		double newFps = (double) fpsNumerator / fpsDenominator;
+		
+		int newFrames = frames;
+		if(frames > 1) {
+			double duration = (frames - 1) / oldFps;
+			newFrames = (int) Math.ceil(duration * newFps - 1e-6) + 1;
+		}
+		float[] result = new float[newFrames * bones * T];
+		for(int f = 0;f<newFrames;f++)
+			sample(source, frames, bones, f / newFps * oldFps, result, f * bones * T);
+		
+		// compare against every original frame
+		float[] pose = new float[bones * T];
+		double maxDistance = 0, maxAngle = 0;
+		for(int f = 0;f<frames;f++) {
+			sample(result, newFrames, bones, f / oldFps * newFps, pose, 0);
+			for(int b = 0;b<bones;b++) {
+				int o = (f * bones + b) * T, p = b * T;
+				double dx = source[o] - pose[p], dy = source[o + 1] - pose[p + 1], dz = source[o + 2] - pose[p + 2];
+				maxDistance = Math.max(maxDistance, Math.sqrt(dx * dx + dy * dy + dz * dz));
+				maxAngle = Math.max(maxAngle, angleBetween(source, o + 3, pose, p + 3));
+			}
+		}
+		
+		Result r = new Result(animation.getFpsNumerator(), animation.getFpsDenominator(), frames, fpsNumerator, fpsDenominator, newFrames,
+								bones, maxDistance, Math.toDegrees(maxAngle));
+		if(apply)
+			animation.setFrames(newFrames, fpsNumerator, fpsDenominator, result);
+		return r;
+	}
+	
+	/**
+	 * Lowers the frame rate of the animation by the largest whole factor, up to maxFactor, which keeps the errors within
+	 * the given limits. Factors are tried in increasing order and the search stops at the first one which exceeds them.
+	 * @return The result which was applied, or null if even halving the frame rate exceeds the limits.
+	 */
+	public static Result reduce(PapaAnimation animation, double maxDistance, double maxAngleDegrees, int maxFactor) {
+		Result best = null;
+		int numerator = animation.getFpsNumerator(), denominator = animation.getFpsDenominator();
+		for(int factor = 2;factor<=maxFactor;factor++) {
+			int n = numerator, d = denominator;
+			if(n % factor == 0)
+				n /= factor;
+			else
+				d *= factor;
+			Result r = resample(animation, n, d, false);
+			if(r.getMaxDistance() > maxDistance || r.getMaxAngle() > maxAngleDegrees)
+				break;
+			best = r;
+			if(r.getNewFrames() <= 2)
+				break;
+		}
+		if(best != null)
+			resample(animation, best.newFpsNumerator, best.newFpsDenominator, true);
+		return best;
+	}
+	
+	/**
+	 * Writes the pose at a fractional frame of src into dest at offset, holding the first and last frames beyond the ends.
+	 */
+	private static void sample(float[] src, int frames, int bones, double frame, float[] dest, int offset) {
+		if(frames == 0)
+			return;
+		frame = Math.max(0, Math.min(frame, frames - 1));
+		int f0 = (int) frame;
+		int f1 = Math.min(f0 + 1, frames - 1);
+		float t = (float) (frame - f0);
+		for(int b = 0;b<bones;b++)
+			AnimationSampler.interpolate(src, (f0 * bones + b) * T, (f1 * bones + b) * T, t, true, dest, offset + b * T);
+	}
+	
+	/**
+	 * The rotation angle in radians between two quaternions, computed with atan2 since acos loses precision near zero.
+	 */
+	private static double angleBetween(float[] a, int i, float[] b, int j) {
+		double la = Math.sqrt(a[i] * a[i] + a[i + 1] * a[i + 1] + a[i + 2] * a[i + 2] + a[i + 3] * a[i + 3]);
+		double lb = Math.sqrt(b[j] * b[j] + b[j + 1] * b[j + 1] + b[j + 2] * b[j + 2] + b[j + 3] * b[j + 3]);
+		if(la == 0 || lb == 0)
+			return 0;
+		double dot = a[i] * b[j] + a[i + 1] * b[j + 1] + a[i + 2] * b[j + 2] + a[i + 3] * b[j + 3];
+		double sign = dot < 0 ? -1 : 1; // q and -q are the same rotation
+		double difference = 0, sum = 0;
+		for(int k = 0;k<4;k++) {
+			double x = a[i + k] / la, y = sign * b[j + k] / lb;
+			difference += (x - y) * (x - y);
+			sum += (x + y) * (x + y);
+		}
+		return 4 * Math.atan2(Math.sqrt(difference), Math.sqrt(sum));
+	}
+	
+	public static class Result {
+		private final int oldFpsNumerator, oldFpsDenominator, oldFrames;
+		private final int newFpsNumerator, newFpsDenominator, newFrames;
+		private final int bones;
+		private final double maxDistance, maxAngle;
+		
+		private Result(int oldFpsNumerator, int oldFpsDenominator, int oldFrames, int newFpsNumerator, int newFpsDenominator,
+						int newFrames, int bones, double maxDistance, double maxAngle) {
+			this.oldFpsNumerator = oldFpsNumerator;
+			this.oldFpsDenominator = oldFpsDenominator;
+			this.oldFrames = oldFrames;
+			this.newFpsNumerator = newFpsNumerator;
+			this.newFpsDenominator = newFpsDenominator;
+			this.newFrames = newFrames;
+			this.bones = bones;
+			this.maxDistance = maxDistance;
+			this.maxAngle = maxAngle;
+		}
+		
+		public int getOldFrames() {
+			return oldFrames;
+		}
+		
+		public int getNewFrames() {
+			return newFrames;
+		}
+		
+		public int getNewFpsNumerator() {
+			return newFpsNumerator;
+		}
+		
+		public int getNewFpsDenominator() {
+			return newFpsDenominator;
+		}
+		
+		/** The largest distance between an original bone location and the resampled one. */
+		public double getMaxDistance() {
+			return maxDistance;
+		}
+		
+		/** The largest angle in degrees between an original bone rotation and the resampled one. */
+		public double getMaxAngle() {
+			return maxAngle;
+		}
+		
+		/** The number of transform bytes saved. */
+		public long getBytesSaved() {
+			return (long) (oldFrames - newFrames) * bones * T * 4;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("%d/%d fps, %d frames -> %d/%d fps, %d frames. Max error %.5f units, %.4f degrees", oldFpsNumerator,
+									oldFpsDenominator, oldFrames, newFpsNumerator, newFpsDenominator, newFrames, maxDistance, maxAngle);
+		}
+	}
+}
@@ -0,0 +1,261 @@
+/*
+ *  This file is part of PapaFile
+ * 
+ *  File IO tools for Planetary Annihilation's papa files.
+ *  Copyright (C) 2020 Marcus Der <marcusder@hotmail.com>
+ * 
+ *  PapaFile is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  PapaFile is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU General Public License
+ *  along with PapaFile.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package papafile;
+
+import java.util.HashMap;
+
+import papafile.PapaSkeleton.Hierarchy;
+
+/**
+ * Evaluates an animation at arbitrary times. Locations are interpolated linearly and rotations by normalized linear or
+ * spherical interpolation along the shorter arc. The bones of the animation are matched to a skeleton by name when the
+ * sampler is created, bones without a track keep their bind pose.<br>
+ * Sampling allocates nothing. A sampler holds scratch space and must not be shared between threads.
+ */
+public class AnimationSampler {
+	
+	/** The number of floats in a local transform, a location followed by a rotation quaternion x, y, z, w. */
+	public static final int TRANSFORM_SIZE = PapaAnimation.TRANSFORM_SIZE;
+	/** The number of floats in a bone matrix, a column major 4x4 matrix. */
+	public static final int MATRIX_SIZE = 16;
+	
+	private final float[] transforms;
+	private final int numFrames;
+	private final int animationBones;
+	private final double fps;
+	
+	private final int numBones;
+	private final int[] order; // bone indices with parents before their children
+	private final int[] parents; // -1 for roots
+	private final int[] tracks; // the animation bone for each bone, or -1
+	private final float[] restPose;
+	private final float[] local;
+	
+	private boolean looping = false;
+	private boolean slerp = false;
+	
+	/**
+	 * Creates a sampler for the animation on its own. Every animated bone is treated as a root, so model space is the
+	 * same as local space.
+	 */
+	public AnimationSampler(PapaAnimation animation) {
+		this.transforms = animation.getTransforms();
+		this.numFrames = animation.getNumFrames();
+		this.animationBones = animation.getNumBones();
+		this.fps = animation.getFps();
+		
+		this.numBones = animationBones;
+		this.order = new int[numBones];
+		this.parents = new int[numBones];
+		this.tracks = new int[numBones];
+		for(int i = 0;i<numBones;i++) {
+			order[i] = i;
+			parents[i] = -1;
+			tracks[i] = i;
+		}
+		this.restPose = new float[numBones * TRANSFORM_SIZE];
+		this.local = new float[numBones * TRANSFORM_SIZE];
+	}
+	
+	/**
+	 * Creates a sampler which poses the given skeleton. Output is indexed by skeleton bone.
+	 */
+	public AnimationSampler(PapaAnimation animation, PapaSkeleton skeleton) {
+		this.transforms = animation.getTransforms();
+		this.numFrames = animation.getNumFrames();
+		this.animationBones = animation.getNumBones();
+		this.fps = animation.getFps();
+		
+		this.numBones = skeleton.getNumBones();
+		this.parents = new int[numBones];
+		this.tracks = new int[numBones];
+		this.restPose = new float[numBones * TRANSFORM_SIZE];
+		this.local = new float[numBones * TRANSFORM_SIZE];
+		
+		HashMap<String, Integer> trackIndex = new HashMap<String, Integer>();
+		for(int i = 0;i<animationBones;i++)
+			trackIndex.put(animation.getBoneName(i), i);
+		
+		Hierarchy hierarchy = skeleton.getHierarchy();
+		int[] skeletonParents = hierarchy.getSkeletonParents();
+		this.order = hierarchy.getSkeletonIndices();
+		float[] locations = hierarchy.getLocations(), rotations = hierarchy.getRotations();
+		for(int i = 0;i<numBones;i++) {
+			int b = order[i];
+			parents[b] = skeletonParents[b];
+			Integer track = trackIndex.get(hierarchy.getBone(i).getName());
+			tracks[b] = track == null ? -1 : track;
+			System.arraycopy(locations, i * 3, restPose, b * TRANSFORM_SIZE, 3);
+			System.arraycopy(rotations, i * 4, restPose, b * TRANSFORM_SIZE + 3, 4);
+		}
+	}
+	
+	public int getNumBones() {
+		return numBones;
+	}
+	
+	/**
+	 * The time of the last frame in seconds. A looping animation lasts one frame longer, as it blends back to the start.
+	 */
+	public double getDuration() {
+		return fps <= 0 || numFrames == 0 ? 0 : (numFrames - 1) / fps;
+	}
+	
+	/**
+	 * Sets whether times outside the animation wrap around. Otherwise they are clamped to the first and last frames.
+	 */
+	public void setLooping(boolean looping) {
+		this.looping = looping;
+	}
+	
+	/**
+	 * Sets whether rotations are interpolated spherically, which keeps a constant angular speed. By default they use the
+	 * faster normalized linear interpolation.
+	 */
+	public void setSlerp(boolean slerp) {
+		this.slerp = slerp;
+	}
+	
+	/**
+	 * Writes the local transform of every bone at the given time into out, {@link #TRANSFORM_SIZE} floats per bone.
+	 */
+	public void sampleLocal(double time, float[] out) {
+		if(out.length < numBones * TRANSFORM_SIZE)
+			throw new IllegalArgumentException("Output holds "+out.length+" floats, "+numBones * TRANSFORM_SIZE+" are needed");
+		double frame = time * fps;
+		int frame0, frame1;
+		float t;
+		if(numFrames == 0) {
+			System.arraycopy(restPose, 0, out, 0, numBones * TRANSFORM_SIZE);
+			return;
+		}
+		if(looping) {
+			frame %= numFrames;
+			if(frame < 0)
+				frame += numFrames;
+			frame0 = Math.min((int) frame, numFrames - 1);
+			frame1 = frame0 + 1 == numFrames ? 0 : frame0 + 1;
+			t = (float) (frame - frame0);
+		} else {
+			frame = Math.max(0, Math.min(frame, numFrames - 1));
+			frame0 = (int) frame;
+			frame1 = Math.min(frame0 + 1, numFrames - 1);
+			t = (float) (frame - frame0);
+		}
+		
+		int base0 = frame0 * animationBones * TRANSFORM_SIZE;
+		int base1 = frame1 * animationBones * TRANSFORM_SIZE;
+		for(int b = 0;b<numBones;b++) {
+			int track = tracks[b];
+			int o = b * TRANSFORM_SIZE;
+			if(track == -1)
+				System.arraycopy(restPose, o, out, o, TRANSFORM_SIZE);
+			else
+				interpolate(transforms, base0 + track * TRANSFORM_SIZE, base1 + track * TRANSFORM_SIZE, t, slerp, out, o);
+		}
+	}
+	
+	/**
+	 * Writes the model space matrix of every bone at the given time into out, {@link #MATRIX_SIZE} floats per bone.
+	 */
+	public void sampleModel(double time, float[] out) {
+		if(out.length < numBones * MATRIX_SIZE)
+			throw new IllegalArgumentException("Output holds "+out.length+" floats, "+numBones * MATRIX_SIZE+" are needed");
+		sampleLocal(time, local);
+		for(int i = 0;i<numBones;i++) {
+			int b = order[i];
+			int o = b * MATRIX_SIZE;
+			toMatrix(local, b * TRANSFORM_SIZE, out, o);
+			int parent = parents[b];
+			if(parent != -1)
+				multiplyAffine(out, parent * MATRIX_SIZE, out, o);
+		}
+	}
+	
+	/**
+	 * Interpolates between the transforms at a and b of src, writing the result into dest at d.
+	 */
+	static void interpolate(float[] src, int a, int b, float t, boolean slerp, float[] dest, int d) {
+		for(int i = 0;i<3;i++)
+			dest[d + i] = src[a + i] + (src[b + i] - src[a + i]) * t;
+		
+		float ax = src[a + 3], ay = src[a + 4], az = src[a + 5], aw = src[a + 6];
+		float bx = src[b + 3], by = src[b + 4], bz = src[b + 5], bw = src[b + 6];
+		float dot = ax * bx + ay * by + az * bz + aw * bw;
+		if(dot < 0) { // take the shorter arc
+			bx = -bx; by = -by; bz = -bz; bw = -bw;
+			dot = -dot;
+		}
+		float wa = 1 - t, wb = t;
+		if(slerp && dot < 0.9995f) {
+			double angle = Math.acos(dot);
+			double sin = Math.sin(angle);
+			wa = (float) (Math.sin(angle * (1 - t)) / sin);
+			wb = (float) (Math.sin(angle * t) / sin);
+		}
+		float x = ax * wa + bx * wb, y = ay * wa + by * wb, z = az * wa + bz * wb, w = aw * wa + bw * wb;
+		float length = (float) Math.sqrt(x * x + y * y + z * z + w * w);
+		if(length == 0)
+			length = 1;
+		dest[d + 3] = x / length;
+		dest[d + 4] = y / length;
+		dest[d + 5] = z / length;
+		dest[d + 6] = w / length;
+	}
+	
+	/**
+	 * Converts the transform at t in src into a column major matrix at m in dest.
+	 */
+	static void toMatrix(float[] src, int t, float[] dest, int m) {
+		float x = src[t + 3], y = src[t + 4], z = src[t + 5], w = src[t + 6];
+		float xx = x * x, yy = y * y, zz = z * z;
+		float xy = x * y, xz = x * z, yz = y * z, wx = w * x, wy = w * y, wz = w * z;
+		dest[m] = 1 - 2 * (yy + zz);
+		dest[m + 1] = 2 * (xy + wz);
+		dest[m + 2] = 2 * (xz - wy);
+		dest[m + 3] = 0;
+		dest[m + 4] = 2 * (xy - wz);
+		dest[m + 5] = 1 - 2 * (xx + zz);
+		dest[m + 6] = 2 * (yz + wx);
+		dest[m + 7] = 0;
+		dest[m + 8] = 2 * (xz + wy);
+		dest[m + 9] = 2 * (yz - wx);
+		dest[m + 10] = 1 - 2 * (xx + yy);
+		dest[m + 11] = 0;
+		dest[m + 12] = src[t];
+		dest[m + 13] = src[t + 1];
+		dest[m + 14] = src[t + 2];
+		dest[m + 15] = 1;
+	}
+	
+	/**
+	 * Replaces the affine column major matrix at b in mb with the product of the matrix at a in ma and itself.
+	 */
+	static void multiplyAffine(float[] ma, int a, float[] mb, int b) {
+		for(int column = 0;column<4;column++) {
+			int c = b + column * 4;
+			float x = mb[c], y = mb[c + 1], z = mb[c + 2];
+			float w = column == 3 ? 1 : 0;
+			mb[c] = ma[a] * x + ma[a + 4] * y + ma[a + 8] * z + ma[a + 12] * w;
+			mb[c + 1] = ma[a + 1] * x + ma[a + 5] * y + ma[a + 9] * z + ma[a + 13] * w;
+			mb[c + 2] = ma[a + 2] * x + ma[a + 6] * y + ma[a + 10] * z + ma[a + 14] * w;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ *  This file is part of PapaFile
+ * 
+ *  File IO tools for Planetary Annihilation's papa files.
+ *  Copyright (C) 2020 Marcus Der <marcusder@hotmail.com>
+ * 
+ *  PapaFile is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  PapaFile is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU General Public License
+ *  along with PapaFile.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package papafile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 64 bit xxHash (XXH64) of raw payload bytes, used to fingerprint components so that they can be compared without
+ * decoding them.
+ */
+final class ContentHash {
+	// https://github.com/Cyan4973/xxHash/blob/dev/doc/xxhash_spec.md
+	
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+	private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME5 = 0x27D4EB2F165667C5L;
+	
+	private ContentHash() {}
+	
+	static long hash(byte[] data) {
+		return hash(data, 0, data.length, 0);
+	}
+	
+	static long hash(byte[] data, int offset, int length, long seed) {
+		ByteBuffer buf = ByteBuffer.wrap(data, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+		int i = offset;
+		int end = offset + length;
+		long h;
+		if(length >= 32) {
+			long v1 = seed + PRIME1 + PRIME2;
+			long v2 = seed + PRIME2;
+			long v3 = seed;
+			long v4 = seed - PRIME1;
+			for(int limit = end - 32;i<=limit;i+=32) {
+				v1 = round(v1, buf.getLong(i));
+				v2 = round(v2, buf.getLong(i + 8));
+				v3 = round(v3, buf.getLong(i + 16));
+				v4 = round(v4, buf.getLong(i + 24));
+			}
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = mergeRound(h, v1);
+			h = mergeRound(h, v2);
+			h = mergeRound(h, v3);
+			h = mergeRound(h, v4);
+		} else
+			h = seed + PRIME5;
+		h += length;
+		
+		for(;i + 8<=end;i+=8)
+			h = Long.rotateLeft(h ^ round(0, buf.getLong(i)), 27) * PRIME1 + PRIME4;
+		if(i + 4<=end) {
+			h = Long.rotateLeft(h ^ (buf.getInt(i) & 0xFFFFFFFFL) * PRIME1, 23) * PRIME2 + PRIME3;
+			i+=4;
+		}
+		for(;i<end;i++)
+			h = Long.rotateLeft(h ^ (data[i] & 0xFFL) * PRIME5, 11) * PRIME1;
+		
+		h ^= h>>>33;
+		h *= PRIME2;
+		h ^= h>>>29;
+		h *= PRIME3;
+		h ^= h>>>32;
+		return h;
+	}
+	
+	private static long round(long acc, long input) {
+		acc += input * PRIME2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * PRIME1;
+	}
+	
+	private static long mergeRound(long acc, long val) {
+		acc ^= round(0, val);
+		return acc * PRIME1 + PRIME4;
+	}
+}
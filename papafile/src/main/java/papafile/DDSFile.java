@@ -0,0 +1,416 @@
+/*
+ *  This file is part of PapaFile
+ * 
+ *  File IO tools for Planetary Annihilation's papa files.
+ *  Copyright (C) 2020 Marcus Der <marcusder@hotmail.com>
+ * 
+ *  PapaFile is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  PapaFile is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU General Public License
+ *  along with PapaFile.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package papafile;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import papafile.PapaFileSnapshot.TextureSnapshot;
+import papafile.PapaTexture.TextureSettings;
+
+/**
+ * Reads and writes DirectDraw Surface files. The pixel data of a DDS file and of a papa texture share the same layout
+ * (block compressed or plain pixels, followed by the mip chain), so the payload is copied as is in both directions. The
+ * one exception is B8G8R8X8, which papa files lack and which is swizzled into R8G8B8X8 when read.
+ *
+ */
+public class DDSFile {
+	// https://docs.microsoft.com/en-us/windows/win32/direct3ddds/dds-header
+	// https://docs.microsoft.com/en-us/windows/win32/direct3ddds/dds-header-dxt10
+	
+	private static final int MAGIC = 0x20534444; // "DDS "
+	private static final int HEADER_SIZE = 124;
+	private static final int PIXEL_FORMAT_SIZE = 32;
+	private static final int DX10_HEADER_SIZE = 20;
+	
+	private static final int DDSD_CAPS = 0x1, DDSD_HEIGHT = 0x2, DDSD_WIDTH = 0x4, DDSD_PITCH = 0x8, DDSD_PIXELFORMAT = 0x1000,
+								DDSD_MIPMAPCOUNT = 0x20000, DDSD_LINEARSIZE = 0x80000;
+	private static final int DDPF_ALPHAPIXELS = 0x1, DDPF_FOURCC = 0x4, DDPF_RGB = 0x40, DDPF_LUMINANCE = 0x20000;
+	private static final int DDSCAPS_COMPLEX = 0x8, DDSCAPS_TEXTURE = 0x1000, DDSCAPS_MIPMAP = 0x400000;
+	private static final int DDSCAPS2_CUBEMAP = 0x200, DDSCAPS2_VOLUME = 0x200000;
+	
+	private static final int FOURCC_DXT1 = 0x31545844, FOURCC_DXT3 = 0x33545844, FOURCC_DXT5 = 0x35545844, FOURCC_DX10 = 0x30315844;
+	
+	private static final int DXGI_FORMAT_R8G8B8A8_UNORM = 28, DXGI_FORMAT_R8G8B8A8_UNORM_SRGB = 29, DXGI_FORMAT_R8_UNORM = 61,
+								DXGI_FORMAT_BC1_UNORM = 71, DXGI_FORMAT_BC1_UNORM_SRGB = 72, DXGI_FORMAT_BC2_UNORM = 74,
+								DXGI_FORMAT_BC2_UNORM_SRGB = 75, DXGI_FORMAT_BC3_UNORM = 77, DXGI_FORMAT_BC3_UNORM_SRGB = 78,
+								DXGI_FORMAT_B8G8R8A8_UNORM = 87, DXGI_FORMAT_B8G8R8X8_UNORM = 88, DXGI_FORMAT_B8G8R8A8_UNORM_SRGB = 91,
+								DXGI_FORMAT_B8G8R8X8_UNORM_SRGB = 93;
+	private static final int D3D10_RESOURCE_DIMENSION_TEXTURE2D = 3;
+	
+	private static final String DXT3 = "DXT3";
+	private static final String B8G8R8X8 = "B8G8R8X8"; // no papa equivalent, stored as R8G8B8X8
+	
+	/**
+	 * Reads a DDS file into a texture without decoding it. The stream is not closed.
+	 */
+	public static PapaTexture read(InputStream stream, String name) throws IOException {
+		Header h = readHeader(stream);
+		int width = h.width, height = h.height, mipCount = h.mips;
+		boolean opaqueBGR = h.format.equals(B8G8R8X8);
+		TextureCodec codec = TextureCodec.getDecoder(opaqueBGR ? TextureSettings.B8G8R8A8 : h.format);
+		byte[] data = new byte[codec.calcSize(width, height, mipCount - 1)];
+		new DataInputStream(stream).readFully(data);
+		if(opaqueBGR) {
+			TextureCodec rgbx = TextureCodec.getDecoder(TextureSettings.R8G8B8X8);
+			data = PapaTexture.swizzle(data, codec.formatIndex(), rgbx.formatIndex());
+			codec = rgbx;
+		}
+		
+		return new PapaTexture(name, codec.formatIndex(), (byte) mipCount, h.srgb, (short) width, (short) height, data, null);
+	}
+	
+	/**
+	 * Reads only the header of a DDS file, leaving the stream at the start of the image data. The stream is not closed.
+	 */
+	public static Header readHeader(InputStream stream) throws IOException {
+		DataInputStream in = new DataInputStream(stream);
+		ByteBuffer header = readBytes(in, 4 + HEADER_SIZE);
+		
+		if(header.getInt() != MAGIC)
+			throw new IOException("File signature does not match DDS specification.");
+		if(header.getInt() != HEADER_SIZE)
+			throw new IOException("Invalid DDS header size.");
+		
+		int flags = header.getInt();
+		int height = header.getInt();
+		int width = header.getInt();
+		header.getInt(); // pitch or linear size
+		header.getInt(); // depth
+		int mipCount = header.getInt();
+		if((flags & DDSD_MIPMAPCOUNT) == 0 || mipCount < 1)
+			mipCount = 1;
+		header.position(header.position() + 11 * 4); // reserved
+		
+		if(header.getInt() != PIXEL_FORMAT_SIZE)
+			throw new IOException("Invalid DDS pixel format size.");
+		int pfFlags = header.getInt();
+		int fourCC = header.getInt();
+		int bitCount = header.getInt();
+		int rMask = header.getInt();
+		int gMask = header.getInt();
+		int bMask = header.getInt();
+		int aMask = header.getInt();
+		
+		header.getInt(); // caps
+		int caps2 = header.getInt();
+		if((caps2 & (DDSCAPS2_CUBEMAP | DDSCAPS2_VOLUME)) != 0)
+			throw new IOException("Cube map and volume DDS files are not supported.");
+		
+		if(width <= 0 || height <= 0 || width > Short.MAX_VALUE || height > Short.MAX_VALUE)
+			throw new IOException("Invalid DDS dimensions "+width+" by "+height);
+		if(mipCount > 0b0111_1111)
+			throw new IOException("Too many mipmaps in DDS file: "+mipCount);
+		
+		boolean srgb = false;
+		String format;
+		if((pfFlags & DDPF_FOURCC) != 0) {
+			switch(fourCC) {
+				case FOURCC_DXT1:
+					format = TextureSettings.DXT1;
+					break;
+				case FOURCC_DXT3:
+					format = DXT3;
+					break;
+				case FOURCC_DXT5:
+					format = TextureSettings.DXT5;
+					break;
+				case FOURCC_DX10:
+					ByteBuffer dx10 = readBytes(in, DX10_HEADER_SIZE);
+					int dxgiFormat = dx10.getInt();
+					if(dx10.getInt() != D3D10_RESOURCE_DIMENSION_TEXTURE2D || dx10.getInt() != 0 || dx10.getInt() != 1) // dimension, misc flags, array size
+						throw new IOException("Only single 2D DDS textures are supported.");
+					srgb = isSRGB(dxgiFormat);
+					format = fromDXGIFormat(dxgiFormat);
+					break;
+				default:
+					throw new IOException("Unsupported DDS compression: "+fourCCToString(fourCC));
+			}
+		} else if(bitCount == 32 && (pfFlags & DDPF_RGB) != 0) {
+			boolean alpha = (pfFlags & DDPF_ALPHAPIXELS) != 0 && aMask != 0;
+			if(rMask == 0x000000ff && gMask == 0x0000ff00 && bMask == 0x00ff0000)
+				format = alpha ? TextureSettings.R8G8B8A8 : TextureSettings.R8G8B8X8;
+			else if(rMask == 0x00ff0000 && gMask == 0x0000ff00 && bMask == 0x000000ff)
+				format = alpha ? TextureSettings.B8G8R8A8 : B8G8R8X8;
+			else
+				throw new IOException("Unsupported DDS pixel layout.");
+		} else if(bitCount == 8 && (pfFlags & (DDPF_RGB | DDPF_LUMINANCE)) != 0 && rMask == 0xff) {
+			format = TextureSettings.R8;
+		} else {
+			throw new IOException("Unsupported DDS pixel format.");
+		}
+		
+		return new Header(width, height, mipCount, format, srgb);
+	}
+	
+	/**
+	 * Writes the texture as a DDS file without decoding it. Textures marked as SRGB are written with the DX10 header
+	 * where the format has an SRGB variant. The stream is not closed.
+	 */
+	public static void write(PapaTexture texture, OutputStream out) throws IOException {
+		write(texture.snapshot(), out);
+	}
+	
+	/**
+	 * Writes the texture snapshot as a DDS file, as {@link #write(PapaTexture, OutputStream)} does.
+	 */
+	public static void write(TextureSnapshot texture, OutputStream out) throws IOException {
+		String format = texture.getFormat();
+		int width = texture.getWidth();
+		int height = texture.getHeight();
+		int mipCount = texture.getNumImages();
+		byte[] data = texture.getData();
+		int dxgiFormat = texture.getSRGB() ? toSRGBFormat(format) : -1;
+		
+		ByteBuffer header = ByteBuffer.allocate(4 + HEADER_SIZE + (dxgiFormat != -1 ? DX10_HEADER_SIZE : 0));
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		
+		boolean compressed = format.equals(TextureSettings.DXT1) || format.equals(DXT3) || format.equals(TextureSettings.DXT5);
+		int flags = DDSD_CAPS | DDSD_HEIGHT | DDSD_WIDTH | DDSD_PIXELFORMAT | (compressed ? DDSD_LINEARSIZE : DDSD_PITCH);
+		if(mipCount > 1)
+			flags |= DDSD_MIPMAPCOUNT;
+		
+		header.putInt(MAGIC);
+		header.putInt(HEADER_SIZE);
+		header.putInt(flags);
+		header.putInt(height);
+		header.putInt(width);
+		header.putInt(compressed ? TextureCodec.getDecoder(format).calcSize(width, height, 0) : width * bytesPerPixel(format));
+		header.putInt(0); // depth
+		header.putInt(mipCount);
+		header.position(header.position() + 11 * 4); // reserved
+		
+		header.putInt(PIXEL_FORMAT_SIZE);
+		if(dxgiFormat != -1)
+			putFourCC(header, FOURCC_DX10);
+		else {
+			switch(format) {
+				case TextureSettings.DXT1:
+					putFourCC(header, FOURCC_DXT1);
+					break;
+				case DXT3:
+					putFourCC(header, FOURCC_DXT3);
+					break;
+				case TextureSettings.DXT5:
+					putFourCC(header, FOURCC_DXT5);
+					break;
+				case TextureSettings.R8G8B8A8:
+					putMasks(header, DDPF_RGB | DDPF_ALPHAPIXELS, 32, 0x000000ff, 0x0000ff00, 0x00ff0000, 0xff000000);
+					break;
+				case TextureSettings.R8G8B8X8:
+					putMasks(header, DDPF_RGB, 32, 0x000000ff, 0x0000ff00, 0x00ff0000, 0);
+					break;
+				case TextureSettings.B8G8R8A8:
+					putMasks(header, DDPF_RGB | DDPF_ALPHAPIXELS, 32, 0x00ff0000, 0x0000ff00, 0x000000ff, 0xff000000);
+					break;
+				case TextureSettings.R8:
+					putMasks(header, DDPF_LUMINANCE, 8, 0xff, 0, 0, 0);
+					break;
+				default:
+					throw new IOException("Format "+format+" cannot be stored in a DDS file.");
+			}
+		}
+		
+		header.putInt(DDSCAPS_TEXTURE | (mipCount > 1 ? DDSCAPS_COMPLEX | DDSCAPS_MIPMAP : 0));
+		header.position(header.position() + 4 * 4); // caps2, caps3, caps4, reserved
+		
+		if(dxgiFormat != -1) {
+			header.putInt(dxgiFormat);
+			header.putInt(D3D10_RESOURCE_DIMENSION_TEXTURE2D);
+			header.putInt(0); // misc flags
+			header.putInt(1); // array size
+			header.putInt(0); // misc flags 2, alpha mode unknown
+		}
+		
+		out.write(header.array());
+		out.write(data);
+	}
+	
+	/**
+	 * True if the texture's format can be written to a DDS file.
+	 */
+	public static boolean canWrite(PapaTexture texture) {
+		return canWrite(texture.getFormat());
+	}
+	
+	public static boolean canWrite(TextureSnapshot texture) {
+		return canWrite(texture.getFormat());
+	}
+	
+	private static boolean canWrite(String format) {
+		switch(format) {
+			case TextureSettings.R8G8B8A8:
+			case TextureSettings.R8G8B8X8:
+			case TextureSettings.B8G8R8A8:
+			case TextureSettings.DXT1:
+			case DXT3:
+			case TextureSettings.DXT5:
+			case TextureSettings.R8:
+				return true;
+			default:
+				return false;
+		}
+	}
+	
+	/**
+	 * The layout of a DDS file as stated by its header.
+	 */
+	public static class Header {
+		private final int width, height, mips;
+		private final String format;
+		private final boolean srgb;
+		
+		private Header(int width, int height, int mips, String format, boolean srgb) {
+			this.width = width;
+			this.height = height;
+			this.mips = mips;
+			this.format = format;
+			this.srgb = srgb;
+		}
+		
+		public int getWidth() {
+			return width;
+		}
+		
+		public int getHeight() {
+			return height;
+		}
+		
+		/**
+		 * The number of images including the top level.
+		 */
+		public int getNumImages() {
+			return mips;
+		}
+		
+		/**
+		 * The format of the stored data. B8G8R8X8 has no papa equivalent and is converted to R8G8B8X8 when read.
+		 */
+		public String getFormat() {
+			return format;
+		}
+		
+		public boolean getSRGB() {
+			return srgb;
+		}
+	}
+	
+	private static ByteBuffer readBytes(DataInputStream in, int length) throws IOException {
+		byte[] bytes = new byte[length];
+		try {
+			in.readFully(bytes);
+		} catch (EOFException e) {
+			throw new IOException("Unexpected end of DDS file.");
+		}
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		return buf;
+	}
+	
+	private static void putFourCC(ByteBuffer header, int fourCC) {
+		header.putInt(DDPF_FOURCC);
+		header.putInt(fourCC);
+		header.position(header.position() + 5 * 4); // bit count and masks are unused
+	}
+	
+	private static void putMasks(ByteBuffer header, int flags, int bitCount, int r, int g, int b, int a) {
+		header.putInt(flags);
+		header.putInt(0); // no fourCC
+		header.putInt(bitCount);
+		header.putInt(r);
+		header.putInt(g);
+		header.putInt(b);
+		header.putInt(a);
+	}
+	
+	private static int bytesPerPixel(String format) {
+		return format.equals(TextureSettings.R8) ? 1 : 4;
+	}
+	
+	private static boolean isSRGB(int dxgiFormat) {
+		switch(dxgiFormat) {
+			case DXGI_FORMAT_R8G8B8A8_UNORM_SRGB:
+			case DXGI_FORMAT_BC1_UNORM_SRGB:
+			case DXGI_FORMAT_BC2_UNORM_SRGB:
+			case DXGI_FORMAT_BC3_UNORM_SRGB:
+			case DXGI_FORMAT_B8G8R8A8_UNORM_SRGB:
+			case DXGI_FORMAT_B8G8R8X8_UNORM_SRGB:
+				return true;
+			default:
+				return false;
+		}
+	}
+	
+	private static String fromDXGIFormat(int dxgiFormat) throws IOException {
+		switch(dxgiFormat) {
+			case DXGI_FORMAT_R8G8B8A8_UNORM:
+			case DXGI_FORMAT_R8G8B8A8_UNORM_SRGB:
+				return TextureSettings.R8G8B8A8;
+			case DXGI_FORMAT_B8G8R8A8_UNORM:
+			case DXGI_FORMAT_B8G8R8A8_UNORM_SRGB:
+				return TextureSettings.B8G8R8A8;
+			case DXGI_FORMAT_B8G8R8X8_UNORM:
+			case DXGI_FORMAT_B8G8R8X8_UNORM_SRGB:
+				return B8G8R8X8;
+			case DXGI_FORMAT_BC1_UNORM:
+			case DXGI_FORMAT_BC1_UNORM_SRGB:
+				return TextureSettings.DXT1;
+			case DXGI_FORMAT_BC2_UNORM:
+			case DXGI_FORMAT_BC2_UNORM_SRGB:
+				return DXT3;
+			case DXGI_FORMAT_BC3_UNORM:
+			case DXGI_FORMAT_BC3_UNORM_SRGB:
+				return TextureSettings.DXT5;
+			case DXGI_FORMAT_R8_UNORM:
+				return TextureSettings.R8;
+			default:
+				throw new IOException("Unsupported DXGI format: "+dxgiFormat);
+		}
+	}
+	
+	/**
+	 * Returns the SRGB DXGI format for the papa format, or -1 if there is none and the legacy header has to be used.
+	 */
+	private static int toSRGBFormat(String format) {
+		switch(format) {
+			case TextureSettings.R8G8B8A8:
+				return DXGI_FORMAT_R8G8B8A8_UNORM_SRGB;
+			case TextureSettings.B8G8R8A8:
+				return DXGI_FORMAT_B8G8R8A8_UNORM_SRGB;
+			case TextureSettings.DXT1:
+				return DXGI_FORMAT_BC1_UNORM_SRGB;
+			case DXT3:
+				return DXGI_FORMAT_BC2_UNORM_SRGB;
+			case TextureSettings.DXT5:
+				return DXGI_FORMAT_BC3_UNORM_SRGB;
+			default:
+				return -1;
+		}
+	}
+	
+	private static String fourCCToString(int fourCC) {
+		return new String(new char[] {(char) (fourCC & 0xff), (char) ((fourCC>>>8) & 0xff), (char) ((fourCC>>>16) & 0xff), (char) (fourCC>>>24)});
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ *  This file is part of PapaFile
+ * 
+ *  File IO tools for Planetary Annihilation's papa files.
+ *  Copyright (C) 2020 Marcus Der <marcusder@hotmail.com>
+ * 
+ *  PapaFile is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  PapaFile is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU General Public License
+ *  along with PapaFile.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package papafile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Maps the components and string values of a file to the components which depend on them, so that finding the dependents
+ * of a component is a lookup instead of a question to every component in the file.<br>
+ * It is built on demand by {@link PapaFile} and discarded whenever the file or its links change.
+ */
+final class DependencyIndex {
+	
+	private final IdentityHashMap<PapaComponent, ArrayList<PapaComponent>> components = new IdentityHashMap<PapaComponent, ArrayList<PapaComponent>>();
+	private final HashMap<String, ArrayList<PapaComponent>> strings = new HashMap<String, ArrayList<PapaComponent>>();
+	
+	DependencyIndex(List<? extends PapaComponent> fileComponents) {
+		for(PapaComponent c : fileComponents)
+			c.indexDependencies(this);
+	}
+	
+	void addComponent(PapaComponent dependent, PapaComponent dependency) {
+		if(dependency != null)
+			add(components.computeIfAbsent(dependency, k -> new ArrayList<PapaComponent>(2)), dependent);
+	}
+	
+	/**
+	 * Records a dependency on the string with the given value. Strings are matched by value, as they are regenerated on build.
+	 */
+	void addString(PapaComponent dependent, String value) {
+		if(value != null && ! value.isEmpty())
+			add(strings.computeIfAbsent(value, k -> new ArrayList<PapaComponent>(2)), dependent);
+	}
+	
+	private static void add(ArrayList<PapaComponent> dependents, PapaComponent dependent) {
+		// a component reports all of its dependencies in one go, so a repeat is always the last entry
+		if(dependents.isEmpty() || dependents.get(dependents.size() - 1) != dependent)
+			dependents.add(dependent);
+	}
+	
+	List<PapaComponent> getDependents(PapaComponent comp) {
+		List<PapaComponent> dependents;
+		if(comp != null && comp.getClass() == PapaString.class)
+			dependents = strings.get(((PapaString) comp).getValue());
+		else
+			dependents = components.get(comp);
+		return dependents == null ? Collections.<PapaComponent>emptyList() : dependents;
+	}
+}
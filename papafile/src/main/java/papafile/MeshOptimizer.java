@@ -0,0 +1,456 @@
+/*
+ *  This file is part of PapaFile
+ * 
+ *  File IO tools for Planetary Annihilation's papa files.
+ *  Copyright (C) 2020 Marcus Der <marcusder@hotmail.com>
+ * 
+ *  PapaFile is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  PapaFile is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU General Public License
+ *  along with PapaFile.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package papafile;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import papafile.PapaMesh.PapaMaterialGroup;
+import papafile.VertexFormat.Attribute;
+
+/**
+ * Rewrites meshes for faster rendering. Within each mesh, duplicate vertices are merged, the triangles of every material
+ * group are reordered for the post-transform vertex cache using Tom Forsyth's linear speed algorithm, and the vertices
+ * are then stored in the order they are first used. Unreferenced vertices and degenerate triangles are dropped.<br>
+ * Buffers which are shared with another mesh are only changed as far as that is safe.
+ */
+public class MeshOptimizer {
+	
+	/** The size of the FIFO cache which is simulated for the average cache miss ratio. */
+	public static final int ACMR_CACHE_SIZE = 16;
+	
+	// https://tomforsyth1000.github.io/papers/fast_vert_cache_opt.html
+	private static final int CACHE_SIZE = 32;
+	private static final float CACHE_DECAY_POWER = 1.5f;
+	private static final float LAST_TRIANGLE_SCORE = 0.75f;
+	private static final float VALENCE_BOOST_SCALE = 2f;
+	private static final float VALENCE_BOOST_POWER = 0.5f;
+	
+	private MeshOptimizer() {}
+	
+	/**
+	 * Optimizes every mesh in the file.
+	 */
+	public static Result[] optimize(PapaFile p) {
+		Result[] results = new Result[p.getNumMeshes()];
+		for(int i = 0;i<results.length;i++)
+			results[i] = optimize(p.getMesh(i));
+		return results;
+	}
+	
+	public static Result optimize(PapaMesh mesh) {
+		PapaVertexBuffer vBuffer = mesh.getVertexBuffer();
+		PapaIndexBuffer iBuffer = mesh.getIndexBuffer();
+		int numVertices = vBuffer.getNumVertices();
+		int[] indices = iBuffer.getIndices();
+		
+		boolean vertexBufferShared = false;
+		PapaFile parent = mesh.getParent();
+		if(parent != null)
+			for(int i = 0;i<parent.getNumMeshes();i++) {
+				PapaMesh other = parent.getMesh(i);
+				if(other == mesh)
+					continue;
+				if(other.getIndexBuffer() == iBuffer)
+					return new Result(mesh, "index buffer is shared with another mesh");
+				if(other.getVertexBuffer() == vBuffer)
+					vertexBufferShared = true;
+			}
+		
+		PapaMaterialGroup[] groups = new PapaMaterialGroup[mesh.getNumMaterialGroups()];
+		for(int i = 0;i<groups.length;i++)
+			groups[i] = mesh.getMaterialGroup(i);
+		Arrays.sort(groups, Comparator.comparingInt(PapaMaterialGroup::getFirstIndex));
+		int end = 0;
+		for(PapaMaterialGroup g : groups) {
+			int size = g.getIndicesPerPrimitive();
+			if(size == 0)
+				return new Result(mesh, "unknown primitive type "+g.getPrimitiveType());
+			long last = g.getFirstIndex() + (long) g.getNumPrimitives() * size;
+			if(g.getFirstIndex() < end || last > indices.length)
+				return new Result(mesh, "material groups overlap or exceed the index buffer");
+			end = (int) last;
+		}
+		
+		Result result = new Result(mesh, numVertices, countTriangles(groups), computeACMR(indices, groups, numVertices));
+		
+		int[] canonical = vertexBufferShared ? null : findDuplicates(vBuffer);
+		int[] output = new int[indices.length];
+		int length = 0;
+		for(PapaMaterialGroup g : groups) {
+			int size = g.getIndicesPerPrimitive();
+			int first = g.getFirstIndex();
+			int count = g.getNumPrimitives() * size;
+			int[] group = new int[count];
+			for(int i = 0;i<count;i++)
+				group[i] = canonical == null ? indices[first + i] : canonical[indices[first + i]];
+			if(size == 3) {
+				count = removeDegenerate(group);
+				group = optimizeTriangles(group, count, numVertices);
+			}
+			System.arraycopy(group, 0, output, length, count);
+			g.setRange(length, count / size);
+			length += count;
+		}
+		output = Arrays.copyOf(output, length);
+		
+		int newVertices = numVertices;
+		if(!vertexBufferShared) {
+			int[] remap = new int[numVertices];
+			Arrays.fill(remap, -1);
+			int[] order = new int[numVertices];
+			newVertices = 0;
+			for(int i = 0;i<length;i++) {
+				int v = output[i];
+				if(remap[v] == -1) {
+					remap[v] = newVertices;
+					order[newVertices++] = v;
+				}
+				output[i] = remap[v];
+			}
+			vBuffer.reorder(Arrays.copyOf(order, newVertices));
+		}
+		iBuffer.setIndices(output);
+		
+		result.finish(newVertices, countTriangles(groups), computeACMR(output, groups, newVertices), vertexBufferShared);
+		return result;
+	}
+	
+	private static int countTriangles(PapaMaterialGroup[] groups) {
+		int triangles = 0;
+		for(PapaMaterialGroup g : groups)
+			if(g.getIndicesPerPrimitive() == 3)
+				triangles += g.getNumPrimitives();
+		return triangles;
+	}
+	
+	/**
+	 * The average number of vertices transformed per triangle over the triangle groups, simulating a FIFO cache of
+	 * {@link #ACMR_CACHE_SIZE} entries. The best possible value is about 0.5, the worst is 3.
+	 */
+	public static double computeACMR(int[] indices, PapaMaterialGroup[] groups, int numVertices) {
+		int[] insertedAt = new int[numVertices];
+		Arrays.fill(insertedAt, Integer.MIN_VALUE / 2);
+		int time = 0;
+		long misses = 0, triangles = 0;
+		for(PapaMaterialGroup g : groups) {
+			if(g.getIndicesPerPrimitive() != 3)
+				continue;
+			int first = g.getFirstIndex();
+			int count = g.getNumPrimitives() * 3;
+			for(int i = first;i<first + count;i++) {
+				int v = indices[i];
+				if(time - insertedAt[v] >= ACMR_CACHE_SIZE) {
+					insertedAt[v] = time++;
+					misses++;
+				}
+			}
+			triangles += g.getNumPrimitives();
+		}
+		return triangles == 0 ? 0 : (double) misses / triangles;
+	}
+	
+	/**
+	 * Maps every vertex to the first vertex with identical attributes.
+	 */
+	private static int[] findDuplicates(PapaVertexBuffer buffer) {
+		int n = buffer.getNumVertices();
+		ArrayList<float[]> floatStreams = new ArrayList<float[]>();
+		ArrayList<byte[]> byteStreams = new ArrayList<byte[]>();
+		ArrayList<Integer> floatCounts = new ArrayList<Integer>(), byteCounts = new ArrayList<Integer>();
+		for(Attribute a : Attribute.values()) {
+			if(!buffer.getVertexFormat().has(a))
+				continue;
+			if(a.type == VertexFormat.Type.FLOAT) {
+				floatStreams.add(buffer.getFloatAttribute(a));
+				floatCounts.add(a.count);
+			} else {
+				byteStreams.add(buffer.getByteAttribute(a));
+				byteCounts.add(a.count);
+			}
+		}
+		
+		int[] hashes = new int[n];
+		for(int s = 0;s<floatStreams.size();s++) {
+			float[] stream = floatStreams.get(s);
+			int count = floatCounts.get(s);
+			for(int v = 0, i = 0;v<n;v++)
+				for(int c = 0;c<count;c++)
+					hashes[v] = hashes[v] * 31 + Float.floatToRawIntBits(stream[i++]);
+		}
+		for(int s = 0;s<byteStreams.size();s++) {
+			byte[] stream = byteStreams.get(s);
+			int count = byteCounts.get(s);
+			for(int v = 0, i = 0;v<n;v++)
+				for(int c = 0;c<count;c++)
+					hashes[v] = hashes[v] * 31 + stream[i++];
+		}
+		
+		int tableSize = Integer.highestOneBit(Math.max(n, 1) * 2 - 1) << 1;
+		int[] table = new int[tableSize];
+		Arrays.fill(table, -1);
+		int[] canonical = new int[n];
+		for(int v = 0;v<n;v++) {
+			int h = hashes[v];
+			h ^= h>>>16;
+			int slot = (h * 0x9e3779b9) & (tableSize - 1);
+			while(true) {
+				int other = table[slot];
+				if(other == -1) {
+					table[slot] = v;
+					canonical[v] = v;
+					break;
+				}
+				if(hashes[other] == hashes[v] && sameVertex(other, v, floatStreams, floatCounts, byteStreams, byteCounts)) {
+					canonical[v] = other;
+					break;
+				}
+				slot = (slot + 1) & (tableSize - 1);
+			}
+		}
+		return canonical;
+	}
+	
+	private static boolean sameVertex(int a, int b, ArrayList<float[]> floatStreams, ArrayList<Integer> floatCounts,
+										ArrayList<byte[]> byteStreams, ArrayList<Integer> byteCounts) {
+		for(int s = 0;s<floatStreams.size();s++) {
+			float[] stream = floatStreams.get(s);
+			int count = floatCounts.get(s);
+			for(int c = 0;c<count;c++)
+				if(Float.floatToRawIntBits(stream[a * count + c]) != Float.floatToRawIntBits(stream[b * count + c]))
+					return false;
+		}
+		for(int s = 0;s<byteStreams.size();s++) {
+			byte[] stream = byteStreams.get(s);
+			int count = byteCounts.get(s);
+			for(int c = 0;c<count;c++)
+				if(stream[a * count + c] != stream[b * count + c])
+					return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Compacts the triangles which reference a vertex more than once out of the list, returning the remaining index count.
+	 */
+	private static int removeDegenerate(int[] triangles) {
+		int length = 0;
+		for(int i = 0;i<triangles.length;i+=3) {
+			int a = triangles[i], b = triangles[i + 1], c = triangles[i + 2];
+			if(a == b || b == c || a == c)
+				continue;
+			triangles[length++] = a;
+			triangles[length++] = b;
+			triangles[length++] = c;
+		}
+		return length;
+	}
+	
+	/**
+	 * Reorders a triangle list for the vertex cache.
+	 */
+	private static int[] optimizeTriangles(int[] indices, int length, int numVertices) {
+		int numTriangles = length / 3;
+		int[] result = new int[length];
+		if(numTriangles == 0)
+			return result;
+		
+		// the triangles using each vertex
+		int[] remaining = new int[numVertices];
+		for(int i = 0;i<length;i++)
+			remaining[indices[i]]++;
+		int[] adjacencyStart = new int[numVertices + 1];
+		for(int v = 0;v<numVertices;v++)
+			adjacencyStart[v + 1] = adjacencyStart[v] + remaining[v];
+		int[] adjacency = new int[length];
+		int[] fill = Arrays.copyOf(adjacencyStart, numVertices);
+		for(int i = 0;i<length;i++)
+			adjacency[fill[indices[i]]++] = i / 3;
+		
+		float[] vertexScore = new float[numVertices];
+		for(int v = 0;v<numVertices;v++)
+			if(remaining[v] != 0)
+				vertexScore[v] = vertexScore(-1, remaining[v]);
+		float[] triangleScore = new float[numTriangles];
+		boolean[] emitted = new boolean[numTriangles];
+		for(int t = 0;t<numTriangles;t++)
+			triangleScore[t] = vertexScore[indices[t * 3]] + vertexScore[indices[t * 3 + 1]] + vertexScore[indices[t * 3 + 2]];
+		
+		int[] cache = new int[CACHE_SIZE + 3], newCache = new int[CACHE_SIZE + 3];
+		int cacheLength = 0;
+		int best = 0;
+		for(int t = 1;t<numTriangles;t++)
+			if(triangleScore[t] > triangleScore[best])
+				best = t;
+		int cursor = 0;
+		
+		for(int out = 0;out<numTriangles;out++) {
+			if(best == -1) { // nothing in the cache is connected to a remaining triangle, take the next one in order
+				while(emitted[cursor])
+					cursor++;
+				best = cursor;
+			}
+			emitted[best] = true;
+			int newLength = 0;
+			for(int k = 0;k<3;k++) {
+				int v = indices[best * 3 + k];
+				result[out * 3 + k] = v;
+				newCache[newLength++] = v;
+				// remove the triangle from the vertex adjacency
+				int start = adjacencyStart[v], last = start + remaining[v] - 1;
+				for(int j = start;j<=last;j++)
+					if(adjacency[j] == best) {
+						adjacency[j] = adjacency[last];
+						break;
+					}
+				remaining[v]--;
+			}
+			for(int i = 0;i<cacheLength;i++) {
+				int v = cache[i];
+				if(v != newCache[0] && v != newCache[1] && v != newCache[2])
+					newCache[newLength++] = v;
+			}
+			int[] swap = cache;
+			cache = newCache;
+			newCache = swap;
+			cacheLength = newLength;
+			
+			// rescore the vertices in the cache, including those which just fell out
+			for(int i = 0;i<cacheLength;i++) {
+				int v = cache[i];
+				int position = i < CACHE_SIZE ? i : -1;
+				float score = remaining[v] == 0 ? -1 : vertexScore(position, remaining[v]);
+				float delta = score - vertexScore[v];
+				vertexScore[v] = score;
+				for(int j = adjacencyStart[v], e = j + remaining[v];j<e;j++)
+					triangleScore[adjacency[j]] += delta;
+			}
+			cacheLength = Math.min(cacheLength, CACHE_SIZE);
+			
+			best = -1;
+			float bestScore = -1;
+			for(int i = 0;i<cacheLength;i++) {
+				int v = cache[i];
+				for(int j = adjacencyStart[v], e = j + remaining[v];j<e;j++) {
+					int t = adjacency[j];
+					if(triangleScore[t] > bestScore) {
+						bestScore = triangleScore[t];
+						best = t;
+					}
+				}
+			}
+		}
+		return result;
+	}
+	
+	private static float vertexScore(int cachePosition, int remainingTriangles) {
+		float score = 0;
+		if(cachePosition >= 0) {
+			if(cachePosition < 3)
+				score = LAST_TRIANGLE_SCORE; // the last triangle's vertices get a fixed score so that it is not favoured
+			else {
+				float scale = 1f / (CACHE_SIZE - 3);
+				score = (float) Math.pow(1f - (cachePosition - 3) * scale, CACHE_DECAY_POWER);
+			}
+		}
+		return score + VALENCE_BOOST_SCALE * (float) Math.pow(remainingTriangles, -VALENCE_BOOST_POWER);
+	}
+	
+	/**
+	 * The outcome of optimizing a single mesh.
+	 */
+	public static class Result {
+		private final PapaMesh mesh;
+		private final String skipReason;
+		private int verticesBefore, verticesAfter;
+		private int trianglesBefore, trianglesAfter;
+		private double acmrBefore, acmrAfter;
+		private boolean vertexBufferShared;
+		
+		private Result(PapaMesh mesh, String skipReason) {
+			this.mesh = mesh;
+			this.skipReason = skipReason;
+		}
+		
+		private Result(PapaMesh mesh, int vertices, int triangles, double acmr) {
+			this.mesh = mesh;
+			this.skipReason = null;
+			this.verticesBefore = this.verticesAfter = vertices;
+			this.trianglesBefore = this.trianglesAfter = triangles;
+			this.acmrBefore = this.acmrAfter = acmr;
+		}
+		
+		private void finish(int vertices, int triangles, double acmr, boolean vertexBufferShared) {
+			this.verticesAfter = vertices;
+			this.trianglesAfter = triangles;
+			this.acmrAfter = acmr;
+			this.vertexBufferShared = vertexBufferShared;
+		}
+		
+		public PapaMesh getMesh() {
+			return mesh;
+		}
+		
+		public boolean wasSkipped() {
+			return skipReason != null;
+		}
+		
+		/**
+		 * Why the mesh was left unchanged, or null if it was optimized.
+		 */
+		public String getSkipReason() {
+			return skipReason;
+		}
+		
+		public int getVerticesBefore() {
+			return verticesBefore;
+		}
+		
+		public int getVerticesAfter() {
+			return verticesAfter;
+		}
+		
+		public int getTrianglesBefore() {
+			return trianglesBefore;
+		}
+		
+		public int getTrianglesAfter() {
+			return trianglesAfter;
+		}
+		
+		public double getACMRBefore() {
+			return acmrBefore;
+		}
+		
+		public double getACMRAfter() {
+			return acmrAfter;
+		}
+		
+		@Override
+		public String toString() {
+			if(skipReason != null)
+				return "Skipped: "+skipReason;
+			return String.format("Vertices %d -> %d, triangles %d -> %d, ACMR %.3f -> %.3f%s", verticesBefore, verticesAfter,
+									trianglesBefore, trianglesAfter, acmrBefore, acmrAfter,
+									vertexBufferShared ? " (vertex buffer is shared, vertices were kept)" : "");
+		}
+	}
+}
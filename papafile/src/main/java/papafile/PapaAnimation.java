@@ -14,16 +14,20 @@ public class PapaAnimation extends PapaComponent {
 	private int fpsDenominator;
 	private float fps;
 	private String[] boneMap;
-	private PapaFrame[] frames;
+	private int numFrames;
+	private float[] transforms;
 	private int framePosition;
 	
+	/** The number of floats making up the transform of one bone in one frame. */
+	public static final int TRANSFORM_SIZE = 7;
+	
 	public PapaAnimation(String name, short numBones, int numFrames, int fpsNumerator, int fpsDenominator, byte[] boneData, byte[] transformData, PapaFile p) {
 		this.name=name;
 		this.parent = p;
 		this.fpsNumerator=fpsNumerator;
 		this.fpsDenominator=fpsDenominator;
 		this.fps = (float)fpsNumerator / (float)fpsDenominator;
-		this.frames = new PapaFrame[numFrames];
+		this.numFrames = numFrames;
 		
 		ByteBuffer boneBuf = ByteBuffer.wrap(boneData);
 		boneBuf.order(ByteOrder.LITTLE_ENDIAN);
@@ -36,14 +40,8 @@ public class PapaAnimation extends PapaComponent {
 
 	private void decodeAll(short numBones, int numFrames, ByteBuffer boneBuf, ByteBuffer transformBuf) {
 		boneMap = decodeBones(numBones, boneBuf);
-		for(int f = 0;f<numFrames;f++) {
-			PapaAnimationTransform[] transforms = new PapaAnimationTransform[numBones];
-			for(int b = 0;b<numBones;b++) {
-				transforms[b] = new PapaAnimationTransform(transformBuf);
-			}
-			this.frames[f] = new PapaFrame(transforms, this);
-		}
-			
+		transforms = new float[numFrames * numBones * TRANSFORM_SIZE];
+		transformBuf.asFloatBuffer().get(transforms);
 	}
 
 	private String[] decodeBones(short numBones, ByteBuffer boneBuf) {
@@ -53,87 +51,76 @@ public class PapaAnimation extends PapaComponent {
 		return bones;
 	}
 	
-	private static class PapaAnimationTransform {
-		private float[] location = new float[3];
-		private float[] rotation = new float[4];
-		
-		private PapaAnimationTransform(ByteBuffer buf) {
-			for(int i =0;i<3;i++)
-				location[i] = buf.getFloat();
-			for(int i =0;i<4;i++)
-				rotation[i] = buf.getFloat();
-		}
-		
-		public float[] getLocation() {
-			return this.location;
-		}
-		
-		public float[] getRotation() {
-			return this.rotation;
-		}
+	public String getName() {
+		return name;
 	}
 	
-	public static class PapaFrame extends PapaSubcomponent{
-		//private PapaAnimation animation;
-		private PapaAnimationTransform[] transforms;
-		
-		private PapaFrame(PapaAnimationTransform[] transforms, PapaAnimation animation) {
-			//this.animation = animation;
-			this.transforms = transforms;
-		}
-
-		@Override
-		protected BuildNotification[] validate() {
-			return new BuildNotification[0];
-		}
-
-		@Override
-		protected int headerSize() {
-			return 0;
-		}
-
-		@Override
-		protected int bodySize() {
-			return 28*transforms.length;
-		}
-
-		@Override
-		protected void build() {
-			byte[] headerBytes = new byte[headerSize()];
-			header = ByteBuffer.wrap(headerBytes);
-			header.order(ByteOrder.LITTLE_ENDIAN);
-			
-			byte[] dataBytes = new byte[bodySize()];
-			super.data = ByteBuffer.wrap(dataBytes);
-			super.data.order(ByteOrder.LITTLE_ENDIAN);
-			for(PapaAnimationTransform t : transforms) {
-				for(float f : t.getLocation())
-					super.data.putFloat(f);
-				for(float f : t.getRotation())
-					super.data.putFloat(f);
-			}
-		}
-
-		@Override
-		protected void applyOffset(int offset) {}
-
-		@Override
-		protected boolean isDependentOn(PapaComponent other) {
-			return false;
-		}
-
-		@Override
-		protected PapaComponent[] getDependencies() {
-			return new PapaComponent[0];
-		}
-
-		@Override
-		public void flush() {
-			//animation = null;
-			transforms = null;
-		}
+	public int getNumFrames() {
+		return numFrames;
 	}
 	
+	public int getNumBones() {
+		return boneMap.length;
+	}
+	
+	public String getBoneName(int bone) {
+		return boneMap[bone];
+	}
+	
+	/**
+	 * The position in {@link #getTransforms()} at which the transform of the bone in the given frame starts.
+	 */
+	public int transformIndex(int frame, int bone) {
+		if(frame < 0 || frame >= numFrames || bone < 0 || bone >= boneMap.length)
+			throw new IndexOutOfBoundsException("Frame "+frame+", bone "+bone+" out of bounds for "+numFrames+" frames of "+boneMap.length+" bones");
+		return (frame * boneMap.length + bone) * TRANSFORM_SIZE;
+	}
+	
+	/**
+	 * Copies the location of the bone in the given frame into out, which must hold 3 floats.
+	 */
+	public float[] getLocation(int frame, int bone, float[] out) {
+		System.arraycopy(transforms, transformIndex(frame, bone), out, 0, 3);
+		return out;
+	}
+	
+	/**
+	 * Copies the rotation quaternion of the bone in the given frame into out as x, y, z, w. out must hold 4 floats.
+	 */
+	public float[] getRotation(int frame, int bone, float[] out) {
+		System.arraycopy(transforms, transformIndex(frame, bone) + 3, out, 0, 4);
+		return out;
+	}
+	
+	/**
+	 * All transforms of the animation, ordered by frame and then bone. Each is {@link #TRANSFORM_SIZE} floats, the location
+	 * followed by the rotation. The array is the storage of this animation and is returned without copying.
+	 */
+	public float[] getTransforms() {
+		return transforms;
+	}
+	
+	public int getFpsNumerator() {
+		return fpsNumerator;
+	}
+	
+	public int getFpsDenominator() {
+		return fpsDenominator;
+	}
+	
+	/**
+	 * Replaces the frames and frame rate of this animation.
+	 */
+	void setFrames(int numFrames, int fpsNumerator, int fpsDenominator, float[] transforms) {
+		if(transforms.length != numFrames * boneMap.length * TRANSFORM_SIZE)
+			throw new IllegalArgumentException("Expected "+numFrames * boneMap.length * TRANSFORM_SIZE+" floats, got "+transforms.length);
+		this.numFrames = numFrames;
+		this.fpsNumerator = fpsNumerator;
+		this.fpsDenominator = fpsDenominator;
+		this.fps = (float)fpsNumerator / (float)fpsDenominator;
+		this.transforms = transforms;
+	}
+
 	public float getFps() {
 		return this.fps;
 	}
@@ -154,10 +141,7 @@ public class PapaAnimation extends PapaComponent {
 
 	@Override
 	protected int bodySize() {
-		int size = 0;
-		for(PapaFrame f : frames)
-			size+=f.componentSize();
-		return ceilEight(size) + 2 * boneMap.length;
+		return ceilEight(2 * boneMap.length) + transforms.length * 4; // the transforms start 8 byte aligned after the bone names
 	}
 
 	@Override
@@ -176,15 +160,11 @@ public class PapaAnimation extends PapaComponent {
 		data.position(ceilEight(data.position()));
 		framePosition = data.position();
 		
-		for(PapaFrame f : frames) {
-			f.build();
-			data.put(f.getDataBytes());
-		}
-		
+		data.asFloatBuffer().put(transforms);
 		
 		header.putShort((short) parent.getOrMakeString(name));
 		header.putShort((short) boneMap.length);
-		header.putInt(frames.length);
+		header.putInt(numFrames);
 		header.putInt(fpsNumerator);
 		header.putInt(fpsDenominator);
 	}
@@ -195,7 +175,7 @@ public class PapaAnimation extends PapaComponent {
 			header.putLong(-1);
 		else
 			header.putLong(offset);
-		if(frames.length==0)
+		if(numFrames==0)
 			header.putLong(-1);
 		else
 			header.putLong(offset + framePosition);
@@ -219,6 +199,13 @@ public class PapaAnimation extends PapaComponent {
 		}
 		return false;
 	}
+	
+	@Override
+	void indexDependencies(DependencyIndex index) {
+		for(String s : boneMap)
+			index.addString(this, s);
+		index.addString(this, name);
+	}
 
 	@Override
 	public void detach() {
@@ -271,10 +258,8 @@ public class PapaAnimation extends PapaComponent {
 
 	@Override
 	public void flush() {
-		for(PapaFrame f : frames)
-			f.flush();
 		parent = null;
-		frames = null;
+		transforms = null;
 		boneMap = null;
 	}
 
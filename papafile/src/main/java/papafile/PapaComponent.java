@@ -70,6 +70,12 @@ public abstract class PapaComponent {
 	
 	protected abstract boolean isDependentOn(PapaComponent other);
 	
+	/**
+	 * Reports everything {@link #isDependentOn(PapaComponent)} would accept to the index. Components which depend on
+	 * nothing keep this empty default.
+	 */
+	void indexDependencies(DependencyIndex index) {}
+
 	public abstract void detach();
 	
 	public void attach(PapaFile newParent) {
@@ -50,7 +50,8 @@ public class PapaFile extends PapaComponent{
 	private ArrayList<PapaAnimation> animations = new ArrayList<PapaAnimation>();
 	
 	private HashMap<String, PapaFile> linkedFiles = new HashMap<String, PapaFile>();
-	
+	private DependencyIndex dependencyIndex; // built on demand, cleared whenever a component or link changes
+
 	private byte[] fileBytes = null;
 	
 	private static final boolean ERROR_IF_NOT_FOUND = false;
@@ -311,10 +312,15 @@ public class PapaFile extends PapaComponent{
 		return this.buildNotifications;
 	}
 	
-	public void generateLinkedTexture(PapaTexture t) {
+	/**
+	 * Moves the texture into a new linked file named after it, and returns the linked texture which takes its place here.
+	 */
+	public PapaTexture generateLinkedTexture(PapaTexture t) {
 		PapaFile p = generateLinkedFile(t.getName());
 		t.attach(p);
-		addTexture(new PapaTexture(t.getName(),this));
+		PapaTexture link = new PapaTexture(t.getName(),this);
+		addTexture(link);
+		return link;
 	}
 	
 	private PapaFile generateLinkedFile(String name) {
@@ -322,6 +328,7 @@ public class PapaFile extends PapaComponent{
 		p.setLocationRelative(name);
 		linkedFiles.put(name, p);
 		p.attach(this);
+		invalidateDependencies();
 		return p;
 	}
 
@@ -337,6 +344,7 @@ public class PapaFile extends PapaComponent{
 			throw new IllegalArgumentException("Every linked texture must point to a unique file");
 		}*/
 		linkedFiles.put(name, link);
+		invalidateDependencies();
 	}
 
 	private String getLinkName(PapaFile other) {
@@ -642,12 +650,14 @@ public class PapaFile extends PapaComponent{
 			removeDependencies(other);
 		String key = getLinkName(other);
 		linkedFiles.remove(key);
+		invalidateDependencies();
 	}
 	
 	public void reloadLinkedTextures() {
 		for(PapaFile p : getLinkedFiles())
 			p.flush();
 		linkedFiles.clear();
+		invalidateDependencies();
 		for(PapaTexture t : textures)
 			if(t.isLinked()) {
 				try {
@@ -676,11 +686,59 @@ public class PapaFile extends PapaComponent{
 			recalculateFileSize();
 	}
 	
+	/**
+	 * Regenerates the string table and returns the size the file would have if it was built now.
+	 */
+	long calculateFileSize() {
+		recalculateFileSize();
+		return fileSize;
+	}
+	
+	/**
+	 * Puts the components of one type, given by its flag, in a new order. The order must hold exactly the components of
+	 * that type.
+	 */
+	void reorder(int type, List<? extends PapaComponent> order) {
+		if(Integer.bitCount(type) != 1 || type > ANIMATION)
+			throw new IllegalArgumentException("Invalid component type "+type);
+		@SuppressWarnings("unchecked")
+		ArrayList<PapaComponent> list = (ArrayList<PapaComponent>) components[Integer.numberOfTrailingZeros(type)];
+		Set<PapaComponent> present = Collections.newSetFromMap(new IdentityHashMap<PapaComponent, Boolean>());
+		present.addAll(list);
+		Set<PapaComponent> ordered = Collections.newSetFromMap(new IdentityHashMap<PapaComponent, Boolean>());
+		ordered.addAll(order);
+		if(order.size() != list.size() || ordered.size() != list.size() || !present.containsAll(ordered))
+			throw new IllegalArgumentException("The new order does not hold the same components");
+		list.clear();
+		list.addAll(order);
+		recalculateFileSize();
+	}
+	
 	private void recalculateFileSize() {
+		invalidateDependencies();
 		validateAll();
 		fileSize = calcFileSize();
 	}
 	
+	/**
+	 * Discards the dependency index of this file, and of the files it is linked into since their textures depend on the
+	 * contents of this one.
+	 */
+	void invalidateDependencies() {
+		dependencyIndex = null;
+		if(isLinked && parentFile != null)
+			parentFile.invalidateDependencies();
+	}
+	
+	private DependencyIndex getDependencyIndex() {
+		DependencyIndex index = dependencyIndex;
+		if(index == null) {
+			index = new DependencyIndex(getAllComponents());
+			dependencyIndex = index;
+		}
+		return index;
+	}
+
 	@Override
 	public PapaFile getParent() {
 		return parentFile;
@@ -1238,7 +1296,7 @@ public class PapaFile extends PapaComponent{
 		int totalSize = PapaFile.HEADER_SIZE;
 		for(int i=0;i<components.length;i++)
 			for(PapaComponent comp : components[i])
-				totalSize+=comp.componentSize();
+				totalSize+=comp.headerSize() + ceilEight(comp.bodySize()); // bodies are padded as in buildComponent
 		return totalSize;
 	}
 	
@@ -1360,6 +1418,7 @@ public class PapaFile extends PapaComponent{
 		fileName = null;
 		linkedFiles = null;
 		parentFile = null;
+		dependencyIndex = null;
 	}
 	
 	@Override
@@ -1470,11 +1529,25 @@ public class PapaFile extends PapaComponent{
 		parentFile = newParent;
 	}
 
+	/**
+	 * Not implemented, always returns null. Use {@link #snapshot()} for a copy which can be handed to other threads.
+	 */
 	@Override
 	public PapaFile duplicate() {
 		return null;
 	}
-
+	
+	/**
+	 * Takes a read only copy of this file and the files linked to it, which can be read from any thread. Texture data,
+	 * buffers, skeletons and animation frames are shared rather than copied. See {@link PapaFileSnapshot}.
+	 */
+	public PapaFileSnapshot snapshot() {
+		int[] counts = new int[components.length];
+		for(int i = 0;i<counts.length;i++)
+			counts[i] = components[i].size();
+		return new PapaFileSnapshot(this, counts, linkedFiles);
+	}
+	
 	public PapaFile getEmptyCopy() {
 		PapaFile p = new PapaFile();
 		p.setFileLocation(fileLocation);
@@ -1507,11 +1580,7 @@ public class PapaFile extends PapaComponent{
 	}
 	
 	public PapaComponent[] getAllDependentsFor(PapaComponent comp) {
-		ArrayList<PapaComponent> fileComponents = getAllComponents();
-		ArrayList<PapaComponent> dependents = new ArrayList<PapaComponent>();
-		for(PapaComponent p : fileComponents)
-			if(p.isDependentOn(comp))
-				dependents.add(p);
+		ArrayList<PapaComponent> dependents = new ArrayList<PapaComponent>(getDependencyIndex().getDependents(comp));
 		
 		if(isLinkedFile())
 			for(PapaComponent p : getParent().getAllDependentsFor(comp))
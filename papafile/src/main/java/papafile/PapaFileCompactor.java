@@ -0,0 +1,312 @@
+/*
+ *  This file is part of PapaFile
+ * 
+ *  File IO tools for Planetary Annihilation's papa files.
+ *  Copyright (C) 2020 Marcus Der <marcusder@hotmail.com>
+ * 
+ *  PapaFile is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  PapaFile is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU General Public License
+ *  along with PapaFile.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package papafile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import papafile.PapaMesh.PapaMaterialGroup;
+
+/**
+ * Removes redundancy from a file without changing what it describes. Identical vertex buffers, index buffers and
+ * materials are merged, components which nothing refers to are removed, 32 bit index buffers are narrowed to 16 bits
+ * where possible, and the buffers, materials and textures are stored in the order the meshes use them so that a reader
+ * walks the file front to back.<br>
+ * Components are only considered unreferenced when something in the file could refer to them: textures are kept in files
+ * without materials, materials in files without meshes, and meshes and skeletons in files without models. Unused strings
+ * are dropped whenever the string table is regenerated, which the final size measurement does.
+ */
+public class PapaFileCompactor {
+	
+	private PapaFileCompactor() {}
+	
+	public static Result compact(PapaFile p) {
+		Result r = new Result(p.getFileSize(), p.getNumStrings());
+		
+		for(int i = 0;i<p.getNumIBuffers();i++)
+			if(p.getIndexBuffer(i).compact())
+				r.indexBuffersNarrowed++;
+		
+		r.vertexBuffersMerged = mergeVertexBuffers(p);
+		r.indexBuffersMerged = mergeIndexBuffers(p);
+		r.materialsMerged = mergeMaterials(p);
+		prune(p, r);
+		reorder(p);
+		
+		r.finish(p.calculateFileSize(), p.getNumStrings());
+		return r;
+	}
+	
+	private static int mergeVertexBuffers(PapaFile p) {
+		HashMap<Integer, List<PapaVertexBuffer>> seen = new HashMap<Integer, List<PapaVertexBuffer>>();
+		IdentityHashMap<PapaVertexBuffer, PapaVertexBuffer> replace = new IdentityHashMap<PapaVertexBuffer, PapaVertexBuffer>();
+		for(int i = 0;i<p.getNumVBuffers();i++) {
+			PapaVertexBuffer b = p.getVertexBuffer(i);
+			List<PapaVertexBuffer> candidates = seen.computeIfAbsent(b.contentHashCode(), k -> new ArrayList<PapaVertexBuffer>(1));
+			PapaVertexBuffer match = null;
+			for(PapaVertexBuffer c : candidates)
+				if(c.sameContent(b))
+					match = c;
+			if(match == null)
+				candidates.add(b);
+			else
+				replace.put(b, match);
+		}
+		for(int i = 0;i<p.getNumMeshes();i++) {
+			PapaMesh m = p.getMesh(i);
+			PapaVertexBuffer target = replace.get(m.getVertexBuffer());
+			if(target != null)
+				m.setBuffers(target, m.getIndexBuffer());
+		}
+		return replace.size();
+	}
+	
+	private static int mergeIndexBuffers(PapaFile p) {
+		HashMap<Integer, List<PapaIndexBuffer>> seen = new HashMap<Integer, List<PapaIndexBuffer>>();
+		IdentityHashMap<PapaIndexBuffer, PapaIndexBuffer> replace = new IdentityHashMap<PapaIndexBuffer, PapaIndexBuffer>();
+		for(int i = 0;i<p.getNumIBuffers();i++) {
+			PapaIndexBuffer b = p.getIndexBuffer(i);
+			List<PapaIndexBuffer> candidates = seen.computeIfAbsent(b.contentHashCode(), k -> new ArrayList<PapaIndexBuffer>(1));
+			PapaIndexBuffer match = null;
+			for(PapaIndexBuffer c : candidates)
+				if(c.sameContent(b))
+					match = c;
+			if(match == null)
+				candidates.add(b);
+			else
+				replace.put(b, match);
+		}
+		for(int i = 0;i<p.getNumMeshes();i++) {
+			PapaMesh m = p.getMesh(i);
+			PapaIndexBuffer target = replace.get(m.getIndexBuffer());
+			if(target != null)
+				m.setBuffers(m.getVertexBuffer(), target);
+		}
+		return replace.size();
+	}
+	
+	private static int mergeMaterials(PapaFile p) {
+		HashMap<Integer, List<PapaMaterial>> seen = new HashMap<Integer, List<PapaMaterial>>();
+		IdentityHashMap<PapaMaterial, PapaMaterial> replace = new IdentityHashMap<PapaMaterial, PapaMaterial>();
+		for(int i = 0;i<p.getNumMaterials();i++) {
+			PapaMaterial m = p.getMaterial(i);
+			List<PapaMaterial> candidates = seen.computeIfAbsent(m.contentHashCode(), k -> new ArrayList<PapaMaterial>(1));
+			PapaMaterial match = null;
+			for(PapaMaterial c : candidates)
+				if(c.sameContent(m))
+					match = c;
+			if(match == null)
+				candidates.add(m);
+			else
+				replace.put(m, match);
+		}
+		for(int i = 0;i<p.getNumMeshes();i++) {
+			PapaMesh m = p.getMesh(i);
+			for(int j = 0;j<m.getNumMaterialGroups();j++) {
+				PapaMaterialGroup g = m.getMaterialGroup(j);
+				PapaMaterial target = replace.get(g.getMaterial());
+				if(target != null)
+					g.setMaterial(target);
+			}
+		}
+		return replace.size();
+	}
+	
+	/**
+	 * Removes unreferenced components, dependents first so that whatever they alone used is removed as well.
+	 */
+	private static void prune(PapaFile p, Result r) {
+		boolean hasModels = p.getNumModels() != 0;
+		if(hasModels) {
+			r.meshesRemoved = removeUnreferenced(p, meshes(p));
+			r.skeletonsRemoved = removeUnreferenced(p, skeletons(p));
+		}
+		if(p.getNumMeshes() != 0) { // buffers and materials in a file without meshes are what the file is for
+			r.vertexBuffersRemoved = removeUnreferenced(p, vertexBuffers(p));
+			r.indexBuffersRemoved = removeUnreferenced(p, indexBuffers(p));
+			r.materialsRemoved = removeUnreferenced(p, materials(p));
+		}
+		if(p.getNumMaterials() != 0) {
+			List<PapaTexture> textures = textures(p);
+			r.texturesRemoved = removeUnreferenced(p, textures);
+			for(PapaFile linked : p.getLinkedFiles()) // a removed linked texture leaves its file behind
+				if(!p.isLinkedFileReferenced(linked))
+					linked.detach();
+		}
+	}
+	
+	private static int removeUnreferenced(PapaFile p, List<? extends PapaComponent> list) {
+		int count = 0;
+		for(PapaComponent c : list)
+			if(p.getAllDependentsFor(c).length == 0) {
+				c.detach();
+				count++;
+			}
+		return count;
+	}
+	
+	/**
+	 * Orders the buffers and materials by their first use in the meshes, and the textures by their first use in the
+	 * materials. Components which are not used keep their relative order at the end.
+	 */
+	private static void reorder(PapaFile p) {
+		List<PapaVertexBuffer> vBuffers = new ArrayList<PapaVertexBuffer>();
+		List<PapaIndexBuffer> iBuffers = new ArrayList<PapaIndexBuffer>();
+		List<PapaMaterial> materials = new ArrayList<PapaMaterial>();
+		for(PapaMesh m : meshes(p)) {
+			vBuffers.add(m.getVertexBuffer());
+			iBuffers.add(m.getIndexBuffer());
+			for(int j = 0;j<m.getNumMaterialGroups();j++)
+				materials.add(m.getMaterialGroup(j).getMaterial());
+		}
+		List<PapaTexture> textures = new ArrayList<PapaTexture>();
+		for(PapaMaterial m : materials(p))
+			for(int j = 0;j<m.textureParameters.size();j++)
+				textures.add(m.textureParameters.get(j).getTextureReference());
+		
+		p.reorder(PapaFile.VBUF, firstUse(vBuffers, vertexBuffers(p)));
+		p.reorder(PapaFile.IBUF, firstUse(iBuffers, indexBuffers(p)));
+		p.reorder(PapaFile.MATERIAL, firstUse(materials, materials(p)));
+		p.reorder(PapaFile.TEXTURE, firstUse(textures, textures(p)));
+	}
+	
+	private static <T> List<T> firstUse(List<T> uses, List<T> all) {
+		Set<T> present = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+		present.addAll(all);
+		Set<T> added = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+		List<T> order = new ArrayList<T>(all.size());
+		for(T t : uses)
+			if(t != null && present.contains(t) && added.add(t))
+				order.add(t);
+		for(T t : all)
+			if(added.add(t))
+				order.add(t);
+		return order;
+	}
+	
+	private static List<PapaTexture> textures(PapaFile p) {
+		List<PapaTexture> list = new ArrayList<PapaTexture>();
+		for(int i = 0;i<p.getNumTextures();i++)
+			list.add(p.getTexture(i));
+		return list;
+	}
+	
+	private static List<PapaVertexBuffer> vertexBuffers(PapaFile p) {
+		List<PapaVertexBuffer> list = new ArrayList<PapaVertexBuffer>();
+		for(int i = 0;i<p.getNumVBuffers();i++)
+			list.add(p.getVertexBuffer(i));
+		return list;
+	}
+	
+	private static List<PapaIndexBuffer> indexBuffers(PapaFile p) {
+		List<PapaIndexBuffer> list = new ArrayList<PapaIndexBuffer>();
+		for(int i = 0;i<p.getNumIBuffers();i++)
+			list.add(p.getIndexBuffer(i));
+		return list;
+	}
+	
+	private static List<PapaMaterial> materials(PapaFile p) {
+		List<PapaMaterial> list = new ArrayList<PapaMaterial>();
+		for(int i = 0;i<p.getNumMaterials();i++)
+			list.add(p.getMaterial(i));
+		return list;
+	}
+	
+	private static List<PapaMesh> meshes(PapaFile p) {
+		List<PapaMesh> list = new ArrayList<PapaMesh>();
+		for(int i = 0;i<p.getNumMeshes();i++)
+			list.add(p.getMesh(i));
+		return list;
+	}
+	
+	private static List<PapaSkeleton> skeletons(PapaFile p) {
+		List<PapaSkeleton> list = new ArrayList<PapaSkeleton>();
+		for(int i = 0;i<p.getNumSkeletons();i++)
+			list.add(p.getSkeleton(i));
+		return list;
+	}
+	
+	public static class Result {
+		private final long bytesBefore;
+		private final int stringsBefore;
+		private long bytesAfter;
+		private int stringsAfter;
+		private int indexBuffersNarrowed;
+		private int vertexBuffersMerged, indexBuffersMerged, materialsMerged;
+		private int texturesRemoved, vertexBuffersRemoved, indexBuffersRemoved, materialsRemoved, meshesRemoved, skeletonsRemoved;
+		
+		private Result(long bytesBefore, int stringsBefore) {
+			this.bytesBefore = bytesBefore;
+			this.stringsBefore = stringsBefore;
+		}
+		
+		private void finish(long bytesAfter, int stringsAfter) {
+			this.bytesAfter = bytesAfter;
+			this.stringsAfter = stringsAfter;
+		}
+		
+		public long getBytesBefore() {
+			return bytesBefore;
+		}
+		
+		public long getBytesAfter() {
+			return bytesAfter;
+		}
+		
+		public long getBytesSaved() {
+			return bytesBefore - bytesAfter;
+		}
+		
+		public int getStringsRemoved() {
+			return stringsBefore - stringsAfter;
+		}
+		
+		public int getIndexBuffersNarrowed() {
+			return indexBuffersNarrowed;
+		}
+		
+		/**
+		 * The number of vertex buffers, index buffers and materials which were replaced by an identical one.
+		 */
+		public int getComponentsMerged() {
+			return vertexBuffersMerged + indexBuffersMerged + materialsMerged;
+		}
+		
+		/**
+		 * The number of unreferenced components which were removed, including those left over from merging.
+		 */
+		public int getComponentsRemoved() {
+			return texturesRemoved + vertexBuffersRemoved + indexBuffersRemoved + materialsRemoved + meshesRemoved + skeletonsRemoved;
+		}
+		
+		@Override
+		public String toString() {
+			return bytesBefore+" -> "+bytesAfter+" bytes ("+getBytesSaved()+" saved), merged "+vertexBuffersMerged+" vertex buffers, "
+					+indexBuffersMerged+" index buffers and "+materialsMerged+" materials, removed "+texturesRemoved+" textures, "
+					+vertexBuffersRemoved+" vertex buffers, "+indexBuffersRemoved+" index buffers, "+materialsRemoved+" materials, "
+					+meshesRemoved+" meshes, "+skeletonsRemoved+" skeletons and "+getStringsRemoved()+" strings, narrowed "
+					+indexBuffersNarrowed+" index buffers";
+		}
+	}
+}
@@ -0,0 +1,653 @@
+/*
+ *  This file is part of PapaFile
+ * 
+ *  File IO tools for Planetary Annihilation's papa files.
+ *  Copyright (C) 2020 Marcus Der <marcusder@hotmail.com>
+ * 
+ *  PapaFile is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  PapaFile is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU General Public License
+ *  along with PapaFile.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package papafile;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import papafile.PapaMesh.PapaMaterialGroup;
+import papafile.PapaSkeleton.Hierarchy;
+import papafile.PapaTexture.StripConsumer;
+import papafile.VertexFormat.Attribute;
+
+/**
+ * A read only copy of a {@link PapaFile} taken at one point in time. It can be shared between any number of threads while
+ * the original keeps being edited.<br>
+ * Taking a snapshot is cheap: the encoded texture data, the vertex and index arrays, the animation transforms and the
+ * skeleton hierarchies are shared with the live file rather than copied. This is safe because the library replaces these
+ * arrays instead of writing to them, so callers must not write to the arrays returned here either. Images are decoded
+ * on every request, so the returned images belong to the caller.<br>
+ * Materials and models are present as counts alone.<br>
+ * The snapshot has to be taken on the thread which edits the file, or while nothing else modifies it.
+ */
+public final class PapaFileSnapshot {
+	
+	private final String fileName, filePath, relativeFileName, signature, version;
+	private final int[] counts;
+	private final String[] strings;
+	private final TextureSnapshot[] textures;
+	private final VertexBufferSnapshot[] vertexBuffers;
+	private final IndexBufferSnapshot[] indexBuffers;
+	private final MeshSnapshot[] meshes;
+	private final SkeletonSnapshot[] skeletons;
+	private final AnimationSnapshot[] animations;
+	private final Map<String, PapaFileSnapshot> linkedFiles;
+	
+	PapaFileSnapshot(PapaFile p, int[] counts, Map<String, PapaFile> linkedFiles) {
+		this.fileName = p.getFileName();
+		this.filePath = p.getFilePath();
+		this.relativeFileName = p.getRelativeFileName();
+		this.signature = p.getSignature();
+		this.version = p.getVersion();
+		this.counts = counts;
+		
+		this.strings = new String[p.getNumStrings()];
+		for(int i = 0;i<this.strings.length;i++)
+			this.strings[i] = p.getString(i).getValue();
+		
+		HashMap<String, PapaFileSnapshot> links = new HashMap<String, PapaFileSnapshot>();
+		for(Entry<String, PapaFile> e : linkedFiles.entrySet())
+			links.put(e.getKey(), e.getValue().snapshot());
+		this.linkedFiles = Collections.unmodifiableMap(links);
+		
+		this.textures = new TextureSnapshot[p.getNumTextures()];
+		for(int i = 0;i<this.textures.length;i++) {
+			PapaTexture t = p.getTexture(i);
+			TextureSnapshot linkedTexture = null;
+			if(t.isLinked()) {
+				PapaFileSnapshot link = this.linkedFiles.get(t.getName());
+				if(link != null && link.getNumTextures() == 1)
+					linkedTexture = link.getTexture(0);
+			}
+			this.textures[i] = new TextureSnapshot(t, linkedTexture);
+		}
+		
+		IdentityHashMap<PapaVertexBuffer, VertexBufferSnapshot> vertexMap = new IdentityHashMap<PapaVertexBuffer, VertexBufferSnapshot>();
+		this.vertexBuffers = new VertexBufferSnapshot[p.getNumVBuffers()];
+		for(int i = 0;i<this.vertexBuffers.length;i++) {
+			this.vertexBuffers[i] = new VertexBufferSnapshot(p.getVertexBuffer(i));
+			vertexMap.put(p.getVertexBuffer(i), this.vertexBuffers[i]);
+		}
+		
+		IdentityHashMap<PapaIndexBuffer, IndexBufferSnapshot> indexMap = new IdentityHashMap<PapaIndexBuffer, IndexBufferSnapshot>();
+		this.indexBuffers = new IndexBufferSnapshot[p.getNumIBuffers()];
+		for(int i = 0;i<this.indexBuffers.length;i++) {
+			this.indexBuffers[i] = new IndexBufferSnapshot(p.getIndexBuffer(i));
+			indexMap.put(p.getIndexBuffer(i), this.indexBuffers[i]);
+		}
+		
+		IdentityHashMap<PapaMaterial, Integer> materialMap = new IdentityHashMap<PapaMaterial, Integer>();
+		for(int i = 0;i<p.getNumMaterials();i++)
+			materialMap.put(p.getMaterial(i), i);
+		
+		this.meshes = new MeshSnapshot[p.getNumMeshes()];
+		for(int i = 0;i<this.meshes.length;i++) {
+			PapaMesh m = p.getMesh(i);
+			this.meshes[i] = new MeshSnapshot(m, vertexMap.get(m.getVertexBuffer()), indexMap.get(m.getIndexBuffer()), materialMap);
+		}
+		
+		this.skeletons = new SkeletonSnapshot[p.getNumSkeletons()];
+		for(int i = 0;i<this.skeletons.length;i++)
+			this.skeletons[i] = new SkeletonSnapshot(p.getSkeleton(i));
+		
+		this.animations = new AnimationSnapshot[p.getNumAnimations()];
+		for(int i = 0;i<this.animations.length;i++)
+			this.animations[i] = new AnimationSnapshot(p.getAnimation(i));
+	}
+	
+	public String getFileName() {
+		return fileName;
+	}
+	
+	public String getFilePath() {
+		return filePath;
+	}
+	
+	public String getRelativeFileName() {
+		return relativeFileName;
+	}
+	
+	public String getSignature() {
+		return signature;
+	}
+	
+	public String getVersion() {
+		return version;
+	}
+	
+	/**
+	 * The number of components of the given type, one of the single type flags such as {@link PapaFile#TEXTURE}.
+	 */
+	public int getNumComponents(int type) {
+		int index = Integer.numberOfTrailingZeros(type);
+		if(Integer.bitCount(type) != 1 || index >= counts.length)
+			throw new IllegalArgumentException("Invalid component type "+type);
+		return counts[index];
+	}
+	
+	public int getNumStrings() {
+		return strings.length;
+	}
+	
+	public String getString(int index) {
+		return strings[index];
+	}
+	
+	public int getNumTextures() {
+		return textures.length;
+	}
+	
+	public TextureSnapshot getTexture(int index) {
+		return textures[index];
+	}
+	
+	public List<TextureSnapshot> getTextures() {
+		return Collections.unmodifiableList(Arrays.asList(textures));
+	}
+	
+	public int getNumVBuffers() {
+		return vertexBuffers.length;
+	}
+	
+	public VertexBufferSnapshot getVertexBuffer(int index) {
+		return vertexBuffers[index];
+	}
+	
+	public int getNumIBuffers() {
+		return indexBuffers.length;
+	}
+	
+	public IndexBufferSnapshot getIndexBuffer(int index) {
+		return indexBuffers[index];
+	}
+	
+	public int getNumMeshes() {
+		return meshes.length;
+	}
+	
+	public MeshSnapshot getMesh(int index) {
+		return meshes[index];
+	}
+	
+	public int getNumSkeletons() {
+		return skeletons.length;
+	}
+	
+	public SkeletonSnapshot getSkeleton(int index) {
+		return skeletons[index];
+	}
+	
+	public int getNumAnimations() {
+		return animations.length;
+	}
+	
+	public AnimationSnapshot getAnimation(int index) {
+		return animations[index];
+	}
+	
+	public Map<String, PapaFileSnapshot> getLinkedFiles() {
+		return linkedFiles;
+	}
+	
+	@Override
+	public String toString() {
+		return fileName;
+	}
+	
+	/**
+	 * A read only copy of a {@link PapaTexture}.
+	 */
+	public static final class TextureSnapshot {
+		
+		private final String name, formatName;
+		private final boolean linked;
+		private final TextureSnapshot linkedTexture;
+		private final byte format;
+		private final boolean srgb;
+		private final int width, height, numImages;
+		private final byte[] data; // shared with the live texture, never written
+		private final TextureCodec codec;
+		
+		TextureSnapshot(PapaTexture t, TextureSnapshot linkedTexture) {
+			this.name = t.getName();
+			this.linked = t.isLinked();
+			if(linked) {
+				this.linkedTexture = linkedTexture;
+				format = 0;
+				formatName = null;
+				srgb = false;
+				width = height = numImages = 0;
+				data = null;
+				codec = null;
+			} else {
+				this.linkedTexture = null;
+				format = t.getFormatIndex();
+				formatName = t.getFormat();
+				srgb = t.getSRGB();
+				width = t.getWidth();
+				height = t.getHeight();
+				numImages = t.getNumImages();
+				data = t.getData();
+				codec = t.getCodec();
+			}
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		public boolean isLinked() {
+			return linked;
+		}
+		
+		/**
+		 * The texture this one refers to, or null if the texture is not linked or the linked file was not loaded.
+		 */
+		public TextureSnapshot getLinkedTexture() {
+			return linkedTexture;
+		}
+		
+		public String getFormat() {
+			checkLinked();
+			return formatName;
+		}
+		
+		byte getFormatIndex() {
+			checkLinked();
+			return format;
+		}
+		
+		byte[] getData() {
+			checkLinked();
+			return data;
+		}
+		
+		public boolean getSRGB() {
+			checkLinked();
+			return srgb;
+		}
+		
+		public boolean supportsAlpha() {
+			checkLinked();
+			return codec.supportsAlpha();
+		}
+		
+		public int getNumImages() {
+			checkLinked();
+			return numImages;
+		}
+		
+		public int getWidth() {
+			checkLinked();
+			return width;
+		}
+		
+		public int getHeight() {
+			checkLinked();
+			return height;
+		}
+		
+		public int getWidth(int mipLevel) {
+			checkLinked();
+			return PapaTexture.mipSize(width, mipLevel);
+		}
+		
+		public int getHeight(int mipLevel) {
+			checkLinked();
+			return PapaTexture.mipSize(height, mipLevel);
+		}
+		
+		/**
+		 * Decodes the image or mipmap at the given index into a new image.
+		 */
+		public BufferedImage getImage(int index) {
+			return codec.decode(imageBuffer(index), getWidth(index), getHeight(index));
+		}
+		
+		/**
+		 * Decodes an image a strip at a time, as {@link PapaTexture#decodeStrips(int, int, StripConsumer)} does.
+		 */
+		public void decodeStrips(int index, int minRows, StripConsumer consumer) throws IOException {
+			ByteBuffer buf = imageBuffer(index);
+			int w = getWidth(index);
+			int h = getHeight(index);
+			int block = codec.getBlockHeight();
+			int rows = Math.min(Math.max(block, (minRows + block - 1) / block * block), h);
+			int[] strip = new int[w * rows];
+			for(int y = 0;y<h;y+=rows) {
+				int n = Math.min(rows, h - y);
+				codec.decodeDisplayARGB(buf, w, n, strip);
+				consumer.accept(strip, y, n);
+			}
+		}
+		
+		private ByteBuffer imageBuffer(int index) {
+			checkLinked();
+			if(index < 0 || index >= numImages)
+				throw new IndexOutOfBoundsException("Image "+index+" of "+numImages);
+			ByteBuffer buf = ByteBuffer.wrap(data); // a buffer per call, the position is not shared
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			buf.position(codec.calcSize(width, height, index - 1));
+			return buf;
+		}
+		
+		private void checkLinked() {
+			if(linked)
+				throw new IllegalStateException("Texture "+name+" is linked and holds no image data");
+		}
+		
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+	
+	/**
+	 * A read only copy of a {@link PapaVertexBuffer}. The attribute arrays are shared with the live buffer.
+	 */
+	public static final class VertexBufferSnapshot {
+		
+		private final VertexFormat vertexFormat;
+		private final int numVertices;
+		private final float[][] floats = new float[Attribute.values().length][];
+		private final byte[][] bytes = new byte[Attribute.values().length][];
+		
+		private VertexBufferSnapshot(PapaVertexBuffer v) {
+			this.vertexFormat = v.getVertexFormat();
+			this.numVertices = v.getNumVertices();
+			for(Attribute a : Attribute.values()) {
+				if(a.type == VertexFormat.Type.FLOAT)
+					floats[a.ordinal()] = v.getFloatAttribute(a);
+				else
+					bytes[a.ordinal()] = v.getByteAttribute(a);
+			}
+		}
+		
+		public String getFormat() {
+			return vertexFormat.getName();
+		}
+		
+		public VertexFormat getVertexFormat() {
+			return vertexFormat;
+		}
+		
+		public int getNumVertices() {
+			return numVertices;
+		}
+		
+		/**
+		 * The values of a float attribute as {@link PapaVertexBuffer#getFloatAttribute(Attribute)} returns them, or null if
+		 * the format does not have the attribute.
+		 */
+		public float[] getFloatAttribute(Attribute attribute) {
+			if(attribute.type != VertexFormat.Type.FLOAT)
+				throw new IllegalArgumentException(attribute+" is not a float attribute");
+			return floats[attribute.ordinal()];
+		}
+		
+		/**
+		 * The values of a byte attribute as {@link PapaVertexBuffer#getByteAttribute(Attribute)} returns them, or null if
+		 * the format does not have the attribute.
+		 */
+		public byte[] getByteAttribute(Attribute attribute) {
+			if(attribute.type != VertexFormat.Type.UNSIGNED_BYTE)
+				throw new IllegalArgumentException(attribute+" is not a byte attribute");
+			return bytes[attribute.ordinal()];
+		}
+	}
+	
+	/**
+	 * A read only copy of a {@link PapaIndexBuffer}. The index array is shared with the live buffer.
+	 */
+	public static final class IndexBufferSnapshot {
+		
+		private final short[] shortIndices; // exactly one of these is set, as in the live buffer
+		private final int[] intIndices;
+		
+		private IndexBufferSnapshot(PapaIndexBuffer i) {
+			this.shortIndices = i.getShortIndices();
+			this.intIndices = i.getIntIndices();
+		}
+		
+		public String getFormat() {
+			return shortIndices != null ? "IF_UInt16" : "IF_UInt32";
+		}
+		
+		public int getNumIndices() {
+			return shortIndices != null ? shortIndices.length : intIndices.length;
+		}
+		
+		public int getIndex(int index) {
+			return shortIndices != null ? shortIndices[index] & 0xffff : intIndices[index];
+		}
+		
+		/**
+		 * Returns a copy of all indices.
+		 */
+		public int[] getIndices() {
+			if(shortIndices == null)
+				return intIndices.clone();
+			int[] result = new int[shortIndices.length];
+			for(int i = 0;i<result.length;i++)
+				result[i] = shortIndices[i] & 0xffff;
+			return result;
+		}
+	}
+	
+	/**
+	 * A read only copy of a {@link PapaMesh}, referring to the buffer snapshots of the same file.
+	 */
+	public static final class MeshSnapshot {
+		
+		private final VertexBufferSnapshot vertexBuffer;
+		private final IndexBufferSnapshot indexBuffer;
+		private final MaterialGroupSnapshot[] materialGroups;
+		
+		private MeshSnapshot(PapaMesh m, VertexBufferSnapshot vertexBuffer, IndexBufferSnapshot indexBuffer, Map<PapaMaterial, Integer> materials) {
+			this.vertexBuffer = vertexBuffer;
+			this.indexBuffer = indexBuffer;
+			this.materialGroups = new MaterialGroupSnapshot[m.getNumMaterialGroups()];
+			for(int i = 0;i<materialGroups.length;i++)
+				materialGroups[i] = new MaterialGroupSnapshot(m.getMaterialGroup(i), materials);
+		}
+		
+		/**
+		 * The vertex buffer of the mesh, or null if the buffer does not belong to the file.
+		 */
+		public VertexBufferSnapshot getVertexBuffer() {
+			return vertexBuffer;
+		}
+		
+		/**
+		 * The index buffer of the mesh, or null if the buffer does not belong to the file.
+		 */
+		public IndexBufferSnapshot getIndexBuffer() {
+			return indexBuffer;
+		}
+		
+		public int getNumMaterialGroups() {
+			return materialGroups.length;
+		}
+		
+		public MaterialGroupSnapshot getMaterialGroup(int index) {
+			return materialGroups[index];
+		}
+	}
+	
+	/**
+	 * A read only copy of a {@link PapaMaterialGroup}.
+	 */
+	public static final class MaterialGroupSnapshot {
+		
+		private final String name, primitiveType;
+		private final int materialIndex, firstIndex, numPrimitives, indicesPerPrimitive;
+		
+		private MaterialGroupSnapshot(PapaMaterialGroup g, Map<PapaMaterial, Integer> materials) {
+			this.name = g.getName();
+			this.primitiveType = g.getPrimitiveType();
+			Integer material = materials.get(g.getMaterial());
+			this.materialIndex = material == null ? -1 : material;
+			this.firstIndex = g.getFirstIndex();
+			this.numPrimitives = g.getNumPrimitives();
+			this.indicesPerPrimitive = g.getIndicesPerPrimitive();
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		public String getPrimitiveType() {
+			return primitiveType;
+		}
+		
+		/**
+		 * The index of the material in the file, or -1 if the group has no material of the file.
+		 */
+		public int getMaterialIndex() {
+			return materialIndex;
+		}
+		
+		public int getFirstIndex() {
+			return firstIndex;
+		}
+		
+		public int getNumPrimitives() {
+			return numPrimitives;
+		}
+		
+		/**
+		 * The number of indices making up each primitive, or 0 if the primitive type is unknown.
+		 */
+		public int getIndicesPerPrimitive() {
+			return indicesPerPrimitive;
+		}
+	}
+	
+	/**
+	 * A read only copy of a {@link PapaSkeleton}. The flattened hierarchy is shared with the live skeleton, which builds a
+	 * new one whenever its bones change.
+	 */
+	public static final class SkeletonSnapshot {
+		
+		private final Hierarchy hierarchy;
+		private final String[] boneNames; // in hierarchy order
+		
+		private SkeletonSnapshot(PapaSkeleton s) {
+			this.hierarchy = s.getHierarchy();
+			this.boneNames = new String[hierarchy.getNumBones()];
+			for(int i = 0;i<boneNames.length;i++)
+				boneNames[i] = hierarchy.getBone(i).getName();
+		}
+		
+		public int getNumBones() {
+			return boneNames.length;
+		}
+		
+		/**
+		 * The name of the bone at the given position of the hierarchy.
+		 */
+		public String getBoneName(int index) {
+			return boneNames[index];
+		}
+		
+		/**
+		 * The hierarchy as it was when the snapshot was taken. Its arrays are safe to read from any thread, but the bones
+		 * returned by {@link Hierarchy#getBone(int)} are the live ones. Use {@link #getBoneName(int)} for their names.
+		 */
+		public Hierarchy getHierarchy() {
+			return hierarchy;
+		}
+	}
+	
+	/**
+	 * A read only copy of a {@link PapaAnimation}. The packed transforms are shared with the live animation.
+	 */
+	public static final class AnimationSnapshot {
+		
+		private final String name;
+		private final String[] boneNames;
+		private final int numFrames, fpsNumerator, fpsDenominator;
+		private final float[] transforms;
+		
+		private AnimationSnapshot(PapaAnimation a) {
+			this.name = a.getName();
+			this.boneNames = new String[a.getNumBones()];
+			for(int i = 0;i<boneNames.length;i++)
+				boneNames[i] = a.getBoneName(i);
+			this.numFrames = a.getNumFrames();
+			this.fpsNumerator = a.getFpsNumerator();
+			this.fpsDenominator = a.getFpsDenominator();
+			this.transforms = a.getTransforms();
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		public int getNumFrames() {
+			return numFrames;
+		}
+		
+		public int getNumBones() {
+			return boneNames.length;
+		}
+		
+		public String getBoneName(int bone) {
+			return boneNames[bone];
+		}
+		
+		public int getFpsNumerator() {
+			return fpsNumerator;
+		}
+		
+		public int getFpsDenominator() {
+			return fpsDenominator;
+		}
+		
+		public float getFps() {
+			return (float) fpsNumerator / (float) fpsDenominator;
+		}
+		
+		/**
+		 * The position in {@link #getTransforms()} at which the transform of the bone in the given frame starts.
+		 */
+		public int transformIndex(int frame, int bone) {
+			if(frame < 0 || frame >= numFrames || bone < 0 || bone >= boneNames.length)
+				throw new IndexOutOfBoundsException("Frame "+frame+", bone "+bone+" out of bounds for "+numFrames+" frames of "+boneNames.length+" bones");
+			return (frame * boneNames.length + bone) * PapaAnimation.TRANSFORM_SIZE;
+		}
+		
+		/**
+		 * All transforms, laid out as {@link PapaAnimation#getTransforms()} describes. The array is shared, not copied.
+		 */
+		public float[] getTransforms() {
+			return transforms;
+		}
+	}
+}
@@ -22,6 +22,7 @@ package papafile;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 
 import papafile.PapaFile.BuildNotification;
 
@@ -30,7 +31,11 @@ public class PapaIndexBuffer extends PapaComponent {
 	
 	private byte format;
 	
-	private int[] indices;
+	// exactly one of these holds the indices, depending on the format
+	private short[] shortIndices;
+	private int[] intIndices;
+	
+	private static final int MAX_SHORT_INDEX = 0xfffe; // 0xffff is left out as it is the strip restart index in most APIs
 	
 	public String getFormat() {
 		return format==0 ? "IF_UInt16" : "IF_UInt32";
@@ -59,38 +64,101 @@ public class PapaIndexBuffer extends PapaComponent {
 	private void decodeAll(int numIndices, ByteBuffer buf, boolean isShort) throws IOException {
 		checkData(buf, numIndices, isShort);
 		
-		this.indices = isShort ? readShorts(buf, numIndices) : readInts(buf, numIndices);
+		if(isShort) {
+			shortIndices = new short[numIndices];
+			buf.asShortBuffer().get(shortIndices);
+		} else {
+			intIndices = new int[numIndices];
+			buf.asIntBuffer().get(intIndices);
+		}
 	}
 	
-	private int[] readShorts(ByteBuffer buf, int numIndices) {
-		int[] vals = new int[numIndices];
-		for(int i =0;i<numIndices;i++)
-			vals[i] = buf.getShort() & 0xffff;
-		return vals;
+	public int getNumIndices() {
+		return format==0 ? shortIndices.length : intIndices.length;
 	}
 	
-	private int[] readInts(ByteBuffer buf, int numIndices) {
-		int[] vals = new int[numIndices];
-		for(int i =0;i<numIndices;i++)
-			vals[i] = buf.getInt();
-		return vals;
+	public int getIndex(int index) {
+		return format==0 ? shortIndices[index] & 0xffff : intIndices[index];
 	}
 	
-	public int getNumIndices() {
-		return indices.length;
+	/** The 16 bit storage, not copied, or null if the indices are 32 bit. */
+	short[] getShortIndices() {
+		return shortIndices;
 	}
 	
-	public int getIndex(int index) {
-		return indices[index];
+	/** The 32 bit storage, not copied, or null if the indices are 16 bit. */
+	int[] getIntIndices() {
+		return intIndices;
+	}
+	
+	/**
+	 * Returns a copy of all indices.
+	 */
+	public int[] getIndices() {
+		if(format!=0)
+			return intIndices.clone();
+		int[] result = new int[shortIndices.length];
+		for(int i = 0;i<result.length;i++)
+			result[i] = shortIndices[i] & 0xffff;
+		return result;
+	}
+	
+	/**
+	 * Replaces the indices, storing them as 16 bit values when they fit.
+	 */
+	public void setIndices(int[] indices) {
+		int max = 0;
+		for(int i : indices) {
+			if(i < 0)
+				throw new IllegalArgumentException("Negative index "+i);
+			max = Math.max(max, i);
+		}
+		store(indices, max <= MAX_SHORT_INDEX);
+	}
+	
+	private void store(int[] indices, boolean isShort) {
+		if(isShort) {
+			shortIndices = new short[indices.length];
+			for(int i = 0;i<indices.length;i++)
+				shortIndices[i] = (short) indices[i];
+			intIndices = null;
+			format = 0;
+		} else {
+			intIndices = indices.clone();
+			shortIndices = null;
+			format = 1;
+		}
+	}
+	
+	/**
+	 * True if both buffers hold the same indices in the same width.
+	 */
+	boolean sameContent(PapaIndexBuffer other) {
+		return format == other.format && Arrays.equals(shortIndices, other.shortIndices) && Arrays.equals(intIndices, other.intIndices);
+	}
+	
+	int contentHashCode() {
+		return format == 0 ? Arrays.hashCode(shortIndices) : Arrays.hashCode(intIndices);
+	}
+	
+	/**
+	 * Narrows 32 bit indices to 16 bits when every index fits, returning whether the width changed.
+	 */
+	boolean compact() {
+		if(format==0)
+			return false;
+		for(int i : intIndices)
+			if(i < 0 || i > MAX_SHORT_INDEX)
+				return false;
+		store(intIndices, true);
+		return true;
 	}
 	
 	private void encode(ByteBuffer writer) {
 		if(format==0)
-			for(int i =0;i<indices.length;i++)
-				writer.putShort((short) indices[i]);
+			writer.asShortBuffer().put(shortIndices);
 		else
-			for(int i =0;i<indices.length;i++)
-				writer.putInt(indices[i]);
+			writer.asIntBuffer().put(intIndices);
 	}
 
 
@@ -106,7 +174,7 @@ public class PapaIndexBuffer extends PapaComponent {
 
 	@Override
 	protected int bodySize() {
-		return format==0 ? indices.length * 2 : indices.length*4;
+		return format==0 ? shortIndices.length * 2 : intIndices.length*4;
 	}
 
 	@Override
@@ -115,6 +183,7 @@ public class PapaIndexBuffer extends PapaComponent {
 		header = ByteBuffer.wrap(headerBytes);
 		header.order(ByteOrder.LITTLE_ENDIAN);
 		
+		compact();
 		super.data = ByteBuffer.wrap(new byte[bodySize()]);
 		super.data.order(ByteOrder.LITTLE_ENDIAN);
 		encode(super.data);
@@ -123,7 +192,7 @@ public class PapaIndexBuffer extends PapaComponent {
 		header.put((byte) 0);
 		header.put((byte) 0);
 		header.put((byte) 0);
-		header.putInt(indices.length);
+		header.putInt(getNumIndices());
 		header.putLong((long)super.data.limit());
 	}
 
@@ -185,7 +254,8 @@ public class PapaIndexBuffer extends PapaComponent {
 	@Override
 	public void flush() {
 		parent = null;
-		this.indices=null;
+		this.shortIndices=null;
+		this.intIndices=null;
 	}
 
 }
@@ -22,6 +22,7 @@ package papafile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import papafile.PapaFile.BuildNotification;
 
@@ -38,12 +39,69 @@ public class PapaMaterial extends PapaComponent {
 	
 	public void setName(String name) {
 		this.name=name;
+		invalidateDependencies();
+	}
+	
+	private void invalidateDependencies() {
+		if(parent != null)
+			parent.invalidateDependencies();
 	}
 	
 	public String getName() {
 		return this.name;
 	}
 	
+	/**
+	 * True if both materials use the same shader with the same parameter names and values, and the same texture instances.
+	 */
+	boolean sameContent(PapaMaterial other) {
+		if(!name.equals(other.name) || vectorParameters.size() != other.vectorParameters.size()
+				|| textureParameters.size() != other.textureParameters.size() || matrixParameters.size() != other.matrixParameters.size())
+			return false;
+		for(int i = 0;i<vectorParameters.size();i++) {
+			PapaVectorParameter a = vectorParameters.get(i), b = other.vectorParameters.get(i);
+			if(!a.name.equals(b.name) || !Arrays.equals(a.values, b.values))
+				return false;
+		}
+		for(int i = 0;i<textureParameters.size();i++) {
+			PapaTextureParameter a = textureParameters.get(i), b = other.textureParameters.get(i);
+			if(!a.name.equals(b.name) || a.tex != b.tex)
+				return false;
+		}
+		for(int i = 0;i<matrixParameters.size();i++) {
+			PapaMatrixParameter a = matrixParameters.get(i), b = other.matrixParameters.get(i);
+			if(!a.name.equals(b.name) || !Arrays.deepEquals(a.values, b.values))
+				return false;
+		}
+		return true;
+	}
+	
+	int contentHashCode() {
+		int result = name.hashCode();
+		for(PapaVectorParameter p : vectorParameters)
+			result = 31 * result + Arrays.hashCode(p.values);
+		for(PapaTextureParameter p : textureParameters)
+			result = 31 * result + System.identityHashCode(p.tex);
+		for(PapaMatrixParameter p : matrixParameters)
+			result = 31 * result + Arrays.deepHashCode(p.values);
+		return result;
+	}
+	
+	/**
+	 * Points every texture parameter which uses one texture at another, returning how many were changed.
+	 */
+	int replaceTexture(PapaTexture from, PapaTexture to) {
+		int count = 0;
+		for(PapaTextureParameter p : textureParameters)
+			if(p.tex == from) {
+				p.tex = to;
+				count++;
+			}
+		if(count != 0)
+			invalidateDependencies();
+		return count;
+	}
+
 	public PapaMaterial(String name, short numVectorParams, short numTextureParams, short numMatrixParams, byte[] vectorParams,
 							byte[] textureParams, byte[] matrixParams, PapaFile p) {
 		this.parent=p;
@@ -114,6 +172,8 @@ public class PapaMaterial extends PapaComponent {
 		
 		public void setName(String newName) {
 			this.name= newName;
+			if(material != null)
+				material.invalidateDependencies();
 		}
 		
 		public float get(int index) {
@@ -197,6 +257,8 @@ public class PapaMaterial extends PapaComponent {
 		
 		public void setName(String newName) {
 			this.name= newName;
+			if(material != null)
+				material.invalidateDependencies();
 		}
 		
 		public void setTexture(PapaTexture tex) {
@@ -204,6 +266,13 @@ public class PapaMaterial extends PapaComponent {
 				throw new IllegalArgumentException("Texture does not belong to the same PapaFile");
 		}
 		
+		/**
+		 * The texture instance this parameter refers to, without looking it up by name.
+		 */
+		PapaTexture getTextureReference() {
+			return tex;
+		}
+		
 		public PapaTexture getTexture() { //TODO: this now has a dependency
 			return material.parent.getTexture(tex.getName());
 		}
@@ -293,6 +362,8 @@ public class PapaMaterial extends PapaComponent {
 		
 		public void setName(String newName) {
 			this.name= newName;
+			if(material != null)
+				material.invalidateDependencies();
 		}
 		
 		public float get(int x, int y) {
@@ -471,7 +542,20 @@ public class PapaMaterial extends PapaComponent {
 			return ((PapaString)other).getValue().equals(name);
 		return false;
 	}
-
+	
+	@Override
+	void indexDependencies(DependencyIndex index) {
+		for(PapaVectorParameter p : vectorParameters)
+			index.addString(this, p.name);
+		for(PapaTextureParameter p : textureParameters) {
+			index.addString(this, p.name);
+			index.addComponent(this, p.tex);
+		}
+		for(PapaMatrixParameter p : matrixParameters)
+			index.addString(this, p.name);
+		index.addString(this, name);
+	}
+	
 	@Override
 	public void detach() {
 		if(parent==null)
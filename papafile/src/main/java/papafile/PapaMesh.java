@@ -28,6 +28,29 @@ public class PapaMesh extends PapaComponent {
 		for(int i = 0;i<materialGroups;i++)
 			this.materialGroups.add(new PapaMaterialGroup(buf, this));
 	}
+	
+	public PapaVertexBuffer getVertexBuffer() {
+		return vBuffer;
+	}
+	
+	public PapaIndexBuffer getIndexBuffer() {
+		return iBuffer;
+	}
+	
+	public int getNumMaterialGroups() {
+		return materialGroups.size();
+	}
+	
+	public PapaMaterialGroup getMaterialGroup(int index) {
+		return materialGroups.get(index);
+	}
+	
+	void setBuffers(PapaVertexBuffer vBuffer, PapaIndexBuffer iBuffer) {
+		this.vBuffer = vBuffer;
+		this.iBuffer = iBuffer;
+		if(parent != null)
+			parent.invalidateDependencies();
+	}
 
 	public static class PapaMaterialGroup extends PapaSubcomponent{
 		private PapaMesh mesh;
@@ -50,6 +73,40 @@ public class PapaMesh extends PapaComponent {
 			buf.get();
 		}
 		
+		public String getName() {
+			return name;
+		}
+		
+		public int getFirstIndex() {
+			return firstIndex;
+		}
+		
+		public int getNumPrimitives() {
+			return numPrimitives;
+		}
+		
+		/**
+		 * The number of indices making up each primitive, or 0 if the primitive type is unknown.
+		 */
+		public int getIndicesPerPrimitive() {
+			return primitiveType>=0 && primitiveType<=2 ? primitiveType + 1 : 0;
+		}
+		
+		void setRange(int firstIndex, int numPrimitives) {
+			this.firstIndex = firstIndex;
+			this.numPrimitives = numPrimitives;
+		}
+		
+		public PapaMaterial getMaterial() {
+			return material;
+		}
+		
+		void setMaterial(PapaMaterial material) {
+			this.material = material;
+			if(mesh.parent != null)
+				mesh.parent.invalidateDependencies();
+		}
+		
 		public String getPrimitiveType() {
 			if(primitiveType>=0 && primitiveType<=2)
 				return primitiveTypes[primitiveType];
@@ -174,6 +231,16 @@ public class PapaMesh extends PapaComponent {
 				return true;
 		return other == iBuffer || other == vBuffer;
 	}
+	
+	@Override
+	void indexDependencies(DependencyIndex index) {
+		for(PapaMaterialGroup m : materialGroups) {
+			index.addString(this, m.name);
+			index.addComponent(this, m.material);
+		}
+		index.addComponent(this, iBuffer);
+		index.addComponent(this, vBuffer);
+	}
 
 	@Override
 	public void detach() {
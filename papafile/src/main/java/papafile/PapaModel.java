@@ -211,6 +211,15 @@ public class PapaModel extends PapaComponent {
 				return true;
 		return other == skeleton;
 	}
+	
+	@Override
+	void indexDependencies(DependencyIndex index) {
+		for(PapaMeshBinding m : meshBindings) {
+			index.addString(this, m.name);
+			index.addComponent(this, m.mesh);
+		}
+		index.addComponent(this, skeleton);
+	}
 
 	@Override
 	public void detach() {
@@ -3,6 +3,8 @@ package papafile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 
 import papafile.PapaFile.BuildNotification;
 
@@ -10,7 +12,8 @@ public class PapaSkeleton extends PapaComponent {
 	private PapaFile parent;
 	
 	private ArrayList<PapaBone> bones = new ArrayList<PapaBone>();
-	
+	private Hierarchy hierarchy; // cached, cleared whenever the bones or their parents change
+
 	public PapaSkeleton(short numBones, byte[] data, PapaFile p) {
 		this.parent = p;
 		ByteBuffer buf = ByteBuffer.wrap(data);
@@ -59,12 +62,28 @@ public class PapaSkeleton extends PapaComponent {
 		
 		public void setName(String name) {
 			this.name = name;
+			if(skeleton != null)
+				skeleton.invalidate();
 		}
 		
 		private void findParentBone() {
 			parentBone = skeleton.getBone(parentBoneIndex);
 		}
 		
+		/**
+		 * The location of the bone relative to its parent in the bind pose.
+		 */
+		public float[] getLocation() {
+			return location.clone();
+		}
+		
+		/**
+		 * The rotation of the bone relative to its parent in the bind pose, as a quaternion x, y, z, w.
+		 */
+		public float[] getRotation() {
+			return rotation.clone();
+		}
+		
 		public boolean hasParent() {
 			return parentBone!=null;
 		}
@@ -75,6 +94,8 @@ public class PapaSkeleton extends PapaComponent {
 		
 		public void setParent(PapaBone other) {
 			parentBone = other;
+			if(skeleton != null)
+				skeleton.invalidate();
 		}
 		
 		private PapaSkeleton getSkeleton() {
@@ -111,7 +132,7 @@ public class PapaSkeleton extends PapaComponent {
 			super.data = ByteBuffer.wrap(dataBytes);
 			super.data.order(ByteOrder.LITTLE_ENDIAN);
 			super.data.putShort((short) skeleton.parent.getOrMakeString(name));
-			super.data.putShort((short) skeleton.bones.indexOf(parentBone));
+			super.data.putShort(parentBoneIndex); // set by the skeleton before building
 			for(int i =0;i<3;i++)
 				super.data.putFloat(location[i]);
 			for(int i =0;i<4;i++)
@@ -147,6 +168,10 @@ public class PapaSkeleton extends PapaComponent {
 		}
 	}
 	
+	public int getNumBones() {
+		return bones.size();
+	}
+	
 	public PapaBone getBone(int index) {
 		if(index==-1)
 			return null;
@@ -158,12 +183,167 @@ public class PapaSkeleton extends PapaComponent {
 			throw new IllegalStateException("Bone "+bone.getName()+" is already attached to a skeleton");
 		bones.add(bone);
 		bone.setSkeleton(this);
+		invalidate();
 	}
 	
 	public void removeBone(PapaBone bone) {
 		if( ! bones.remove(bone))
 			throw new IllegalArgumentException("Bone " + bone.getName() + " is not owned by this skeleton");
 		bone.setSkeleton(null);
+		invalidate();
+	}
+	
+	private void invalidate() {
+		hierarchy = null;
+		if(parent != null)
+			parent.invalidateDependencies();
+	}
+	
+	/**
+	 * Returns the flattened form of this skeleton. It is cached until a bone is added, removed or reparented.
+	 */
+	public Hierarchy getHierarchy() {
+		if(hierarchy == null)
+			hierarchy = new Hierarchy(bones);
+		return hierarchy;
+	}
+	
+	/**
+	 * The bones of a skeleton sorted so that every parent comes before its children, with the bind pose stored in
+	 * contiguous arrays. Sorted positions are used throughout unless stated otherwise.
+	 */
+	public static final class Hierarchy {
+		private final PapaBone[] bones;
+		private final int[] parents;
+		private final int[] skeletonIndices;
+		private final int[] skeletonParents;
+		private final float[] locations;
+		private final float[] rotations;
+		private final float[] shearScales;
+		private final float[] bindToBone;
+		private final float[] bindWorld;
+		
+		private Hierarchy(ArrayList<PapaBone> source) {
+			int n = source.size();
+			IdentityHashMap<PapaBone, Integer> index = new IdentityHashMap<PapaBone, Integer>();
+			for(int i = 0;i<n;i++)
+				index.put(source.get(i), i);
+			skeletonParents = new int[n];
+			for(int i = 0;i<n;i++) {
+				PapaBone parent = source.get(i).getParent();
+				Integer p = parent == null ? null : index.get(parent);
+				skeletonParents[i] = p == null ? -1 : p;
+			}
+			
+			// order by depth, keeping the skeleton order among bones of the same depth
+			int[] depth = new int[n];
+			Arrays.fill(depth, -1);
+			int maxDepth = 0;
+			for(int i = 0;i<n;i++)
+				maxDepth = Math.max(maxDepth, depth(i, depth, 0));
+			int[] start = new int[maxDepth + 2];
+			for(int d : depth)
+				start[d + 1]++;
+			for(int d = 0;d<=maxDepth;d++)
+				start[d + 1] += start[d];
+			skeletonIndices = new int[n];
+			int[] sorted = new int[n];
+			for(int i = 0;i<n;i++) {
+				int position = start[depth[i]]++;
+				skeletonIndices[position] = i;
+				sorted[i] = position;
+			}
+			
+			bones = new PapaBone[n];
+			parents = new int[n];
+			locations = new float[n * 3];
+			rotations = new float[n * 4];
+			shearScales = new float[n * 9];
+			bindToBone = new float[n * 16];
+			bindWorld = new float[n * 16];
+			float[] local = new float[AnimationSampler.TRANSFORM_SIZE];
+			for(int i = 0;i<n;i++) {
+				PapaBone b = source.get(skeletonIndices[i]);
+				bones[i] = b;
+				int parent = skeletonParents[skeletonIndices[i]];
+				parents[i] = parent == -1 ? -1 : sorted[parent];
+				System.arraycopy(b.location, 0, locations, i * 3, 3);
+				System.arraycopy(b.rotation, 0, rotations, i * 4, 4);
+				for(int y = 0;y<3;y++)
+					for(int x = 0;x<3;x++)
+						shearScales[i * 9 + y * 3 + x] = b.shearScale[x][y];
+				for(int y = 0;y<4;y++)
+					for(int x = 0;x<4;x++)
+						bindToBone[i * 16 + y * 4 + x] = b.bindToBone[x][y];
+				
+				System.arraycopy(b.location, 0, local, 0, 3);
+				System.arraycopy(b.rotation, 0, local, 3, 4);
+				AnimationSampler.toMatrix(local, 0, bindWorld, i * 16);
+				if(parents[i] != -1)
+					AnimationSampler.multiplyAffine(bindWorld, parents[i] * 16, bindWorld, i * 16);
+			}
+		}
+		
+		private int depth(int bone, int[] depth, int steps) {
+			if(depth[bone] != -1)
+				return depth[bone];
+			if(steps > depth.length)
+				throw new IllegalStateException("Skeleton contains a cycle at bone "+bone);
+			int parent = skeletonParents[bone];
+			depth[bone] = parent == -1 ? 0 : depth(parent, depth, steps + 1) + 1;
+			return depth[bone];
+		}
+		
+		public int getNumBones() {
+			return bones.length;
+		}
+		
+		public PapaBone getBone(int index) {
+			return bones[index];
+		}
+		
+		/** The parent of every bone, or -1 for roots. A parent always comes before its children. */
+		public int[] getParents() {
+			return parents.clone();
+		}
+		
+		/** The index in the skeleton of every bone. */
+		public int[] getSkeletonIndices() {
+			return skeletonIndices.clone();
+		}
+		
+		/** The index in the skeleton of the parent of every bone, or -1, indexed by skeleton index. */
+		public int[] getSkeletonParents() {
+			return skeletonParents.clone();
+		}
+		
+		/** Bind locations relative to the parent, 3 floats per bone. */
+		public float[] getLocations() {
+			return locations.clone();
+		}
+		
+		/** Bind rotations relative to the parent as quaternions x, y, z, w, 4 floats per bone. */
+		public float[] getRotations() {
+			return rotations.clone();
+		}
+		
+		/** Shear and scale matrices, 9 floats per bone in file order. */
+		public float[] getShearScales() {
+			return shearScales.clone();
+		}
+		
+		/** Bind to bone matrices, 16 floats per bone in file order. */
+		public float[] getBindToBone() {
+			return bindToBone.clone();
+		}
+		
+		/**
+		 * The model space transform of every bone in the bind pose, built from the bind locations and rotations. Each is a
+		 * column major 4x4 matrix of 16 floats.
+		 */
+		public float[] getBindWorld() {
+			return bindWorld.clone();
+		}
 	}
 
 	@Override
@@ -197,7 +377,10 @@ public class PapaSkeleton extends PapaComponent {
 		byte[] bodyBytes = new byte[bodySize()];
 		data = ByteBuffer.wrap(bodyBytes);
 		data.order(ByteOrder.LITTLE_ENDIAN);
-		for(PapaBone b : bones) {
+		int[] parentIndices = getHierarchy().skeletonParents;
+		for(int i = 0;i<bones.size();i++) {
+			PapaBone b = bones.get(i);
+			b.parentBoneIndex = (short) parentIndices[i];
 			b.build();
 			super.data.put(b.getDataBytes());
 		}
@@ -227,6 +410,12 @@ public class PapaSkeleton extends PapaComponent {
 				return true;
 		return false;
 	}
+	
+	@Override
+	void indexDependencies(DependencyIndex index) {
+		for(PapaBone b : bones)
+			index.addString(this, b.name);
+	}
 
 	@Override
 	public void detach() {
@@ -278,6 +467,7 @@ public class PapaSkeleton extends PapaComponent {
 			b.flush();
 		bones.clear();
 		bones = null;
+		hierarchy = null;
 
 	}
 
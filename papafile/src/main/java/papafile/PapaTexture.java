@@ -28,13 +28,13 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.regex.Pattern;
 
-import io.github.memo33.jsquish.Squish;
 import io.github.memo33.jsquish.Squish.CompressionMethod;
-import io.github.memo33.jsquish.Squish.CompressionType;
 
 import papafile.PapaFile.BuildNotification;
+import papafile.PapaFileSnapshot.TextureSnapshot;
 
 /**
  * A container class to hold Texture objects. Each PapaTexture has a main texture, and possibly some MipMap textures.
@@ -62,8 +62,11 @@ public class PapaTexture extends PapaComponent{
 	
 	private BufferedImage [] textures, red, green, blue, alpha, luminance;
 	
-	private TextureConverter textureConverter;
+	private TextureCodec codec;
 	
+	private byte[] hashedData; // the data array contentHash was computed from, data is replaced rather than modified
+	private long contentHash;
+
 	public int getNumImages() {
 		checkLinked(false);
 		return numImages;
@@ -71,57 +74,57 @@ public class PapaTexture extends PapaComponent{
 	
 	public BufferedImage getMip(int i) {
 		checkLinked(false);
-		return textures[i+1];
+		return decodeImage(i+1);
 	}
 	
 	public BufferedImage getImage() {
 		checkLinked(false);
-		return textures[0];
+		return decodeImage(0);
 	}
 	
 	public BufferedImage getImage(int index) { // skips over mip vs image check.
 		checkLinked(false);
-		return textures[index];
+		return decodeImage(index);
 	}
 	
 	public BufferedImage asRed(int index) {
 		checkLinked(false);
 		if(red[index]==null)
-			red[index] = textureConverter.asRed(textures[index]);
+			red[index] = codec.asRed(decodeImage(index));
 		return red[index];
 	}
 	
 	public BufferedImage asGreen(int index) {
 		checkLinked(false);
 		if(green[index]==null)
-			green[index] = textureConverter.asGreen(textures[index]);
+			green[index] = codec.asGreen(decodeImage(index));
 		return green[index];
 	}
 	
 	public BufferedImage asBlue(int index) {
 		checkLinked(false);
 		if(blue[index]==null)
-			blue[index] = textureConverter.asBlue(textures[index]);
+			blue[index] = codec.asBlue(decodeImage(index));
 		return blue[index];
 	}
 
 	public BufferedImage asAlpha(int index) {
 		checkLinked(false);
 		if(alpha[index]==null)
-			alpha[index] = textureConverter.asAlpha(textures[index]);
+			alpha[index] = codec.asAlpha(decodeImage(index));
 		return alpha[index];
 	}
 	
 	public BufferedImage asLuminance(int index) {
 		checkLinked(false);
 		if(luminance[index]==null)
-			luminance[index] = textureConverter.asLuminance(textures[index]);
+			luminance[index] = codec.asLuminance(decodeImage(index));
 		return luminance[index];
 	}
 	
 	public boolean supportsAlpha() {
 		checkLinked(false);
-		return textureConverter.supportsAlpha();
+		return codec.supportsAlpha();
 	}
 	
 	public String getFormat() {
@@ -129,12 +132,29 @@ public class PapaTexture extends PapaComponent{
 		return formats[format - 1]; // format for texture indexed starting at 1
 	}
 	
+	byte getFormatIndex() {
+		checkLinked(false);
+		return format;
+	}
+	
+	byte[] getData() {
+		checkLinked(false);
+		return data;
+	}
+	
+	TextureCodec getCodec() {
+		checkLinked(false);
+		return codec;
+	}
+
 	public String getName() {
 		return name;
 	}
 	
 	public void setName(String name) {
 		this.name = name;
+		if(parent != null)
+			parent.invalidateDependencies();
 	}
 	
 	/*public void adjustLinkedTextureName(String newName) { TODO: remove if not necessary (might've become obsolete)
@@ -170,12 +190,16 @@ public class PapaTexture extends PapaComponent{
 	
 	public int getWidth(int mipLevel) {
 		checkLinked(false);
-		return textures[mipLevel].getWidth();
+		return mipSize(width, mipLevel);
 	}
 	
 	public int getHeight(int mipLevel) {
 		checkLinked(false);
-		return textures[mipLevel].getHeight();
+		return mipSize(height, mipLevel);
+	}
+	
+	static int mipSize(int size, int mipLevel) {
+		return Math.max(size >> mipLevel, 1);
 	}
 	
 	public PapaFile getParent() {
@@ -238,6 +262,31 @@ public class PapaTexture extends PapaComponent{
 			getLinkedTexture(); // calculate linked file variable
 	}
 	
+	/**
+	 * Creates a parentless copy which shares the encoded data and the decoded images of the other texture. Neither is ever
+	 * written to once made: every change to a texture replaces the arrays instead, so the copy stays unaffected and
+	 * nothing has to be copied up front.
+	 */
+	private PapaTexture(PapaTexture other) {
+		this.name = other.name;
+		this.format = other.format;
+		this.mips = other.mips;
+		this.srgb = other.srgb;
+		this.width = other.width;
+		this.height = other.height;
+		this.numImages = other.numImages;
+		this.data = other.data;
+		this.codec = other.codec;
+		this.textures = other.textures;
+		this.red = other.red;
+		this.green = other.green;
+		this.blue = other.blue;
+		this.alpha = other.alpha;
+		this.luminance = other.luminance;
+		this.hashedData = other.hashedData;
+		this.contentHash = other.contentHash;
+	}
+	
 	public PapaTexture(String name, byte format, byte mips, boolean srgb, short width, short height, byte[] data, PapaFile p) throws IOException {
 		this.name = name;
 		this.format = format;
@@ -253,22 +302,20 @@ public class PapaTexture extends PapaComponent{
 		ByteBuffer buf = ByteBuffer.wrap(data);
 		buf.order(ByteOrder.LITTLE_ENDIAN);
 		try {
-			textureConverter = getInstance(getFormat());
+			getFormat();
 		} catch (ArrayIndexOutOfBoundsException e) {
 			throw new IOException("Invalid name index");
 		}
+		codec = TextureCodec.getDecoder(format);
 		
-		decodeAll(new TextureInfo(this.mips,this.width,this.height), buf, textureConverter);
+		decodeAll(new TextureInfo(this.mips,this.width,this.height), buf, codec);
 		
 		System.out.println("Loaded "+this.width+" by "+this.height+" image named "+this.name+" of format "+getFormat()+" with "+this.mips+" mipmaps. Data size: "+data.length+".");
 	}
 	
 	public PapaTexture(BufferedImage input, ImmutableTextureSettings settings, PapaFile p, String name) throws IOException {
 		this.parent = p;
-		textureConverter = getInstance(settings.format);
-		if(textureConverter instanceof DXT)
-			((DXT) textureConverter).setCompressionMethod(settings.method);
-		generateTexture(input,textureConverter, settings, name);
+		generateTexture(input, settings, name);
 		if(Pattern.compile(settings.srgbTexname).matcher(name.toLowerCase()).find()) {
 			this.setSRGB(true);
 		}
@@ -279,7 +326,7 @@ public class PapaTexture extends PapaComponent{
 		this(input,settings,p,p.getFileName());
 	}
 	
-	private void generateTexture(BufferedImage input, TextureConverter textureConverter, ImmutableTextureSettings settings, String name) throws IOException {
+	private void generateTexture(BufferedImage input, ImmutableTextureSettings settings, String name) throws IOException {
 		
 		BufferedImage in = input;
 		int width = in.getWidth();
@@ -313,10 +360,16 @@ public class PapaTexture extends PapaComponent{
 		
 		createTextureArrays(mipCount + 1);
 		
-		this.data = textureConverter.encode(images);
+		String format = settings.format;
+		int policy = TextureSettings.getFormatPolicy(format);
+		if(policy != -1)
+			format = ImageAnalysis.analyze(in).selectFormat(policy);
+		TextureCodec encoder = TextureCodec.getEncoder(format);
+		this.data = encoder.encode(images, settings.method);
+		this.codec = TextureCodec.getDecoder(encoder.formatIndex());
 		
 		this.name = name;
-		this.format = textureConverter.formatIndex();
+		this.format = encoder.formatIndex();
 		this.mips = (byte) mipCount;
 		this.numImages = mips + 1;
 		this.srgb = settings.SRGB;
@@ -325,10 +378,10 @@ public class PapaTexture extends PapaComponent{
 		
 		ByteBuffer buf = ByteBuffer.wrap(data);
 		buf.order(ByteOrder.LITTLE_ENDIAN);
-		decodeAll(new TextureInfo(mipCount, width, height),buf,textureConverter);
+		decodeAll(new TextureInfo(mipCount, width, height),buf,codec);
 	}
 	
-	private int resizeInputValue(int value, int roundMode) {
+	static int resizeInputValue(int value, int roundMode) {
 		double val = value;
 		int count = 0;
 		while(val>1) {
@@ -368,42 +421,53 @@ public class PapaTexture extends PapaComponent{
 		this.luminance = new BufferedImage[amount];
 	}
 	
-	private TextureConverter getInstance(String format) throws IOException {
-		switch(format) {
-			case TextureSettings.R8G8B8A8:
-				return new R8G8B8A8();
-			case TextureSettings.R8G8B8X8:
-				return new R8G8B8X8();
-			case TextureSettings.B8G8R8A8:
-				return new B8G8R8A8();
-			case TextureSettings.DXT1:          
-				return new DXT1();           
-			case TextureSettings.DXT5:          
-				return new DXT5(); 
-			case TextureSettings.R8:
-				return new R8();
-			case TextureSettings.DXT_AUTO:
-				return new DXTAuto();
-			default:
-				throw new IOException("Unsupported format: "+format);
+	private void decodeAll(TextureInfo info, ByteBuffer buf, TextureCodec converter) throws IOException {
+		checkData(info,buf,converter); // images are decoded on first access by decodeImage
+	}
+	
+	private BufferedImage decodeImage(int index) {
+		BufferedImage[] cache = textures;
+		synchronized(cache) { // the array is shared with duplicates, so it is the lock rather than this texture
+			if(cache[index]==null) {
+				ByteBuffer buf = ByteBuffer.wrap(data);
+				buf.order(ByteOrder.LITTLE_ENDIAN);
+				buf.position(codec.calcSize(width, height, index - 1));
+				cache[index] = codec.decode(buf, mipSize(width, index), mipSize(height, index));
+			}
+			return cache[index];
 		}
 	}
 	
-	private void decodeAll(TextureInfo info, ByteBuffer buf, TextureConverter converter) throws IOException {
-		
-		checkData(info,buf,converter);
+	/**
+	 * Receives consecutive strips of a decoded image. The array is reused between calls.
+	 */
+	public interface StripConsumer {
+		public void accept(int[] argb, int y, int rows) throws IOException;
+	}
+	
+	/**
+	 * Decodes an image a strip at a time without building a BufferedImage, so memory use depends only on the width and the
+	 * strip height. Strips are at least minRows tall, rounded up to whole blocks, except for the last one.
+	 */
+	public void decodeStrips(int index, int minRows, StripConsumer consumer) throws IOException {
+		checkLinked(false);
+		int w = mipSize(width, index);
+		int h = mipSize(height, index);
+		int block = codec.getBlockHeight();
+		int rows = Math.min(Math.max(block, (minRows + block - 1) / block * block), h);
 		
-		this.textures[0] = converter.decode(buf, info);
-		for(int i=1;i<=info.mips;i++) {
-			
-			int mipScale = (int) Math.pow(2, i);
-			int width = Math.max(info.width / mipScale,1);
-			int height = Math.max(info.height / mipScale,1);
-			this.textures[i] = converter.decode(buf, new TextureInfo(info.mips,width,height));
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.position(codec.calcSize(width, height, index - 1));
+		int[] strip = new int[w * rows];
+		for(int y = 0;y<h;y+=rows) {
+			int n = Math.min(rows, h - y);
+			codec.decodeDisplayARGB(buf, w, n, strip);
+			consumer.accept(strip, y, n);
 		}
 	}
 	
-	private void checkData(TextureInfo info, ByteBuffer buf, TextureConverter converter) throws IOException {
+	private void checkData(TextureInfo info, ByteBuffer buf, TextureCodec converter) throws IOException {
 		int expectedSize = converter.calcSize(info.width, info.height, info.mips);
 		int actualSize = buf.limit();
 		if(actualSize != expectedSize) {
@@ -442,7 +506,7 @@ public class PapaTexture extends PapaComponent{
 	public void flush() {
 		parent = linkedFile = null;
 		textures = red = green = blue = alpha = null;
-		textureConverter = null;
+		codec = null;
 		data = null;
 	}
 
@@ -479,642 +543,187 @@ public class PapaTexture extends PapaComponent{
 		}
 	}
 	
-	private abstract class TextureConverter {
-		
-		public abstract BufferedImage decode(ByteBuffer buf, TextureInfo info);
-		
-		public abstract int calcSize(int width, int height, int mips);
-		
-		public abstract byte formatIndex();
-		
-		protected abstract void encodeImage(BufferedImage input, ByteBuffer writer);
-		
-		public byte[] encode(BufferedImage[] input) {
-			int images = input.length;
-			int width = input[0].getWidth();
-			int height = input[0].getHeight();
-			byte[] buf = new byte[calcSize(width,height,images - 1)];
-			ByteBuffer b = ByteBuffer.wrap(buf);
-			b.order(ByteOrder.LITTLE_ENDIAN);
-			for(int i=0;i<images;i++)
-				encodeImage(input[i],b);
-			return buf;
-		}
-		
-		public boolean supportsAlpha() {
-			return true;
-		}
-		
-		public BufferedImage asLuminance(BufferedImage image) {
-			return calcLuminance(image);
-		}
-		
-		public BufferedImage asRed(BufferedImage image) {
-			return filterImage(image, 0b11111111_11111111_00000000_00000000);
-		}
-		
-		public BufferedImage asGreen(BufferedImage image) {
-			return filterImage(image, 0b11111111_00000000_11111111_00000000);
-		}
-		
-		public BufferedImage asBlue(BufferedImage image) {
-			return filterImage(image, 0b11111111_00000000_00000000_11111111);
-		}
-		
-		public BufferedImage asAlpha(BufferedImage image) {
-			return calcAlpha(image);
-		}
-		
-		protected BufferedImage calcLuminance(BufferedImage image) {
-			BufferedImage out = new BufferedImage(image.getWidth(),image.getHeight(),BufferedImage.TYPE_INT_ARGB);
-			for(int y= 0;y<image.getHeight();y++)
-				for(int x =0;x<image.getWidth();x++) {
-					int value = image.getRGB(x, y);
-					int average = (int) ((float)(value & 0b00000000_00000000_11111111) 			* 0.082f 	//Blue
-										+ (float)((value & 0b00000000_11111111_00000000)>>>8) 	* 0.6094f 	//Green
-										+ (float)((value & 0b11111111_00000000_00000000)>>>16) 	* 0.3086f);	//Red
-					int RGB = average | (average<<8) | (average<<16);
-					out.setRGB(x, y, RGB  | (value & 0b11111111_00000000_00000000_00000000));
-				}
-			return out;
-		}
-		
-		protected BufferedImage calcAlpha(BufferedImage image) {
-			BufferedImage out = new BufferedImage(image.getWidth(),image.getHeight(),BufferedImage.TYPE_INT_ARGB);
-			for(int y= 0;y<image.getHeight();y++)
-				for(int x =0;x<image.getWidth();x++) {
-					int alphaBits = (image.getRGB(x, y) & 0b11111111_00000000_00000000_00000000)>>>24;
-					alphaBits |= alphaBits<<8 | alphaBits<<16 | 0b11111111_00000000_00000000_00000000;
-					out.setRGB(x, y, alphaBits);
-				}
-			return out;
-		}
-		
-		protected BufferedImage filterImage(BufferedImage input, int filterBits) {
-			BufferedImage out = new BufferedImage(input.getWidth(),input.getHeight(),BufferedImage.TYPE_INT_ARGB);
-			for(int y= 0;y<input.getHeight();y++)
-				for(int x =0;x<input.getWidth();x++)
-					out.setRGB(x, y, input.getRGB(x, y) & filterBits);
-			return out;
-		}
-	}
-	
-	private class R8G8B8A8 extends TextureConverter {
-
-		@Override
-		public BufferedImage decode(ByteBuffer buf, TextureInfo info) {
-			int width = info.width;
-			int height = info.height;
-			int length = width*height;
-			
-			BufferedImage b = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-			
-			int[] array = new int[width*height];
-			for(int i = 0;i<length;i++) {
-				int tmp=0;
-				tmp |=(buf.get() & 0b11111111)<<16;
-				tmp |=(buf.get() & 0b11111111)<<8;
-				tmp |=(buf.get() & 0b11111111);
-				tmp |=(buf.get() & 0b11111111)<<24;
-				array[i] = tmp;
-			}
-			b.setRGB(0, 0, width, height, array, 0, width);
-			return b;
-		}
-		
-		@Override
-		protected void encodeImage(BufferedImage input, ByteBuffer writer) {
+	/**
+	 * The result of a single pass over an image which records the properties needed to pick the cheapest format that can hold it.
+	 */
+	public static final class ImageAnalysis {
+		public static final int ALPHA_NONE = 0;
+		public static final int ALPHA_ONE_BIT = 1;
+		public static final int ALPHA_FULL = 2;
+		
+		public static final int CHANNEL_RED = 0b0100;
+		public static final int CHANNEL_GREEN = 0b0010;
+		public static final int CHANNEL_BLUE = 0b0001;
+		public static final int CHANNEL_ALPHA = 0b1000;
+		
+		private final int alphaUsage;
+		private final boolean grayscale;
+		private final int constantChannels;
+		private final int firstPixel;
+		
+		private ImageAnalysis(int alphaUsage, boolean grayscale, int constantChannels, int firstPixel) {
+			this.alphaUsage = alphaUsage;
+			this.grayscale = grayscale;
+			this.constantChannels = constantChannels;
+			this.firstPixel = firstPixel;
+		}
+		
+		public static ImageAnalysis analyze(BufferedImage input) {
 			int width = input.getWidth();
 			int height = input.getHeight();
-			int[] rgbArray = input.getRGB(0, 0, width, height, null, 0, input.getWidth());
-			for(int i : rgbArray) {// ARGB -> RGBA
-				writer.put((byte)(i>>>16));
-				writer.put((byte)(i>>>8));
-				writer.put((byte)(i));
-				writer.put((byte)(i>>>24));
-			}
-		}
-		
-		@Override
-		public int calcSize(int width, int height, int mips) {
-			int size = 0;
+			int rows = Math.max(1, Math.min(height, (1 << 16) / Math.max(width, 1)));
+			int[] strip = new int[width * rows];
 			
-			for(int i=0;i<mips + 1;i++) {
-				int mipScale = (int) Math.pow(2, i);
-				int w = Math.max(width / mipScale,1);
-				int h = Math.max(height / mipScale,1);
-				size+= w*h*4;
+			Scanner scanner = null;
+			for(int y = 0;y<height;y+=rows) {
+				int n = Math.min(rows, height - y);
+				RasterConverter.toARGB(input, y, n, strip, 0);
+				if(scanner == null)
+					scanner = new Scanner(strip[0]);
+				scanner.scan(strip, 0, width * n);
 			}
-			
-			return size;
+			return scanner.result();
 		}
-
-		@Override
-		public byte formatIndex() {
-			return 1;
-		}
-	}
-	
-	private class R8G8B8X8 extends R8G8B8A8 {
 		
-		@Override
-		protected void encodeImage(BufferedImage input, ByteBuffer writer) {
-			int width = input.getWidth();
-			int height = input.getHeight();
-			int[] rgbArray = input.getRGB(0, 0, width, height, null, 0, input.getWidth());
-			for(int i : rgbArray) {// ARGB -> RRGB
-				writer.put((byte)(i>>>16));
-				writer.put((byte)(i>>>8));
-				writer.put((byte)(i));
-				writer.put((byte)0xff);
-			}
-		}
-		
-		@Override
-		public boolean supportsAlpha() {
-			return false;
+		public static ImageAnalysis analyze(int[] argb, int width, int height) {
+			Scanner scanner = new Scanner(argb[0]);
+			scanner.scan(argb, 0, width * height);
+			return scanner.result();
 		}
 		
-		@Override
-		public byte formatIndex() {
-			return 2;
-		}
-		
-	}
-	
-	private class B8G8R8A8 extends R8G8B8A8 {
-
-		@Override
-		public BufferedImage decode(ByteBuffer buf, TextureInfo info) {
-			int width = info.width;
-			int height = info.height;
-			int length = width*height;
-			
-			BufferedImage b = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		/**
+		 * Accumulates an analysis over an image which is delivered in pieces.
+		 */
+		public static final class Scanner {
+			private final int first;
+			private int alphaAnd = 0xff;
+			private boolean partialAlpha = false;
+			private boolean grayscale = true;
+			private int difference = 0; // bits set for every channel bit which differs from the first pixel
 			
-			int[] array = new int[width*height];
-			for(int i = 0;i<length;i++) {
-				array[i] = buf.getInt();
+			/**
+			 * @param first The top left pixel of the image.
+			 */
+			public Scanner(int first) {
+				this.first = first;
 			}
 			
-			b.setRGB(0, 0, width, height, array, 0, width);
-			return b;
-			
-		}
-		
-		@Override
-		protected void encodeImage(BufferedImage input, ByteBuffer writer) {
-			int width = input.getWidth();
-			int height = input.getHeight();
-			int[] rgbArray = input.getRGB(0, 0, width, height, null, 0, input.getWidth());
-			for(int i : rgbArray) {// ARGB -> BGRA
-				writer.put((byte)i);
-				writer.put((byte)(i>>>8));
-				writer.put((byte)(i>>>16));
-				writer.put((byte)(i>>>24));
-			}
-		}
-		@Override
-		public byte formatIndex() {
-			return 3;
-		}
-		
-	}
-	
-	// https://www.fsdeveloper.com/wiki/index.php?title=DXT_compression_explained
-	// https://docs.microsoft.com/en-us/windows/win32/direct3d9/opaque-and-1-bit-alpha-textures
-	// https://en.wikipedia.org/wiki/S3_Texture_Compression#DXT1
-	
-	private abstract class DXT extends TextureConverter {
-		
-		protected int chunkByteSize = 8;
-		
-		protected CompressionMethod method = CompressionMethod.CLUSTER_FIT;
-		
-		public void setCompressionMethod(CompressionMethod method) {
-			this.method = method;
-		}
-		
-		protected byte[] imageToByteArray(BufferedImage input) {
-			int width = input.getWidth();
-			int height = input.getHeight();
-			int size = input.getWidth() * input.getHeight();
-			byte[] ret = new byte[size * 4];
-			for(int y=0;y<height;y++)
-				for(int x=0;x<width;x++) {
-					int data = input.getRGB(x, y);
-					for(int i =3;i>=0;i--)
-						ret[4*(x+y*width) + i] = (byte)(data>>>i*8);
+			public void scan(int[] argb, int offset, int length) {
+				int alphaAnd = this.alphaAnd, difference = this.difference;
+				boolean partialAlpha = this.partialAlpha, grayscale = this.grayscale;
+				for(int i = offset;i<offset + length;i++) {
+					int pixel = argb[i];
+					int a = pixel>>>24;
+					alphaAnd &= a;
+					if(a != 0 && a != 0xff)
+						partialAlpha = true;
+					int r = (pixel>>>16) & 0xff;
+					int g = (pixel>>>8) & 0xff;
+					int b = pixel & 0xff;
+					if(r!=g || g!=b)
+						grayscale = false;
+					difference |= pixel ^ first;
 				}
-			return ret;
-		}
-		
-		public Color[] decodeColourMap(byte[] data) {
-			Color[] colours = new Color[4];
-			int colour0 = ((data[0]&0b11111111) | data[1]<<8) & 0b11111111_11111111;
-			int colour1 = ((data[2]&0b11111111) | data[3]<<8) & 0b11111111_11111111;
-			colours[0] = new Color(((colour0>>>11 & 0b00011111)*8), (((colour0>>>5) & 0b00111111)*4), (((colour0) & 0b00011111)*8));
-			colours[1] = new Color(((colour1>>>11 & 0b00011111)*8), (((colour1>>>5) & 0b00111111)*4), (((colour1) & 0b00011111)*8));
-			if(colour0>colour1) {
-				colours[2] = new Color(	(float)(2 * colours[0].getRed() + 		colours[1].getRed()) / 765f, // 765 = 3*255
-										(float)(2 * colours[0].getGreen() + 	colours[1].getGreen()) / 765f,
-										(float)(2 * colours[0].getBlue() + 		colours[1].getBlue()) / 765f);
-				colours[3] = new Color(	(float)(colours[0].getRed() + 		2 * colours[1].getRed()) / 765f,
-										(float)(colours[0].getGreen() + 	2 * colours[1].getGreen()) / 765f,
-										(float)(colours[0].getBlue() + 		2 * colours[1].getBlue()) / 765f);
-			} else {
-				colours[2] = new Color(	(float)(colours[0].getRed() + 		colours[1].getRed()) / 510f, // 5 = 2*255
-										(float)(colours[0].getGreen() + 	colours[1].getGreen()) / 510f,
-										(float)(colours[0].getBlue() + 		colours[1].getBlue()) / 510f);
-				colours[3] = new Color(0f, 0f, 0f);
-				
-			}
-			return colours;
-		}
-		
-		public abstract int[] decodeAlphaMap(byte[] bytes);
-		
-		@Override
-		public int calcSize(int width, int height, int mips) {
-			int size = 0;
-
-			for(int i=0;i<mips + 1;i++) {
-				int mipScale = (int) Math.pow(2, i);
-				int w = (int) Math.ceil(Math.max(width / mipScale, 1) / 4d);
-				int h = (int) Math.ceil(Math.max(height / mipScale, 1) / 4d);
-				size+= w*h*chunkByteSize;
+				this.alphaAnd = alphaAnd;
+				this.difference = difference;
+				this.partialAlpha = partialAlpha;
+				this.grayscale = grayscale;
 			}
 			
-			return size;
-		}
-		
-		
-	}
-	
-	private class DXT1 extends DXT {
-		
-		
-		@Override
-		public BufferedImage decode(ByteBuffer buf, TextureInfo info) {
-			Color [] colours;
-		
-			int width = info.width;
-			int height = info.height;
-
-			byte[] colourBuffer = new byte[4];
-			
-			BufferedImage b = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-			
-			//64 bits per 4x4 segment
-			for(int y = 0;y<height;y+=4) {
-				for(int x =0;x<width;x+=4) {
-					
-					buf.get(colourBuffer);
-					colours = decodeColourMap(colourBuffer);
-					// 4x4 segment
-					int bits = buf.getInt();
-					for(int yy=0;yy<4;yy++) {
-						for(int xx=0;xx<4;xx++) {
-							int colourIndex = (int) (bits & 0b11);
-							if(yy + y < height && xx + x < width)
-								b.setRGB(x+xx, y+yy, colours[colourIndex].getRGB());
-							bits>>>=2;
-						}
-					}
-				}
-			}
-			return b;
-		}
-		
-		
-		@Override
-		protected void encodeImage(BufferedImage input, ByteBuffer writer) {
-			int width = input.getWidth();
-			int height = input.getHeight();
-			byte[] in = imageToByteArray(input);
-			byte[] result = Squish.compressImage(in, width, height, new byte[] {}, CompressionType.DXT1, method);
-			writer.put(result);
-		}
-
-		@Override
-		public boolean supportsAlpha() {
-			return false;
-		}
-		
-		@Override
-		public byte formatIndex() {
-			return 4;
-		}
-
-
-		@Override
-		public int[] decodeAlphaMap(byte[] bytes) {
-			throw new UnsupportedOperationException("DXT1 contains no alpha data");
-		}
-		
-	}
-	
-	private class DXT3 extends DXT {
-		
-		{chunkByteSize = 16;}
-		
-		@Override
-		public BufferedImage decode(ByteBuffer buf, TextureInfo info) {
-			Color [] colours;
-			int[] alphaValues;
-			int width = info.width;
-			int height = info.height;
-			byte[] alphaBuf = new byte[8];
-			byte[] colourBuf = new byte[4];
-			
-			BufferedImage b = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-			
-			//128 bits per 4x4 segment
-			for(int y = 0;y<height;y+=4) {
-				for(int x =0;x<width;x+=4) {
-					//if(br.index() + 8 > br.size()) // DXT3 is broken for papatran, break early if we run out of data
-						//return b;
-					buf.get(alphaBuf);
-					alphaValues = decodeAlphaMap(alphaBuf);
-					
-					buf.get(colourBuf);
-					colours = decodeColourMap(colourBuf);
-					int bits = buf.getInt();
-					for(int yy=0;yy<4;yy++) {
-						for(int xx=0;xx<4;xx++) {
-							int colourIndex = (int) (bits & 0b11);
-							if(yy + y < height && xx + x < width)
-								b.setRGB(x+xx, y+yy, (colours[colourIndex].getRGB()&0b11111111_11111111_11111111) | alphaValues[yy*4+xx]<<24);
-							bits>>>=2;
-						}
-					}
-				}
-			}
-			return b;
-		}
-		
-		@Override
-		protected void encodeImage(BufferedImage input, ByteBuffer writer) {
-			int width = input.getWidth();
-			int height = input.getHeight();
-			byte[] in = imageToByteArray(input);
-			byte[] result = Squish.compressImage(in, width, height, new byte[] {}, CompressionType.DXT3, method);
-			writer.put(result);
-		}
-
-		
-		@Override
-		public Color[] decodeColourMap(byte[] data) {
-			Color[] colours = new Color[4];
-			int colour0 = ((data[0]&0b11111111) | data[1]<<8) & 0b11111111_11111111;
-			int colour1 = ((data[2]&0b11111111) | data[3]<<8) & 0b11111111_11111111;
-			colours[0] = new Color((((colour0>>>11 & 0b00011111)*8)<<16) | (((colour0>>>5) & 0b00111111)*4)<<8 | (((colour0) & 0b00011111)*8));
-			colours[1] = new Color((((colour1>>>11 & 0b00011111)*8)<<16) | (((colour1>>>5) & 0b00111111)*4)<<8 | (((colour1) & 0b00011111)*8));
-			colours[2] = new Color(	(float)(2 * colours[0].getRed() + 		colours[1].getRed()) / 765f, // 765 = 3*255
-									(float)(2 * colours[0].getGreen() + 	colours[1].getGreen()) / 765f,
-									(float)(2 * colours[0].getBlue() + 		colours[1].getBlue()) / 765f);
-			colours[3] = new Color(	(float)(colours[0].getRed() + 		2 * colours[1].getRed()) / 765f,
-									(float)(colours[0].getGreen() + 	2 * colours[1].getGreen()) / 765f,
-									(float)(colours[0].getBlue() + 		2 * colours[1].getBlue()) / 765f);
-			
-			return colours;
-		}
-		
-		@Override
-		public int[] decodeAlphaMap(byte[] bytes) {
-			int[] alphaValues = new int[16];
-			for(int i =0;i<8;i++) {
-				int bits = (int)bytes[i] & 0b11111111;
-				int val = bits & 0b00001111;
-				alphaValues[2*i] = 	(val<<4) | val;
-				val = bits & 0b11110000;
-				alphaValues[2*i+1] = val | (val>>>4);
-			}
-			return alphaValues;
-		}
-		
-		@Override
-		public byte formatIndex() {
-			return 5;
-		}
-
-		
-	}
-	
-	private class DXT5 extends DXT {
-
-		{chunkByteSize = 16;}
-		
-		@Override
-		public BufferedImage decode(ByteBuffer br, TextureInfo info) {
-			Color [] colours;
-			int[] alphaValues;
-			int width = info.width;
-			int height = info.height;
-			
-			byte[] alphaBuf = new byte[8];
-			byte[] colourBuf = new byte[4];
-			
-			BufferedImage b = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-			
-			//128 bits per 4x4 segment
-			for(int y = 0;y<height;y+=4) {
-				for(int x =0;x<width;x+=4) {
-					
-					// calculate and store the alpha values for the pixel.
-					br.get(alphaBuf);
-					alphaValues = decodeAlphaMap(alphaBuf);
-					
-					br.get(colourBuf);
-					colours = decodeColourMap(colourBuf);
-					
-					int bits = br.getInt();
-					for(int yy=0;yy<4;yy++) {
-						for(int xx=0;xx<4;xx++) {
-							int colourIndex = (int) (bits & 0b11);
-							if(yy + y < height && xx + x < width)
-								b.setRGB(x+xx, y+yy, (colours[colourIndex].getRGB() & 0b11111111_11111111_11111111) | (alphaValues[yy*4+xx]<<24));
-							bits>>>=2;
-						}
-					}
-				}
+			public ImageAnalysis result() {
+				int alphaUsage;
+				if(alphaAnd == 0xff)
+					alphaUsage = ALPHA_NONE;
+				else if(!partialAlpha)
+					alphaUsage = ALPHA_ONE_BIT;
+				else
+					alphaUsage = ALPHA_FULL;
+				
+				int constantChannels = 0;
+				if((difference & 0xff000000) == 0)
+					constantChannels |= CHANNEL_ALPHA;
+				if((difference & 0x00ff0000) == 0)
+					constantChannels |= CHANNEL_RED;
+				if((difference & 0x0000ff00) == 0)
+					constantChannels |= CHANNEL_GREEN;
+				if((difference & 0x000000ff) == 0)
+					constantChannels |= CHANNEL_BLUE;
+				
+				return new ImageAnalysis(alphaUsage, grayscale, constantChannels, first);
 			}
-			return b;
-		}
-
-		@Override
-		protected void encodeImage(BufferedImage input, ByteBuffer writer) {
-			int width = input.getWidth();
-			int height = input.getHeight();
-			byte[] in = imageToByteArray(input);
-			byte[] result = Squish.compressImage(in, width, height, new byte[] {}, CompressionType.DXT5, method);
-			writer.put(result);
 		}
 		
-		@Override
-		public int[] decodeAlphaMap(byte[] bytes) {
-			int[] alphaValues = new int[16];
-			
-			int alphaMap[] = new int[8];
-			alphaMap[0]=(int)(bytes[0] & 0b11111111);
-			alphaMap[1]=(bytes[1] & 0b11111111);
-			
-			if(alphaMap[0]>alphaMap[1]) {
-				for(int j = 1;j<7;j++)
-					alphaMap[j+1] = ((7-j)*alphaMap[0] + j * alphaMap[1])/7;
-			} else {
-				for(int j = 1;j<5;j++)
-					alphaMap[j+1] = ((5-j)*alphaMap[0] + j * alphaMap[1])/5;
-				alphaMap[6] = 0;
-				alphaMap[7] = 255;
-			}
-			
-			long alphaBits = 0;
-			for (int i=2;i<8;i++)
-				alphaBits |= (((long)bytes[i]) & 0b11111111)<<((i-2)*8);
-			
-			for(int j = 0;j<16;j++) {
-				alphaValues[j]= alphaMap[(int) (alphaBits&0b111)];
-				alphaBits>>>=3;
-			}
-			
-			return alphaValues;
+		public int getAlphaUsage() {
+			return alphaUsage;
 		}
 		
-		@Override
-		public byte formatIndex() {
-			return 6;
+		public boolean hasAlpha() {
+			return alphaUsage != ALPHA_NONE;
 		}
 		
-	}
-	
-	private class DXTAuto extends DXT {
-		
-		private final DXT1 dxt1 = new DXT1();
-		private final DXT5 dxt5 = new DXT5();
-		private DXT currentConverter = dxt1;
-
-		@Override
-		public int[] decodeAlphaMap(byte[] bytes) {
-			return currentConverter.decodeAlphaMap(bytes);
-		}
-
-		@Override
-		public BufferedImage decode(ByteBuffer buf, TextureInfo info) {
-			return currentConverter.decode(buf, info);
-		}
-
-		@Override
-		public byte formatIndex() {
-			return currentConverter.formatIndex();
-		}
-		
-		private void setCurrentConverterFromImage(BufferedImage input) {
-			for( int x=0; x<input.getWidth(); x++ ) {
-				for( int y=0; y<input.getHeight(); y++ ) {
-					if((input.getRGB(x, y) >>> 24) < 255) {
-						currentConverter = dxt5;
-						return;
-					}
-					
-				}
-			}
-			// no pixels with alpha found
-			currentConverter = dxt1;
-		}
-		
-		public byte[] encode(BufferedImage[] input) {
-			setCurrentConverterFromImage(input[0]);
-			return super.encode(input);
+		public boolean isGrayscale() {
+			return grayscale;
 		}
 		
-		@Override
-		public int calcSize(int width, int height, int mips) {
-			return currentConverter.calcSize(width, height, mips);
-		}
-
-		@Override
-		protected void encodeImage(BufferedImage input, ByteBuffer writer) {
-			currentConverter.encodeImage(input, writer);
-			
+		public boolean isChannelConstant(int channel) {
+			return (constantChannels & channel) == channel;
 		}
 		
-		@Override
-		public boolean supportsAlpha() {
-			return currentConverter.supportsAlpha();
+		public int getConstantChannels() {
+			return constantChannels;
 		}
 		
-	}
-	
-	private class R8 extends TextureConverter {
-
-		@Override
-		public BufferedImage decode(ByteBuffer buf, TextureInfo info) {
-			int width = info.width;
-			int height = info.height;
-			int length = width*height;
-			
-			BufferedImage b = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-			
-			int[] array = new int[width*height];
-			for(int i = 0;i<length;i++) {
-				array[i] = buf.get()<<16 | 0b11111111_00000000_11111111_11111111;
+		/**
+		 * Returns the value of the given channel if it is constant over the whole image, or -1 otherwise.
+		 */
+		public int getConstantValue(int channel) {
+			if(!isChannelConstant(channel))
+				return -1;
+			switch(channel) {
+				case CHANNEL_ALPHA:
+					return firstPixel>>>24;
+				case CHANNEL_RED:
+					return (firstPixel>>>16) & 0xff;
+				case CHANNEL_GREEN:
+					return (firstPixel>>>8) & 0xff;
+				case CHANNEL_BLUE:
+					return firstPixel & 0xff;
+				default:
+					throw new IllegalArgumentException("Invalid channel "+channel);
 			}
-			
-			b.setRGB(0, 0, width, height, array, 0, width);
-			return b;
-			
-		}
-
-		@Override
-		protected void encodeImage(BufferedImage input, ByteBuffer writer) {
-			int width = input.getWidth();
-			int height = input.getHeight();
-			int[] rgbArray = input.getRGB(0, 0, width, height, null, 0, input.getWidth());
-			for(int i : rgbArray) {// ARGB
-				writer.put((byte)(i>>>16));
-			}
-		}
-		
-		@Override
-		protected BufferedImage calcLuminance(BufferedImage image) {
-			BufferedImage out = new BufferedImage(image.getWidth(),image.getHeight(),BufferedImage.TYPE_INT_ARGB);
-			for(int y= 0;y<image.getHeight();y++)
-				for(int x =0;x<image.getWidth();x++) {
-					int value = image.getRGB(x, y);
-					int average = (value & 0b11111111_00000000_00000000);
-					int RGB = average | (average>>>8) | (average>>>16);
-					out.setRGB(x, y, RGB  | 0b11111111_00000000_00000000_00000000);
-				}
-			return out;
 		}
 		
-		@Override
-		public boolean supportsAlpha() {
-			return false;
-		}
-
-		@Override
-		public int calcSize(int width, int height, int mips) {
-			int size = 0;
-			
-			for(int i=0;i<mips + 1;i++) {
-				int mipScale = (int) Math.pow(2, i);
-				int w = Math.max(width / mipScale,1);
-				int h = Math.max(height / mipScale,1);
-				size+= w*h;
+		/**
+		 * True if the image survives being stored as R8, either because it is grayscale or because only red carries data.
+		 */
+		public boolean fitsR8() {
+			if(hasAlpha())
+				return false;
+			return grayscale || (getConstantValue(CHANNEL_GREEN) == 0 && getConstantValue(CHANNEL_BLUE) == 0);
+		}
+		
+		/**
+		 * Picks the cheapest format which is valid for the analysed image under the given {@link TextureSettings} format policy.
+		 * The balanced policy stores one bit alpha as DXT1, which can hold fully transparent texels.
+		 */
+		public String selectFormat(int policy) {
+			switch(policy) {
+				case TextureSettings.FORMAT_POLICY_DXT:
+					return hasAlpha() ? TextureSettings.DXT5 : TextureSettings.DXT1;
+				case TextureSettings.FORMAT_POLICY_BALANCED:
+					if(fitsR8())
+						return TextureSettings.R8;
+					return alphaUsage == ALPHA_FULL ? TextureSettings.DXT5 : TextureSettings.DXT1;
+				case TextureSettings.FORMAT_POLICY_LOSSLESS:
+					if(fitsR8())
+						return TextureSettings.R8;
+					return hasAlpha() ? TextureSettings.R8G8B8A8 : TextureSettings.R8G8B8X8;
+				default:
+					throw new IllegalArgumentException("Invalid format policy "+policy);
 			}
-			
-			return size;
-		}
-		
-		@Override
-		public byte formatIndex() {
-			return 13;
 		}
 	}
 	
-	
 	public static class TextureSettings {
 		public static final int RESIZE_NEAREST = 0;
 		public static final int RESIZE_UP = 1;
@@ -1128,7 +737,13 @@ public class PapaTexture extends PapaComponent{
 		public static final int LINK_TYPE_REFERENCE = 1;
 		public static final int LINK_TYPE_OVERWRITE = 2; //TODO: unsupported!
 		
+		public static final int FORMAT_POLICY_DXT = 0; // DXT1 or DXT5 only
+		public static final int FORMAT_POLICY_BALANCED = 1; // R8 for single channel images, DXT1 for one bit alpha, DXT otherwise
+		public static final int FORMAT_POLICY_LOSSLESS = 2; // R8 for single channel images, uncompressed otherwise
+		
 		public static final String DXT_AUTO = "DXT (Auto)";
+		public static final String AUTO = "Auto";
+		public static final String AUTO_LOSSLESS = "Auto (Lossless)";
 		public static final String DXT1 = "DXT1";
 		public static final String DXT5 = "DXT5";
 		public static final String R8G8B8A8 = "R8G8B8A8";
@@ -1136,6 +751,22 @@ public class PapaTexture extends PapaComponent{
 		public static final String B8G8R8A8 = "B8G8R8A8";
 		public static final String R8 = "R8"; 
 		
+		/**
+		 * Returns the format policy for the automatic format options, or -1 for a concrete format.
+		 */
+		public static int getFormatPolicy(String format) {
+			switch(format) {
+				case DXT_AUTO:
+					return FORMAT_POLICY_DXT;
+				case AUTO:
+					return FORMAT_POLICY_BALANCED;
+				case AUTO_LOSSLESS:
+					return FORMAT_POLICY_LOSSLESS;
+				default:
+					return -1;
+			}
+		}
+		
 		private String format;
 		private CompressionMethod method;
 		private boolean generateMipmaps;
@@ -1308,38 +939,34 @@ public class PapaTexture extends PapaComponent{
 				&&	(t.numImages	==	numImages)
 				&&	(t.isLinked		==	isLinked)
 				&&	(t.name.equals(		name))
-				&&	(isLinked ? linkValid() == t.linkValid() && getLinkedTexture().equals(t.getLinkedTexture()) : compareImages(textures, t.textures));
+				&&	(isLinked ? linkValid() == t.linkValid() && getLinkedTexture().equals(t.getLinkedTexture()) : samePayload(t));
 				
 	}
 	
-	private boolean compareImages(BufferedImage[] set1, BufferedImage[] set2) {
-		if(set1==null || set2==null)
-			return set1==set2;
-		if(set1.length!=set2.length)
-			return false;
-		for(int i =0;i<set1.length;i++) {
-			if(set1[i].getWidth()!=set2[i].getWidth())
-				return false;
-			if(set1[i].getHeight()!=set2[i].getHeight())
-				return false;
-			if(set1[i].getTransparency()!=set2[i].getTransparency())
-				return false;
-			if(! set1[i].getColorModel().equals(set2[i].getColorModel()))
-				return false;
-		}
-		for(int i =0;i<set1.length;i++) {
-			if(!compareImage(set1[i], set2[i]))
-				return false;
+	/**
+	 * A 64 bit hash of the encoded image data, computed once for every data array. Textures with a different hash never
+	 * hold the same data.
+	 */
+	public long getContentHash() {
+		checkLinked(false);
+		byte[] current = data;
+		if(hashedData != current) {
+			contentHash = ContentHash.hash(current);
+			hashedData = current;
 		}
-		return true;
+		return contentHash;
 	}
 	
-	private boolean compareImage(BufferedImage a, BufferedImage b) {
-		for(int x = 0;x<a.getWidth();x++)
-			for(int y = 0;y<a.getHeight();y++)
-				if(a.getRGB(x, y)!=b.getRGB(x, y))
-					return false;
-		return true;
+	/**
+	 * Compares the encoded data, which is exact without decoding anything. The hashes rule out almost all differing pairs
+	 * before any bytes are compared.
+	 */
+	private boolean samePayload(PapaTexture t) {
+		if(data == t.data)
+			return true;
+		if(data == null || t.data == null)
+			return false;
+		return getContentHash() == t.getContentHash() && Arrays.equals(data, t.data);
 	}
 	
 	@Override
@@ -1354,6 +981,8 @@ public class PapaTexture extends PapaComponent{
 		result = prime * result + 		numImages;
 		result = prime * result + 		(isLinked ? 1 : 0);
 		result = prime * result + 		name.hashCode();
+		if(!isLinked)
+			result = prime * result + 	Long.hashCode(getContentHash());
 		return result;
 	}
 
@@ -1379,6 +1008,8 @@ public class PapaTexture extends PapaComponent{
 		PapaTexture copy = this;
 		//if(copy.isLinked)
 		//	copy = copy.getLinkedTexture();
+		if(!copy.isLinked)
+			return new PapaTexture(copy);
 		try {
 			return new PapaTexture(copy.name,copy.format,(byte) (copy.mips + 1), copy.srgb, copy.width,copy.height, copy.data.clone(),null);
 		} catch (IOException e) {
@@ -1386,6 +1017,105 @@ public class PapaTexture extends PapaComponent{
 		}
 	}
 	
+	/**
+	 * Takes a read only copy of this texture which shares its data, see {@link PapaFileSnapshot}. A linked texture is
+	 * copied together with the texture it refers to when that file is loaded.
+	 */
+	public TextureSnapshot snapshot() {
+		TextureSnapshot linkedTexture = null;
+		if(isLinked && parent != null && parent.containsLinkedFile(name)) {
+			PapaFile link = parent.getLinkedFile(name);
+			if(link.getNumTextures() == 1)
+				linkedTexture = link.getTexture(0).snapshot();
+		}
+		return new TextureSnapshot(this, linkedTexture);
+	}
+	
+	/**
+	 * Converts this texture into the given format directly from its raw payload, without building any BufferedImage.
+	 * Swizzles between the 32 bit formats and extraction of R8 from them are plain byte copies. Other conversions
+	 * decode each level into packed ARGB and re-encode it. The mip layout is kept as is. The result has no parent.
+	 */
+	public PapaTexture transcode(String format, CompressionMethod method) throws IOException {
+		checkLinked(false);
+		int policy = TextureSettings.getFormatPolicy(format);
+		if(policy != -1) {
+			int[] argb = new int[width * height];
+			ByteBuffer buf = ByteBuffer.wrap(data);
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			codec.decodeARGB(buf, width, height, argb);
+			format = ImageAnalysis.analyze(argb, width, height).selectFormat(policy);
+		}
+		TextureCodec target = TextureCodec.getEncoder(format);
+		return new PapaTexture(name, target.formatIndex(), (byte) (mips + 1), srgb, width, height, transcodeData(target, method), null);
+	}
+	
+	private byte[] transcodeData(TextureCodec target, CompressionMethod method) {
+		byte source = this.format;
+		byte dest = target.formatIndex();
+		if(source == dest)
+			return data.clone();
+		if(isRGBA32(source) && (isRGBA32(dest) || dest == FORMAT_R8))
+			return swizzle(data, source, dest);
+		if(source == FORMAT_R8 && isRGBA32(dest))
+			return expandR8(data);
+		
+		byte[] out = new byte[target.calcSize(width, height, mips)];
+		ByteBuffer reader = ByteBuffer.wrap(data);
+		reader.order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer writer = ByteBuffer.wrap(out);
+		writer.order(ByteOrder.LITTLE_ENDIAN);
+		int[] argb = new int[width * height]; // large enough for every level
+		for(int i = 0;i<=mips;i++) {
+			int w = mipSize(width, i);
+			int h = mipSize(height, i);
+			codec.decodeARGB(reader, w, h, argb);
+			target.encodeARGB(argb, w, h, writer, method);
+		}
+		return out;
+	}
+	
+	private static final byte FORMAT_R8G8B8A8 = 1, FORMAT_R8G8B8X8 = 2, FORMAT_B8G8R8A8 = 3, FORMAT_R8 = 13;
+	
+	private static boolean isRGBA32(byte format) {
+		return format == FORMAT_R8G8B8A8 || format == FORMAT_R8G8B8X8 || format == FORMAT_B8G8R8A8;
+	}
+	
+	static byte[] swizzle(byte[] in, byte source, byte dest) {
+		int red = source == FORMAT_B8G8R8A8 ? 2 : 0;
+		int pixels = in.length / 4;
+		if(dest == FORMAT_R8) {
+			byte[] out = new byte[pixels];
+			for(int i = 0, j = red;i<pixels;i++, j+=4)
+				out[i] = in[j];
+			return out;
+		}
+		byte[] out = in.clone();
+		if((source == FORMAT_B8G8R8A8) != (dest == FORMAT_B8G8R8A8)) {
+			for(int j = 0;j<out.length;j+=4) {
+				byte tmp = out[j];
+				out[j] = out[j + 2];
+				out[j + 2] = tmp;
+			}
+		}
+		if(dest == FORMAT_R8G8B8X8 && source != FORMAT_R8G8B8X8)
+			for(int j = 3;j<out.length;j+=4)
+				out[j] = (byte) 0xff;
+		return out;
+	}
+	
+	private static byte[] expandR8(byte[] in) {
+		byte[] out = new byte[in.length * 4];
+		for(int i = 0, j = 0;i<in.length;i++) {
+			byte r = in[i];
+			out[j++] = r;
+			out[j++] = r;
+			out[j++] = r;
+			out[j++] = (byte) 0xff;
+		}
+		return out;
+	}
+	
 	@Override
 	protected void overwriteHelper(PapaComponent other) {// TODO
 		PapaTexture tex = (PapaTexture) other;
@@ -1397,6 +1127,7 @@ public class PapaTexture extends PapaComponent{
 		this.green=tex.green;
 		this.blue=tex.blue;
 		this.alpha=tex.alpha;
+		this.luminance=tex.luminance;
 		this.data = tex.data;
 		this.width = tex.width;
 		this.height = tex.height;
@@ -1404,7 +1135,7 @@ public class PapaTexture extends PapaComponent{
 		this.format = tex.format;
 		this.mips = tex.mips;
 		this.numImages = tex.numImages;
-		this.textureConverter = tex.textureConverter;
+		this.codec = tex.codec;
 	}
 
 	@Override
@@ -1440,4 +1171,14 @@ public class PapaTexture extends PapaComponent{
 		}
 		return false;
 	}
+	
+	@Override
+	void indexDependencies(DependencyIndex index) {
+		index.addString(this, name);
+		if(isLinked() && linkValid()) {
+			PapaTexture linked = getLinkedTexture();
+			index.addComponent(this, linked);
+			index.addComponent(this, linked.getParent());
+		}
+	}
 }
@@ -23,384 +23,197 @@ import java.awt.Color;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 
 import papafile.PapaFile.BuildNotification;
+import papafile.VertexFormat.Attribute;
 
 public class PapaVertexBuffer extends PapaComponent {
-	private static final String[] formats = {	"Position3","Position3Color4bTexCoord2","Position3Color4bTexCoord4", "Position3Color4bTexCoord6", "Position3Normal3",
-												"Position3Normal3TexCoord2", "Position3Normal3Color4TexCoord2", "Position3Normal3Color4TexCoord4",
-												"Position3Weights4bBones4bNormal3TexCoord2", "Position3Normal3Tan3Bin3TexCoord2", "Position3Normal3Tan3Bin3TexCoord4",
-												"Position3Normal3Tan3Bin3Color4TexCoord4", "TexCoord4", "Position3Color8fTexCoord6", "Matrix"};
 	
 	private PapaFile parent;
 	
 	private byte format;
 	
-	private PapaVertex[] vertices;
+	private VertexFormat vertexFormat;
+	
+	private int numVertices;
+	
+	// one array per attribute indexed by ordinal, with the components of each vertex next to each other. Absent attributes are null.
+	private float[][] floats = new float[Attribute.values().length][];
+	private byte[][] bytes = new byte[Attribute.values().length][];
 	
-	private VertexBufferConverter modelConverter;
-
 	public String getFormat() {
-		return formats[format];
+		return vertexFormat.getName();
+	}
+	
+	public VertexFormat getVertexFormat() {
+		return vertexFormat;
 	}
 	
 	public int getNumVertices() {
-		return vertices.length;
+		return numVertices;
 	}
 	
+	/**
+	 * Builds a view of a single vertex. The view is a copy, changes to it are not reflected in the buffer.
+	 */
 	public PapaVertex getVertex(int index) {
-		return vertices[index];
-	}
-	
-	private VertexBufferConverter getInstance(String format) throws IOException {
-		switch(format) {
-		case 			"Position3":
-			return new   Position3();
-		case 			"Position3Normal3Color4TexCoord2":
-			return new 	 Position3Normal3Color4TexCoord2();
-		case 			"Position3Normal3Color4TexCoord4":
-			return new   Position3Normal3Color4TexCoord4();
-		case 			"Position3Weights4bBones4bNormal3TexCoord2":
-			return new   Position3Weights4bBones4bNormal3TexCoord2();
-		case 			"Position3Normal3Tan3Bin3TexCoord4":
-			return new   Position3Normal3Tan3Bin3TexCoord4();
-		default:
-			throw new IOException("Unsupported format: "+format);
-		}
+		if(index < 0 || index >= numVertices)
+			throw new IndexOutOfBoundsException("Vertex "+index+" out of bounds for "+numVertices+" vertices");
+		byte[] colours = getColours(), weights = getWeights(), bones = getBones();
+		Color c = colours == null ? null : new Color(colours[index * 4] & 0xff, colours[index * 4 + 1] & 0xff, colours[index * 4 + 2] & 0xff, colours[index * 4 + 3] & 0xff);
+		float[] w = null;
+		if(weights != null) {
+			w = new float[4];
+			for(int i = 0;i<4;i++)
+				w[i] = (weights[index * 4 + i] & 0xff) / 255f;
+		}
+		return new PapaVertex(slice(getPositions(), index, 3), slice(getNormals(), index, 3), slice(getBinormals(), index, 3), slice(getTangents(), index, 3), c,
+								slice(getTexcoords1(), index, 2), slice(getTexcoords2(), index, 2), bones == null ? null : Arrays.copyOfRange(bones, index * 4, index * 4 + 4), w);
 	}
 	
-	private void checkData(ByteBuffer buf, int numVertices, VertexBufferConverter converter) throws IOException {
-		int expectedSize = converter.calcSize(numVertices);
-		int actualSize = buf.limit();
-		if(actualSize != expectedSize)
-			throw new IOException("Vertex buffer data size of "+actualSize+" bytes does not match expected size of " + expectedSize+" bytes");
+	private static float[] slice(float[] array, int index, int components) {
+		if(array == null)
+			return null;
+		return Arrays.copyOfRange(array, index * components, index * components + components);
 	}
 	
+	/*
+	 * The arrays below are the storage of this buffer and are returned without copying. Each returns null if the format
+	 * does not have the attribute.
+	 */
 	
-	public PapaVertexBuffer(byte format, int vertices, byte[] data, PapaFile p) throws IOException{
-		this.format = format;
-		this.parent = p;
-		
-		ByteBuffer buf = ByteBuffer.wrap(data);
-		buf.order(ByteOrder.LITTLE_ENDIAN);
-		modelConverter = getInstance(getFormat());
-		
-		decodeAll(vertices, buf, modelConverter);
+	/**
+	 * The values of a float attribute, {@link Attribute#count} for every vertex.
+	 */
+	public float[] getFloatAttribute(Attribute attribute) {
+		if(attribute.type != VertexFormat.Type.FLOAT)
+			throw new IllegalArgumentException(attribute+" is not a float attribute");
+		return floats[attribute.ordinal()];
 	}
 	
-	private void decodeAll(int numVertices, ByteBuffer buf, VertexBufferConverter converter) throws IOException {
-		checkData(buf, numVertices, converter);
-		
-		this.vertices = modelConverter.decode(numVertices, buf);
-	}
-	
-	private abstract class VertexBufferConverter {
-		protected abstract void encodeVertices(PapaVertex[] vertices, ByteBuffer writer);
-		public abstract PapaVertex[] decode(int vertices, ByteBuffer buf);
-		public abstract int calcSize(int vertices);
-		public abstract byte formatIndex();
-		public abstract boolean testCompatibility(PapaVertex v);
-		public byte[] encode(PapaVertex... v) {
-			byte[] buf = new byte[calcSize(v.length)];
-			ByteBuffer b = ByteBuffer.wrap(buf);
-			b.order(ByteOrder.LITTLE_ENDIAN);
-			encodeVertices(v, b);
-			return buf;
-		}
+	/**
+	 * The values of a byte attribute, {@link Attribute#count} for every vertex.
+	 */
+	public byte[] getByteAttribute(Attribute attribute) {
+		if(attribute.type != VertexFormat.Type.UNSIGNED_BYTE)
+			throw new IllegalArgumentException(attribute+" is not a byte attribute");
+		return bytes[attribute.ordinal()];
 	}
 	
-	private class Position3 extends VertexBufferConverter {
-
-		@Override
-		protected void encodeVertices(PapaVertex[] vertices, ByteBuffer writer) {
-			for(PapaVertex v : vertices) {
-				float[] pos = v.getPosition();
-				writer.putFloat(pos[0]);
-				writer.putFloat(pos[1]);
-				writer.putFloat(pos[2]);
-			}
-		}
-
-		@Override
-		public PapaVertex[] decode(int vertices, ByteBuffer buf) {
-			PapaVertex[] vert = new PapaVertex[vertices];
-			for(int i = 0;i<vertices;i++) {
-				float[] pos = new float[] {buf.getFloat(), buf.getFloat(),buf.getFloat()};
-				vert[i] = new PapaVertex(pos);
-			}
-			return vert;
-		}
-		
-		@Override
-		public int calcSize(int vertices) {
-			return vertices * 12;
-		}
-
-		@Override
-		public byte formatIndex() {
-			return 0;
-		}
-
-		@Override
-		public boolean testCompatibility(PapaVertex v) {
-			return true;
-		}
+	/** Positions as x, y, z for every vertex. */
+	public float[] getPositions() {
+		return floats[Attribute.POSITION.ordinal()];
 	}
 	
-	private class Position3Normal3Color4TexCoord2 extends VertexBufferConverter {
-		
-		@Override
-		protected void encodeVertices(PapaVertex[] vertices, ByteBuffer writer) {
-			for(PapaVertex v : vertices) {
-				float[] pos = v.getPosition();
-				writer.putFloat(pos[0]);
-				writer.putFloat(pos[1]);
-				writer.putFloat(pos[2]);
-				
-				float[] norm = v.getNormal();
-				writer.putFloat(norm[0]);
-				writer.putFloat(norm[1]);
-				writer.putFloat(norm[2]);
-				
-				Color c = v.getColour();
-				writer.put((byte) c.getRed());
-				writer.put((byte) c.getGreen());
-				writer.put((byte) c.getBlue());
-				writer.put((byte) c.getAlpha());
-				
-				float[] texcoord = v.getTexcoord1();
-				writer.putFloat(texcoord[0]);
-				writer.putFloat(texcoord[1]);
-			}
-		}
-		
-		@Override
-		public PapaVertex[] decode(int vertices, ByteBuffer buf) {
-			PapaVertex[] vert = new PapaVertex[vertices];
-			for(int i = 0;i<vertices;i++) {
-				float[] pos = new float[] {buf.getFloat(), buf.getFloat(),buf.getFloat()};
-				float[] normal = new float[] {buf.getFloat(), buf.getFloat(),buf.getFloat()};
-				Color c = new Color(buf.get() & 0xff,buf.get() & 0xff,buf.get() & 0xff,buf.get() & 0xff);
-				float[] texcoord = new float[] {buf.getFloat(), buf.getFloat()};
-				vert[i] = new PapaVertex(pos,normal,c,texcoord);
-			}
-			return vert;
-		}
-		
-		@Override
-		public int calcSize(int vertices) {
-			return vertices * 36;
-		}
-		
-		@Override
-		public byte formatIndex() {
-			return 6;
-		}
-
-		@Override
-		public boolean testCompatibility(PapaVertex v) {
-			return v.normalAvailable() && v.tangentAvailable() && v.texcoord1Available();
-		}
+	/** Normals as x, y, z for every vertex. */
+	public float[] getNormals() {
+		return floats[Attribute.NORMAL.ordinal()];
 	}
 	
-	private class Position3Normal3Color4TexCoord4 extends VertexBufferConverter {
-		
-		@Override
-		protected void encodeVertices(PapaVertex[] vertices, ByteBuffer writer) {
-			for(PapaVertex v : vertices) {
-				float[] pos = v.getPosition();
-				writer.putFloat(pos[0]);
-				writer.putFloat(pos[1]);
-				writer.putFloat(pos[2]);
-				
-				float[] norm = v.getNormal();
-				writer.putFloat(norm[0]);
-				writer.putFloat(norm[1]);
-				writer.putFloat(norm[2]);
-				
-				Color c = v.getColour();
-				writer.put((byte) c.getRed());
-				writer.put((byte) c.getGreen());
-				writer.put((byte) c.getBlue());
-				writer.put((byte) c.getAlpha());
-				
-				float[] texcoord = v.getTexcoord1();
-				writer.putFloat(texcoord[0]);
-				writer.putFloat(texcoord[1]);
-				
-				float[] texcoord2 = v.getTexcoord2();
-				writer.putFloat(texcoord2[0]);
-				writer.putFloat(texcoord2[1]);
-			}
-		}
-		
-		@Override
-		public PapaVertex[] decode(int vertices, ByteBuffer buf) {
-			PapaVertex[] vert = new PapaVertex[vertices];
-			for(int i = 0;i<vertices;i++) {
-				float[] pos = new float[] {buf.getFloat(), buf.getFloat(),buf.getFloat()};
-				float[] normal = new float[] {buf.getFloat(), buf.getFloat(),buf.getFloat()};
-				Color c = new Color(buf.get() & 0xff,buf.get() & 0xff,buf.get() & 0xff,buf.get() & 0xff);
-				float[] texcoord1 = new float[] {buf.getFloat(), buf.getFloat()};
-				float[] texcoord2 = new float[] {buf.getFloat(), buf.getFloat()};
-				vert[i] = new PapaVertex(pos,normal,c,texcoord1, texcoord2);
-			}
-			return vert;
-		}
-		
-		@Override
-		public int calcSize(int vertices) {
-			return vertices * 44;
-		}
-		
-		@Override
-		public byte formatIndex() {
-			return 7;
-		}
-		
-		@Override
-		public boolean testCompatibility(PapaVertex v) {
-			return v.normalAvailable() && v.tangentAvailable() && v.colourAvailable() && v.texcoord1Available() && v.texcoord2Available();
-		}
+	/** Tangents as x, y, z for every vertex. */
+	public float[] getTangents() {
+		return floats[Attribute.TANGENT.ordinal()];
 	}
 	
-	private class Position3Weights4bBones4bNormal3TexCoord2 extends VertexBufferConverter {
-		
-		@Override
-		protected void encodeVertices(PapaVertex[] vertices, ByteBuffer writer) {
-			for(PapaVertex v : vertices) {
-				float[] pos = v.getPosition();
-				writer.putFloat(pos[0]);
-				writer.putFloat(pos[1]);
-				writer.putFloat(pos[2]);
-				
-				byte[] bones = v.getBones();
-				writer.put(bones[0]);
-				writer.put(bones[1]);
-				writer.put(bones[2]);
-				writer.put(bones[3]);
-				
-				byte[] weights = toBytes(v.getWeights());
-				writer.put(weights[0]);
-				writer.put(weights[1]);
-				writer.put(weights[2]);
-				writer.put(weights[3]);
-				
-				float[] normal = v.getNormal();
-				writer.putFloat(normal[0]);
-				writer.putFloat(normal[1]);
-				writer.putFloat(normal[2]);
-				
-				float[] texcoord = v.getTexcoord1();
-				writer.putFloat(texcoord[0]);
-				writer.putFloat(texcoord[1]);
-			}
-		}
-		
-		private byte[] toBytes(float[] floats) {
-			byte[] val = new byte[floats.length];
-			for(int i =0;i<floats.length;i++)
-				val[i] = (byte) (floats[i] * 255);
-			return val;
-		}
-		
-		@Override
-		public PapaVertex[] decode(int vertices, ByteBuffer buf) {
-			PapaVertex[] vert = new PapaVertex[vertices];
-			for(int i = 0;i<vertices;i++) {
-				float[] pos = new float[] {buf.getFloat(), buf.getFloat(),buf.getFloat()};
-				byte[] bones = new byte[] {buf.get(), buf.get(), buf.get(), buf.get()};
-				byte[] weights = new byte[] {buf.get(), buf.get(), buf.get(), buf.get()};
-				float[] normal = new float[] {buf.getFloat(), buf.getFloat(),buf.getFloat()};
-				float[] texcoord = new float[] {buf.getFloat(), buf.getFloat()};
-				vert[i] = new PapaVertex(pos, bones, weights, normal, texcoord);
-			}
-			return vert;
-		}
-		
-		@Override
-		public int calcSize(int vertices) {
-			return vertices * 40;
-		}
-		
-		@Override
-		public byte formatIndex() {
-			return 8;
-		}
-		
-		@Override
-		public boolean testCompatibility(PapaVertex v) {
-			return v.bonesAvailable() && v.weightsAvailable() && v.normalAvailable() && v.tangentAvailable() && v.texcoord1Available();
-		}
+	/** Binormals as x, y, z for every vertex. */
+	public float[] getBinormals() {
+		return floats[Attribute.BINORMAL.ordinal()];
 	}
 	
+	/** Colours as red, green, blue, alpha bytes for every vertex. */
+	public byte[] getColours() {
+		return bytes[Attribute.COLOUR.ordinal()];
+	}
 	
-	private class Position3Normal3Tan3Bin3TexCoord4 extends VertexBufferConverter {
-		
-		@Override
-		protected void encodeVertices(PapaVertex[] vertices, ByteBuffer writer) {
-			for(PapaVertex v : vertices) {
-				float[] pos = v.getPosition();
-				writer.putFloat(pos[0]);
-				writer.putFloat(pos[1]);
-				writer.putFloat(pos[2]);
-				
-				float[] normal = v.getNormal();
-				writer.putFloat(normal[0]);
-				writer.putFloat(normal[1]);
-				writer.putFloat(normal[2]);
-				
-				float[] tangent = v.getTangent();
-				writer.putFloat(tangent[0]);
-				writer.putFloat(tangent[1]);
-				writer.putFloat(tangent[2]);
-				
-				float[] binormal = v.getBinormal();
-				writer.putFloat(binormal[0]);
-				writer.putFloat(binormal[1]);
-				writer.putFloat(binormal[2]);
-				
-				float[] texcoord1 = v.getTexcoord1();
-				writer.putFloat(texcoord1[0]);
-				writer.putFloat(texcoord1[1]);
-				
-				float[] texcoord2 = v.getTexcoord2();
-				writer.putFloat(texcoord2[0]);
-				writer.putFloat(texcoord2[1]);
+	/** The first texture coordinates as u, v for every vertex. */
+	public float[] getTexcoords1() {
+		return floats[Attribute.TEXCOORD1.ordinal()];
+	}
+	
+	/** The second texture coordinates as u, v for every vertex. */
+	public float[] getTexcoords2() {
+		return floats[Attribute.TEXCOORD2.ordinal()];
+	}
+	
+	/** The third texture coordinates as u, v for every vertex. */
+	public float[] getTexcoords3() {
+		return floats[Attribute.TEXCOORD3.ordinal()];
+	}
+	
+	/** Four bone indices for every vertex. */
+	public byte[] getBones() {
+		return bytes[Attribute.BONES.ordinal()];
+	}
+	
+	/** Four bone weights for every vertex, from 0 to 255. */
+	public byte[] getWeights() {
+		return bytes[Attribute.WEIGHTS.ordinal()];
+	}
+	
+	/**
+	 * True if both buffers have the same format and exactly the same vertices.
+	 */
+	boolean sameContent(PapaVertexBuffer other) {
+		return format == other.format && numVertices == other.numVertices
+				&& Arrays.deepEquals(floats, other.floats) && Arrays.deepEquals(bytes, other.bytes);
+	}
+	
+	int contentHashCode() {
+		return 31 * (31 * format + Arrays.deepHashCode(floats)) + Arrays.deepHashCode(bytes);
+	}
+	
+	/**
+	 * Rearranges the vertices so that vertex i becomes the former vertex order[i]. Vertices which do not appear are removed.
+	 */
+	void reorder(int[] order) {
+		for(Attribute a : Attribute.values()) {
+			int count = a.count;
+			if(floats[a.ordinal()] != null) {
+				float[] src = floats[a.ordinal()], dest = new float[order.length * count];
+				for(int i = 0;i<order.length;i++)
+					System.arraycopy(src, order[i] * count, dest, i * count, count);
+				floats[a.ordinal()] = dest;
 			}
-		}
-		
-		@Override
-		public PapaVertex[] decode(int vertices, ByteBuffer buf) {
-			PapaVertex[] vert = new PapaVertex[vertices];
-			for(int i = 0;i<vertices;i++) {
-				float[] pos = new float[] {buf.getFloat(), buf.getFloat(),buf.getFloat()};
-				float[] normal = new float[] {buf.getFloat(), buf.getFloat(),buf.getFloat()};
-				float[] tangent = new float[] {buf.getFloat(), buf.getFloat(),buf.getFloat()};
-				float[] binormal = new float[] {buf.getFloat(), buf.getFloat(),buf.getFloat()};
-				float[] texcoord1 = new float[] {buf.getFloat(), buf.getFloat()};
-				float[] texcoord2 = new float[] {buf.getFloat(), buf.getFloat()};
-				vert[i] = new PapaVertex(pos, normal, tangent, binormal, texcoord1, texcoord2);
+			if(bytes[a.ordinal()] != null) {
+				byte[] src = bytes[a.ordinal()], dest = new byte[order.length * count];
+				for(int i = 0;i<order.length;i++)
+					System.arraycopy(src, order[i] * count, dest, i * count, count);
+				bytes[a.ordinal()] = dest;
 			}
-			return vert;
 		}
+		numVertices = order.length;
+	}
+	
+	private void checkData(ByteBuffer buf, int numVertices, VertexFormat format) throws IOException {
+		int expectedSize = format.calcSize(numVertices);
+		int actualSize = buf.limit();
+		if(actualSize != expectedSize)
+			throw new IOException("Vertex buffer data size of "+actualSize+" bytes does not match expected size of " + expectedSize+" bytes");
+	}
+	
+	
+	public PapaVertexBuffer(byte format, int vertices, byte[] data, PapaFile p) throws IOException{
+		this.format = format;
+		this.parent = p;
 		
-		@Override
-		public int calcSize(int vertices) {
-			return vertices * 64;
-		}
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		vertexFormat = VertexFormat.get(format);
 		
-		@Override
-		public byte formatIndex() {
-			return 10;
-		}
+		decodeAll(vertices, buf, vertexFormat);
+	}
+	
+	private void decodeAll(int numVertices, ByteBuffer buf, VertexFormat format) throws IOException {
+		checkData(buf, numVertices, format);
 		
-		@Override
-		public boolean testCompatibility(PapaVertex v) {
-			return v.normalAvailable() && v.tangentAvailable() && v.binormalAvailable() && v.texcoord1Available() && v.texcoord2Available();
-		}
+		this.numVertices = numVertices;
+		format.decode(buf, numVertices, floats, bytes);
 	}
 	
+	/**
+	 * A single vertex, as returned by {@link PapaVertexBuffer#getVertex(int)}.
+	 */
 	public static class PapaVertex {
 		private final float[] position;
 		private final float[] normal;
@@ -479,7 +292,20 @@ public class PapaVertexBuffer extends PapaComponent {
 		public float[] getWeights() {
 			return weights;
 		}
-
+		
+		private PapaVertex(float[] position, float[] normal, float[] binormal, float[] tangent, Color colour, float[] texcoord1,
+							float[] texcoord2, byte[] bones, float[] weights) {
+			this.position = position;
+			this.normal = normal;
+			this.binormal = binormal;
+			this.tangent = tangent;
+			this.colour = colour;
+			this.texcoord1 = texcoord1;
+			this.texcoord2 = texcoord2;
+			this.bones = bones;
+			this.weights = weights;
+		}
+		
 		public PapaVertex(float[] position) {
 			this.position = position;
 			this.normal = null;
@@ -558,7 +384,7 @@ public class PapaVertexBuffer extends PapaComponent {
 
 	@Override
 	protected int bodySize() {
-		return modelConverter.calcSize(vertices.length);
+		return vertexFormat.calcSize(numVertices);
 	}
 
 	@Override
@@ -567,14 +393,14 @@ public class PapaVertexBuffer extends PapaComponent {
 		header = ByteBuffer.wrap(headerBytes);
 		header.order(ByteOrder.LITTLE_ENDIAN);
 		
-		super.data = ByteBuffer.wrap(modelConverter.encode(vertices));
+		super.data = ByteBuffer.wrap(vertexFormat.encode(numVertices, floats, bytes));
 		super.data.order(ByteOrder.LITTLE_ENDIAN);
 		
 		header.put((byte)this.format);
 		header.put((byte) 0);
 		header.put((byte) 0);
 		header.put((byte) 0);
-		header.putInt(vertices.length);
+		header.putInt(numVertices);
 		header.putLong((long)super.data.limit());
 	}
 
@@ -634,8 +460,8 @@ public class PapaVertexBuffer extends PapaComponent {
 	@Override
 	public void flush() {
 		parent = null;
-		vertices = null;
-		modelConverter = null;
+		floats = null;
+		bytes = null;
 	}
 
 }
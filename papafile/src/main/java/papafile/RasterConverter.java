@@ -0,0 +1,238 @@
+/*
+ *  This file is part of PapaFile
+ * 
+ *  File IO tools for Planetary Annihilation's papa files.
+ *  Copyright (C) 2020 Marcus Der <marcusder@hotmail.com>
+ * 
+ *  PapaFile is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  PapaFile is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU General Public License
+ *  along with PapaFile.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package papafile;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Converts images to packed ARGB pixels. The layouts ImageIO usually produces are read straight from the data buffer,
+ * anything else goes through {@link BufferedImage#getRGB(int, int, int, int, int[], int, int)}. The result is identical
+ * either way, including the gamma ImageIO applies to grey images.
+ */
+public final class RasterConverter {
+	
+	private static int[] grey8Table, grey16Table;
+	
+	private RasterConverter() {}
+	
+	public static int[] toARGB(BufferedImage image) {
+		int[] out = new int[image.getWidth() * image.getHeight()];
+		toARGB(image, 0, image.getHeight(), out, 0);
+		return out;
+	}
+	
+	/**
+	 * Converts the full width rows from y to y + rows into out, starting at offset.
+	 */
+	public static void toARGB(BufferedImage image, int y, int rows, int[] out, int offset) {
+		int width = image.getWidth();
+		if(width == 0 || rows == 0)
+			return;
+		Raster raster = image.getRaster();
+		ColorModel cm = image.getColorModel();
+		SampleModel sm = raster.getSampleModel();
+		DataBuffer db = raster.getDataBuffer();
+		int x0 = raster.getMinX() - raster.getSampleModelTranslateX();
+		int y0 = raster.getMinY() + y - raster.getSampleModelTranslateY();
+		
+		if(!cm.isAlphaPremultiplied()) {
+			if(cm instanceof DirectColorModel && sm instanceof SinglePixelPackedSampleModel && db instanceof DataBufferInt
+					&& convertPacked((DirectColorModel) cm, (SinglePixelPackedSampleModel) sm, (DataBufferInt) db, x0, y0, width, rows, out, offset))
+				return;
+			if(cm instanceof ComponentColorModel && sm instanceof PixelInterleavedSampleModel
+					&& convertInterleaved((ComponentColorModel) cm, (PixelInterleavedSampleModel) sm, db, x0, y0, width, rows, out, offset))
+				return;
+			if(cm instanceof IndexColorModel && convertIndexed((IndexColorModel) cm, sm, db, x0, y0, width, rows, out, offset))
+				return;
+		}
+		image.getRGB(0, y, width, rows, out, offset, width);
+	}
+	
+	private static boolean convertPacked(DirectColorModel cm, SinglePixelPackedSampleModel sm, DataBufferInt db, int x0, int y0,
+											int width, int rows, int[] out, int offset) {
+		if(cm.getRedMask() != 0xff0000 || cm.getGreenMask() != 0xff00 || cm.getBlueMask() != 0xff || !cm.getColorSpace().isCS_sRGB())
+			return false;
+		boolean alpha = cm.hasAlpha();
+		if(alpha && cm.getAlphaMask() != 0xff000000)
+			return false;
+		int[] data = db.getData();
+		int stride = sm.getScanlineStride();
+		int base = db.getOffset() + y0 * stride + x0;
+		for(int r = 0;r<rows;r++) {
+			int in = base + r * stride;
+			int o = offset + r * width;
+			if(alpha)
+				System.arraycopy(data, in, out, o, width);
+			else
+				for(int x = 0;x<width;x++)
+					out[o + x] = 0xff000000 | data[in + x];
+		}
+		return true;
+	}
+	
+	private static boolean convertInterleaved(ComponentColorModel cm, PixelInterleavedSampleModel sm, DataBuffer db, int x0, int y0,
+											int width, int rows, int[] out, int offset) {
+		int bands = sm.getNumBands();
+		int type = db.getDataType();
+		if(db.getNumBanks() != 1 || (type != DataBuffer.TYPE_BYTE && type != DataBuffer.TYPE_USHORT))
+			return false;
+		int bits = type == DataBuffer.TYPE_BYTE ? 8 : 16;
+		for(int size : cm.getComponentSize())
+			if(size != bits)
+				return false;
+		
+		boolean grey = cm.getColorSpace().getType() == ColorSpace.TYPE_GRAY && cm.getColorSpace().getNumComponents() == 1;
+		boolean alpha = cm.hasAlpha();
+		if(grey ? bands != (alpha ? 2 : 1) : !cm.getColorSpace().isCS_sRGB() || bands != (alpha ? 4 : 3))
+			return false;
+		if(grey && cm.getColorSpace() != ColorSpace.getInstance(ColorSpace.CS_GRAY))
+			return false;
+		
+		int[] bandOffsets = sm.getBandOffsets();
+		int pixelStride = sm.getPixelStride();
+		int stride = sm.getScanlineStride();
+		int base = db.getOffset() + y0 * stride + x0 * pixelStride;
+		byte[] bytes = type == DataBuffer.TYPE_BYTE ? ((DataBufferByte) db).getData() : null;
+		short[] shorts = type == DataBuffer.TYPE_USHORT ? ((DataBufferUShort) db).getData() : null;
+		
+		if(grey) {
+			int[] table = getGreyTable(bits);
+			int g = bandOffsets[0], a = alpha ? bandOffsets[1] : 0;
+			for(int r = 0;r<rows;r++) {
+				int in = base + r * stride;
+				int o = offset + r * width;
+				if(bytes != null)
+					for(int x = 0;x<width;x++, in += pixelStride)
+						out[o + x] = (alpha ? (bytes[in + a] & 0xff)<<24 : 0xff000000) | table[bytes[in + g] & 0xff] & 0xffffff;
+				else
+					for(int x = 0;x<width;x++, in += pixelStride)
+						out[o + x] = (alpha ? reduce(shorts[in + a])<<24 : 0xff000000) | table[shorts[in + g] & 0xffff] & 0xffffff;
+			}
+			return true;
+		}
+		
+		int rb = bandOffsets[0], gb = bandOffsets[1], bb = bandOffsets[2], ab = alpha ? bandOffsets[3] : 0;
+		for(int r = 0;r<rows;r++) {
+			int in = base + r * stride;
+			int o = offset + r * width;
+			if(bytes != null) {
+				if(alpha)
+					for(int x = 0;x<width;x++, in += pixelStride)
+						out[o + x] = (bytes[in + ab] & 0xff)<<24 | (bytes[in + rb] & 0xff)<<16 | (bytes[in + gb] & 0xff)<<8 | (bytes[in + bb] & 0xff);
+				else
+					for(int x = 0;x<width;x++, in += pixelStride)
+						out[o + x] = 0xff000000 | (bytes[in + rb] & 0xff)<<16 | (bytes[in + gb] & 0xff)<<8 | (bytes[in + bb] & 0xff);
+			} else
+				for(int x = 0;x<width;x++, in += pixelStride)
+					out[o + x] = (alpha ? reduce(shorts[in + ab])<<24 : 0xff000000) | reduce(shorts[in + rb])<<16 | reduce(shorts[in + gb])<<8 | reduce(shorts[in + bb]);
+		}
+		return true;
+	}
+	
+	private static boolean convertIndexed(IndexColorModel cm, SampleModel sm, DataBuffer db, int x0, int y0, int width, int rows,
+											int[] out, int offset) {
+		if(!(db instanceof DataBufferByte) || db.getNumBanks() != 1 || cm.getPixelSize() > 8)
+			return false;
+		byte[] data = ((DataBufferByte) db).getData();
+		int[] palette = new int[256];
+		for(int i = 0;i < 1 << cm.getPixelSize();i++)
+			palette[i] = cm.getRGB(i);
+		
+		if(sm instanceof PixelInterleavedSampleModel && sm.getNumBands() == 1) {
+			PixelInterleavedSampleModel p = (PixelInterleavedSampleModel) sm;
+			int pixelStride = p.getPixelStride();
+			int stride = p.getScanlineStride();
+			int base = db.getOffset() + y0 * stride + x0 * pixelStride + p.getBandOffsets()[0];
+			for(int r = 0;r<rows;r++) {
+				int in = base + r * stride;
+				int o = offset + r * width;
+				for(int x = 0;x<width;x++, in += pixelStride)
+					out[o + x] = palette[data[in] & 0xff];
+			}
+			return true;
+		}
+		if(sm instanceof MultiPixelPackedSampleModel) {
+			MultiPixelPackedSampleModel p = (MultiPixelPackedSampleModel) sm;
+			int bits = p.getPixelBitStride();
+			int mask = (1 << bits) - 1;
+			int stride = p.getScanlineStride();
+			int bitBase = p.getDataBitOffset() + x0 * bits;
+			int base = db.getOffset() + y0 * stride;
+			for(int r = 0;r<rows;r++) {
+				int in = base + r * stride;
+				int o = offset + r * width;
+				for(int x = 0, bit = bitBase;x<width;x++, bit += bits)
+					out[o + x] = palette[data[in + (bit>>>3)]>>>(8 - (bit & 7) - bits) & mask];
+			}
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * A 16 bit sample reduced to 8 bits with rounding, as ImageIO does.
+	 */
+	public static int reduce(int sample) {
+		return ((sample & 0xffff) * 255 + 32767) / 65535;
+	}
+	
+	/**
+	 * Returns the ARGB colour ImageIO assigns to every value of an 8 or 16 bit grey sample. Grey images are stored in a
+	 * linear colour space, which brightens them when converted to sRGB.
+	 */
+	public static synchronized int[] getGreyTable(int bits) {
+		if(bits == 8) {
+			if(grey8Table == null) {
+				BufferedImage b = new BufferedImage(256, 1, BufferedImage.TYPE_BYTE_GRAY);
+				byte[] values = new byte[256];
+				for(int i = 0;i<256;i++)
+					values[i] = (byte) i;
+				b.getRaster().setDataElements(0, 0, 256, 1, values);
+				grey8Table = b.getRGB(0, 0, 256, 1, null, 0, 256);
+			}
+			return grey8Table;
+		}
+		if(bits != 16)
+			throw new IllegalArgumentException("Unsupported grey depth "+bits);
+		if(grey16Table == null) {
+			BufferedImage b = new BufferedImage(65536, 1, BufferedImage.TYPE_USHORT_GRAY);
+			short[] values = new short[65536];
+			for(int i = 0;i<65536;i++)
+				values[i] = (short) i;
+			b.getRaster().setDataElements(0, 0, 65536, 1, values);
+			grey16Table = b.getRGB(0, 0, 65536, 1, null, 0, 65536);
+		}
+		return grey16Table;
+	}
+}
@@ -0,0 +1,702 @@
+/*
+ *  This file is part of PapaFile
+ * 
+ *  File IO tools for Planetary Annihilation's papa files.
+ *  Copyright (C) 2020 Marcus Der <marcusder@hotmail.com>
+ * 
+ *  PapaFile is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  PapaFile is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU General Public License
+ *  along with PapaFile.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package papafile;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import io.github.memo33.jsquish.Squish;
+import io.github.memo33.jsquish.Squish.CompressionMethod;
+import io.github.memo33.jsquish.Squish.CompressionType;
+
+/**
+ * Reads and writes the pixel data of a single texture format. Codecs hold no state and a single instance is shared by
+ * every texture and thread.<br>
+ * Besides the built in codecs, additional ones can be added through {@link #register(TextureCodec)} or by listing them
+ * in a <code>META-INF/services/papafile.TextureCodec</code> file on the class path. When several codecs handle the same
+ * format, the one with the highest quality is used unless speed is asked for.
+ */
+public abstract class TextureCodec {
+	
+	public static final int SPEED_SLOW = 0;
+	public static final int SPEED_MEDIUM = 50;
+	public static final int SPEED_FAST = 100;
+	
+	public static final int QUALITY_LOSSY = 50;
+	public static final int QUALITY_LOSSLESS = 100;
+	
+	private static final ArrayList<TextureCodec> codecs = new ArrayList<TextureCodec>();
+	
+	static {
+		register(new R8G8B8A8());
+		register(new R8G8B8X8());
+		register(new B8G8R8A8());
+		register(new DXT1());
+		register(new DXT3());
+		register(new DXT5());
+		register(new R8());
+		try {
+			for(TextureCodec codec : ServiceLoader.load(TextureCodec.class, TextureCodec.class.getClassLoader()))
+				register(codec);
+		} catch (ServiceConfigurationError e) {
+			System.err.println("Failed to load texture codecs: "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * Adds a codec to the registry. The codec must be stateless since it will be shared between threads.
+	 */
+	public static void register(TextureCodec codec) {
+		synchronized(codecs) {
+			codecs.add(codec);
+		}
+	}
+	
+	public static TextureCodec[] getCodecs() {
+		synchronized(codecs) {
+			return codecs.toArray(new TextureCodec[codecs.size()]);
+		}
+	}
+	
+	/**
+	 * Returns the highest quality codec able to encode the named format.
+	 */
+	public static TextureCodec getEncoder(String format) throws IOException {
+		return getEncoder(format, false);
+	}
+	
+	public static TextureCodec getEncoder(String format, boolean preferSpeed) throws IOException {
+		TextureCodec best = null;
+		for(TextureCodec codec : getCodecs())
+			if(codec.canEncode() && codec.getFormat().equals(format) && isBetter(codec, best, preferSpeed))
+				best = codec;
+		if(best == null)
+			throw new IOException("Unsupported format: "+format);
+		return best;
+	}
+	
+	/**
+	 * Returns the highest quality codec able to decode the format with the given papa format index.
+	 */
+	public static TextureCodec getDecoder(byte formatIndex) throws IOException {
+		TextureCodec best = null;
+		for(TextureCodec codec : getCodecs())
+			if(codec.canDecode() && codec.formatIndex() == formatIndex && isBetter(codec, best, false))
+				best = codec;
+		if(best == null)
+			throw new IOException("Unsupported format index: "+formatIndex);
+		return best;
+	}
+	
+	/**
+	 * Returns the highest quality codec able to decode the named format.
+	 */
+	public static TextureCodec getDecoder(String format) throws IOException {
+		TextureCodec best = null;
+		for(TextureCodec codec : getCodecs())
+			if(codec.canDecode() && codec.getFormat().equals(format) && isBetter(codec, best, false))
+				best = codec;
+		if(best == null)
+			throw new IOException("Unsupported format: "+format);
+		return best;
+	}
+	
+	private static boolean isBetter(TextureCodec codec, TextureCodec best, boolean preferSpeed) {
+		if(best == null)
+			return true;
+		if(preferSpeed && codec.getSpeed() != best.getSpeed())
+			return codec.getSpeed() > best.getSpeed();
+		if(codec.getQuality() != best.getQuality())
+			return codec.getQuality() > best.getQuality();
+		return codec.getSpeed() > best.getSpeed();
+	}
+	
+	/**
+	 * The name of the format, matching {@link PapaTexture#getFormat()}.
+	 */
+	public abstract String getFormat();
+	
+	public abstract byte formatIndex();
+	
+	public boolean canDecode() {
+		return true;
+	}
+	
+	public boolean canEncode() {
+		return true;
+	}
+	
+	/**
+	 * A rough measure of encoding speed, where {@link #SPEED_SLOW} is the slowest and {@link #SPEED_FAST} the fastest.
+	 */
+	public abstract int getSpeed();
+	
+	/**
+	 * A rough measure of the encoded quality, where {@link #QUALITY_LOSSLESS} means the input is stored exactly.
+	 */
+	public abstract int getQuality();
+	
+	public boolean supportsAlpha() {
+		return true;
+	}
+	
+	/**
+	 * The size in bytes of an image and the given number of mipmaps following it.
+	 */
+	public int calcSize(int width, int height, int mips) {
+		int size = 0;
+		for(int i=0;i<mips + 1;i++)
+			size+= imageSize(Math.max(width >> i, 1), Math.max(height >> i, 1));
+		return size;
+	}
+	
+	protected abstract int imageSize(int width, int height);
+	
+	/**
+	 * The number of pixel rows stored together. Decoding may start at any multiple of this row.
+	 */
+	public int getBlockHeight() {
+		return 1;
+	}
+
+	/**
+	 * Decodes one image from the buffer into packed ARGB pixels, advancing the buffer past the image.
+	 */
+	public abstract void decodeARGB(ByteBuffer buf, int width, int height, int[] out);
+	
+	/**
+	 * Encodes one image of packed ARGB pixels into the writer. The compression method is only used by lossy formats.
+	 */
+	public abstract void encodeARGB(int[] argb, int width, int height, ByteBuffer writer, CompressionMethod method);
+	
+	/**
+	 * Decodes one image into the packed ARGB pixels shown to the user, which is what {@link #decode} returns. This only
+	 * differs from {@link #decodeARGB} for formats which are displayed differently from how they are converted.
+	 */
+	public void decodeDisplayARGB(ByteBuffer buf, int width, int height, int[] out) {
+		decodeARGB(buf, width, height, out);
+	}
+	
+	public BufferedImage decode(ByteBuffer buf, int width, int height) {
+		BufferedImage b = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		
+		int[] array = new int[width*height];
+		decodeDisplayARGB(buf, width, height, array);
+		b.setRGB(0, 0, width, height, array, 0, width);
+		return b;
+	}
+	
+	public byte[] encode(BufferedImage[] input, CompressionMethod method) {
+		int images = input.length;
+		int width = input[0].getWidth();
+		int height = input[0].getHeight();
+		byte[] buf = new byte[calcSize(width,height,images - 1)];
+		ByteBuffer b = ByteBuffer.wrap(buf);
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		for(int i=0;i<images;i++) {
+			int w = input[i].getWidth();
+			int h = input[i].getHeight();
+			encodeARGB(RasterConverter.toARGB(input[i]), w, h, b, method);
+		}
+		return buf;
+	}
+	
+	public BufferedImage asLuminance(BufferedImage image) {
+		BufferedImage out = new BufferedImage(image.getWidth(),image.getHeight(),BufferedImage.TYPE_INT_ARGB);
+		for(int y= 0;y<image.getHeight();y++)
+			for(int x =0;x<image.getWidth();x++) {
+				int value = image.getRGB(x, y);
+				int average = (int) ((float)(value & 0b00000000_00000000_11111111) 			* 0.082f 	//Blue
+									+ (float)((value & 0b00000000_11111111_00000000)>>>8) 	* 0.6094f 	//Green
+									+ (float)((value & 0b11111111_00000000_00000000)>>>16) 	* 0.3086f);	//Red
+				int RGB = average | (average<<8) | (average<<16);
+				out.setRGB(x, y, RGB  | (value & 0b11111111_00000000_00000000_00000000));
+			}
+		return out;
+	}
+	
+	public BufferedImage asRed(BufferedImage image) {
+		return filterImage(image, 0b11111111_11111111_00000000_00000000);
+	}
+	
+	public BufferedImage asGreen(BufferedImage image) {
+		return filterImage(image, 0b11111111_00000000_11111111_00000000);
+	}
+	
+	public BufferedImage asBlue(BufferedImage image) {
+		return filterImage(image, 0b11111111_00000000_00000000_11111111);
+	}
+	
+	public BufferedImage asAlpha(BufferedImage image) {
+		BufferedImage out = new BufferedImage(image.getWidth(),image.getHeight(),BufferedImage.TYPE_INT_ARGB);
+		for(int y= 0;y<image.getHeight();y++)
+			for(int x =0;x<image.getWidth();x++) {
+				int alphaBits = (image.getRGB(x, y) & 0b11111111_00000000_00000000_00000000)>>>24;
+				alphaBits |= alphaBits<<8 | alphaBits<<16 | 0b11111111_00000000_00000000_00000000;
+				out.setRGB(x, y, alphaBits);
+			}
+		return out;
+	}
+	
+	protected BufferedImage filterImage(BufferedImage input, int filterBits) {
+		BufferedImage out = new BufferedImage(input.getWidth(),input.getHeight(),BufferedImage.TYPE_INT_ARGB);
+		for(int y= 0;y<input.getHeight();y++)
+			for(int x =0;x<input.getWidth();x++)
+				out.setRGB(x, y, input.getRGB(x, y) & filterBits);
+		return out;
+	}
+	
+	@Override
+	public String toString() {
+		return getClass().getSimpleName()+" ("+getFormat()+")";
+	}
+	
+	private static class R8G8B8A8 extends TextureCodec {
+		
+		@Override
+		public void decodeARGB(ByteBuffer buf, int width, int height, int[] out) {
+			int length = width*height;
+			for(int i = 0;i<length;i++) {
+				int tmp=0;
+				tmp |=(buf.get() & 0b11111111)<<16;
+				tmp |=(buf.get() & 0b11111111)<<8;
+				tmp |=(buf.get() & 0b11111111);
+				tmp |=(buf.get() & 0b11111111)<<24;
+				out[i] = tmp;
+			}
+		}
+		
+		@Override
+		public void encodeARGB(int[] argb, int width, int height, ByteBuffer writer, CompressionMethod method) {
+			int length = width*height;
+			for(int j = 0;j<length;j++) {// ARGB -> RGBA
+				int i = argb[j];
+				writer.put((byte)(i>>>16));
+				writer.put((byte)(i>>>8));
+				writer.put((byte)(i));
+				writer.put((byte)(i>>>24));
+			}
+		}
+		
+		@Override
+		protected int imageSize(int width, int height) {
+			return width*height*4;
+		}
+		
+		@Override
+		public String getFormat() {
+			return PapaTexture.TextureSettings.R8G8B8A8;
+		}
+		
+		@Override
+		public byte formatIndex() {
+			return 1;
+		}
+		
+		@Override
+		public int getSpeed() {
+			return SPEED_FAST;
+		}
+		
+		@Override
+		public int getQuality() {
+			return QUALITY_LOSSLESS;
+		}
+	}
+	
+	private static class R8G8B8X8 extends R8G8B8A8 {
+		
+		@Override
+		public void encodeARGB(int[] argb, int width, int height, ByteBuffer writer, CompressionMethod method) {
+			int length = width*height;
+			for(int j = 0;j<length;j++) {// ARGB -> RGBX
+				int i = argb[j];
+				writer.put((byte)(i>>>16));
+				writer.put((byte)(i>>>8));
+				writer.put((byte)(i));
+				writer.put((byte)0xff);
+			}
+		}
+		
+		@Override
+		public boolean supportsAlpha() {
+			return false;
+		}
+		
+		@Override
+		public String getFormat() {
+			return PapaTexture.TextureSettings.R8G8B8X8;
+		}
+		
+		@Override
+		public byte formatIndex() {
+			return 2;
+		}
+	
+	}
+	
+	private static class B8G8R8A8 extends R8G8B8A8 {
+		
+		@Override
+		public void decodeARGB(ByteBuffer buf, int width, int height, int[] out) {
+			int length = width*height;
+			for(int i = 0;i<length;i++) {
+				out[i] = buf.getInt();
+			}
+		}
+		
+		@Override
+		public void encodeARGB(int[] argb, int width, int height, ByteBuffer writer, CompressionMethod method) {
+			int length = width*height;
+			for(int j = 0;j<length;j++) {// ARGB -> BGRA
+				writer.putInt(argb[j]);
+			}
+		}
+		
+		@Override
+		public String getFormat() {
+			return PapaTexture.TextureSettings.B8G8R8A8;
+		}
+		
+		@Override
+		public byte formatIndex() {
+			return 3;
+		}
+	
+	}
+	
+	// https://www.fsdeveloper.com/wiki/index.php?title=DXT_compression_explained
+	// https://docs.microsoft.com/en-us/windows/win32/direct3d9/opaque-and-1-bit-alpha-textures
+	// https://en.wikipedia.org/wiki/S3_Texture_Compression#DXT1
+	
+	private static abstract class DXT extends TextureCodec {
+		
+		protected abstract int chunkByteSize();
+		
+		protected byte[] toSquishArray(int[] argb, int width, int height) { // the same byte layout imageToByteArray has always given Squish
+			int size = width * height;
+			byte[] ret = new byte[size * 4];
+			for(int i = 0, j = 0;i<size;i++) {
+				int data = argb[i];
+				ret[j++] = (byte)data;
+				ret[j++] = (byte)(data>>>8);
+				ret[j++] = (byte)(data>>>16);
+				ret[j++] = (byte)(data>>>24);
+			}
+			return ret;
+		}
+		
+		protected abstract CompressionType compressionType();
+		
+		@Override
+		public void encodeARGB(int[] argb, int width, int height, ByteBuffer writer, CompressionMethod method) {
+			byte[] in = toSquishArray(argb, width, height);
+			byte[] result = Squish.compressImage(in, width, height, new byte[] {}, compressionType(), method);
+			writer.put(result);
+		}
+		
+		/**
+		 * Expands the two 565 end points of a colour block and fills the 4 entry palette. Colours are opaque ARGB, except for
+		 * the last entry of a three colour block, which is transparent black.
+		 */
+		protected void decodeColourMap(int colour0, int colour1, boolean fourColour, int[] colours) {
+			int r0 = (colour0>>>11 & 0b00011111)*8, g0 = ((colour0>>>5) & 0b00111111)*4, b0 = (colour0 & 0b00011111)*8;
+			int r1 = (colour1>>>11 & 0b00011111)*8, g1 = ((colour1>>>5) & 0b00111111)*4, b1 = (colour1 & 0b00011111)*8;
+			colours[0] = 0xff000000 | r0<<16 | g0<<8 | b0;
+			colours[1] = 0xff000000 | r1<<16 | g1<<8 | b1;
+			if(fourColour) { // rounded thirds
+				colours[2] = 0xff000000 | ((2*r0 + r1 + 1)/3)<<16 | ((2*g0 + g1 + 1)/3)<<8 | ((2*b0 + b1 + 1)/3);
+				colours[3] = 0xff000000 | ((r0 + 2*r1 + 1)/3)<<16 | ((g0 + 2*g1 + 1)/3)<<8 | ((b0 + 2*b1 + 1)/3);
+			} else {
+				colours[2] = 0xff000000 | ((r0 + r1 + 1)/2)<<16 | ((g0 + g1 + 1)/2)<<8 | ((b0 + b1 + 1)/2);
+				colours[3] = 0;
+			}
+		}
+		
+		/**
+		 * Reads one 64 bit colour block and writes the 4x4 texels into out, clipped to the image, combined with the given per-texel alpha.
+		 */
+		protected void decodeColourBlock(ByteBuffer buf, boolean allowThreeColour, int[] alphaValues, int[] colours,
+											int[] out, int x, int y, int width, int height) {
+			int colour0 = buf.getShort() & 0xffff;
+			int colour1 = buf.getShort() & 0xffff;
+			decodeColourMap(colour0, colour1, !allowThreeColour || colour0>colour1, colours);
+			int bits = buf.getInt();
+			int maxY = Math.min(4, height - y);
+			int maxX = Math.min(4, width - x);
+			for(int yy=0;yy<4;yy++) {
+				for(int xx=0;xx<4;xx++) {
+					if(yy < maxY && xx < maxX) {
+						int colour = colours[bits & 0b11];
+						if(alphaValues!=null)
+							colour = (colour & 0x00ffffff) | alphaValues[yy*4+xx]<<24;
+						out[(y+yy)*width + x + xx] = colour;
+					}
+					bits>>>=2;
+				}
+			}
+		}
+		
+		@Override
+		protected int imageSize(int width, int height) {
+			return ((width + 3) / 4) * ((height + 3) / 4) * chunkByteSize();
+		}
+		
+		@Override
+		public int getBlockHeight() {
+			return 4;
+		}
+		
+		@Override
+		public int getSpeed() {
+			return SPEED_SLOW;
+		}
+		
+		@Override
+		public int getQuality() {
+			return QUALITY_LOSSY;
+		}
+	
+	}
+	
+	private static class DXT1 extends DXT {
+		
+		@Override
+		public void decodeARGB(ByteBuffer buf, int width, int height, int[] out) {
+			int[] colours = new int[4];
+			//64 bits per 4x4 segment
+			for(int y = 0;y<height;y+=4)
+				for(int x =0;x<width;x+=4)
+					decodeColourBlock(buf, true, null, colours, out, x, y, width, height);
+		}
+		
+		@Override
+		protected int chunkByteSize() {
+			return 8;
+		}
+		
+		@Override
+		protected CompressionType compressionType() {
+			return CompressionType.DXT1;
+		}
+		
+		@Override
+		public boolean supportsAlpha() { // one bit, through the transparent entry of three colour blocks
+			return true;
+		}
+		
+		@Override
+		public String getFormat() {
+			return PapaTexture.TextureSettings.DXT1;
+		}
+		
+		@Override
+		public byte formatIndex() {
+			return 4;
+		}
+	
+	}
+	
+	private static class DXT3 extends DXT {
+		
+		@Override
+		public void decodeARGB(ByteBuffer buf, int width, int height, int[] out) {
+			int[] colours = new int[4];
+			int[] alphaValues = new int[16];
+			//128 bits per 4x4 segment
+			for(int y = 0;y<height;y+=4) {
+				for(int x =0;x<width;x+=4) {
+					//if(br.index() + 8 > br.size()) // DXT3 is broken for papatran, break early if we run out of data
+						//return b;
+					decodeAlphaMap(buf, alphaValues);
+					decodeColourBlock(buf, false, alphaValues, colours, out, x, y, width, height);
+				}
+			}
+		}
+		
+		@Override
+		protected int chunkByteSize() {
+			return 16;
+		}
+		
+		@Override
+		protected CompressionType compressionType() {
+			return CompressionType.DXT3;
+		}
+		
+		private void decodeAlphaMap(ByteBuffer buf, int[] alphaValues) {
+			for(int i =0;i<8;i++) {
+				int bits = buf.get() & 0b11111111;
+				int val = bits & 0b00001111;
+				alphaValues[2*i] = 	(val<<4) | val;
+				val = bits & 0b11110000;
+				alphaValues[2*i+1] = val | (val>>>4);
+			}
+		}
+		
+		@Override
+		public String getFormat() {
+			return "DXT3";
+		}
+		
+		@Override
+		public byte formatIndex() {
+			return 5;
+		}
+	
+	}
+	
+	private static class DXT5 extends DXT {
+		
+		@Override
+		public void decodeARGB(ByteBuffer buf, int width, int height, int[] out) {
+			int[] colours = new int[4];
+			int[] alphaValues = new int[16];
+			int[] alphaMap = new int[8];
+			//128 bits per 4x4 segment
+			for(int y = 0;y<height;y+=4) {
+				for(int x =0;x<width;x+=4) {
+					// calculate and store the alpha values for the pixel.
+					decodeAlphaMap(buf, alphaMap, alphaValues);
+					decodeColourBlock(buf, false, alphaValues, colours, out, x, y, width, height);
+				}
+			}
+		}
+		
+		@Override
+		protected int chunkByteSize() {
+			return 16;
+		}
+		
+		@Override
+		protected CompressionType compressionType() {
+			return CompressionType.DXT5;
+		}
+		
+		private void decodeAlphaMap(ByteBuffer buf, int[] alphaMap, int[] alphaValues) {
+			long block = buf.getLong();
+			alphaMap[0]=(int)(block & 0b11111111);
+			alphaMap[1]=(int)((block>>>8) & 0b11111111);
+			
+			if(alphaMap[0]>alphaMap[1]) {
+				for(int j = 1;j<7;j++)
+					alphaMap[j+1] = ((7-j)*alphaMap[0] + j * alphaMap[1])/7;
+			} else {
+				for(int j = 1;j<5;j++)
+					alphaMap[j+1] = ((5-j)*alphaMap[0] + j * alphaMap[1])/5;
+				alphaMap[6] = 0;
+				alphaMap[7] = 255;
+			}
+			
+			long alphaBits = block>>>16;
+			for(int j = 0;j<16;j++) {
+				alphaValues[j]= alphaMap[(int) (alphaBits&0b111)];
+				alphaBits>>>=3;
+			}
+		}
+		
+		@Override
+		public String getFormat() {
+			return PapaTexture.TextureSettings.DXT5;
+		}
+		
+		@Override
+		public byte formatIndex() {
+			return 6;
+		}
+	
+	}
+	
+	private static class R8 extends TextureCodec {
+		
+		@Override
+		public void decodeDisplayARGB(ByteBuffer buf, int width, int height, int[] out) {
+			int length = width*height;
+			for(int i = 0;i<length;i++) {
+				out[i] = buf.get()<<16 | 0b11111111_00000000_11111111_11111111;
+			}
+		}
+		
+		@Override
+		public void decodeARGB(ByteBuffer buf, int width, int height, int[] out) { // unlike decode, this expands red to gray so that it can be re-encoded
+			int length = width*height;
+			for(int i = 0;i<length;i++) {
+				int r = buf.get() & 0xff;
+				out[i] = 0xff000000 | r<<16 | r<<8 | r;
+			}
+		}
+		
+		@Override
+		public void encodeARGB(int[] argb, int width, int height, ByteBuffer writer, CompressionMethod method) {
+			int length = width*height;
+			for(int i = 0;i<length;i++) {// ARGB
+				writer.put((byte)(argb[i]>>>16));
+			}
+		}
+		
+		@Override
+		public BufferedImage asLuminance(BufferedImage image) {
+			BufferedImage out = new BufferedImage(image.getWidth(),image.getHeight(),BufferedImage.TYPE_INT_ARGB);
+			for(int y= 0;y<image.getHeight();y++)
+				for(int x =0;x<image.getWidth();x++) {
+					int value = image.getRGB(x, y);
+					int average = (value & 0b11111111_00000000_00000000);
+					int RGB = average | (average>>>8) | (average>>>16);
+					out.setRGB(x, y, RGB  | 0b11111111_00000000_00000000_00000000);
+				}
+			return out;
+		}
+		
+		@Override
+		public boolean supportsAlpha() {
+			return false;
+		}
+		
+		@Override
+		protected int imageSize(int width, int height) {
+			return width*height;
+		}
+		
+		@Override
+		public String getFormat() {
+			return PapaTexture.TextureSettings.R8;
+		}
+		
+		@Override
+		public byte formatIndex() {
+			return 13;
+		}
+		
+		@Override
+		public int getSpeed() {
+			return SPEED_FAST;
+		}
+		
+		@Override
+		public int getQuality() {
+			return QUALITY_LOSSLESS;
+		}
+	}
+}
@@ -0,0 +1,449 @@
+/*
+ *  This file is part of PapaFile
+ * 
+ *  File IO tools for Planetary Annihilation's papa files.
+ *  Copyright (C) 2020 Marcus Der <marcusder@hotmail.com>
+ * 
+ *  PapaFile is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  PapaFile is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU General Public License
+ *  along with PapaFile.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package papafile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Finds textures which are stored more than once in a tree of papa files, and can replace the copies with links to a
+ * single file.<br>
+ * Textures are grouped by their encoded payload, or optionally by their decoded pixels so that the same image in
+ * different formats is found as well. Only a file holding nothing but that one texture can be the target of a link. Such
+ * files are never rewritten themselves since other files may already link to them; the embedded copies inside models
+ * and other multi component files are what gets replaced.
+ */
+public class TextureDeduplicator {
+	
+	private static final int PIXEL_STRIP_ROWS = 64; // a multiple of every block height, so strips line up across formats
+	
+	private TextureDeduplicator() {}
+	
+	/**
+	 * Scans every .papa file below the root.
+	 * @param comparePixels Group by the decoded top level image instead of the encoded data.
+	 * @param link Replace the duplicates with links to the canonical file of their group. This needs the media directory.
+	 * @param pool The executor to load and rewrite files on, or null to work on the calling thread.
+	 */
+	public static Report deduplicate(File root, boolean comparePixels, boolean link, ExecutorService pool) throws IOException {
+		List<File> files;
+		try (Stream<Path> paths = Files.walk(root.toPath())) {
+			files = paths.filter((Path p) -> Files.isRegularFile(p) && p.toString().toLowerCase().endsWith(".papa"))
+					.map(Path::toFile).sorted().collect(Collectors.toList());
+		}
+		
+		Report report = new Report(files.size());
+		List<Entry> entries = new ArrayList<Entry>();
+		for(Outcome<List<Entry>> o : run(files, (File f) -> scan(f, comparePixels), pool)) {
+			if(o.error != null)
+				report.problems.add(o.file+": "+o.error);
+			else
+				entries.addAll(o.value);
+		}
+		report.texturesScanned = entries.size();
+		
+		HashMap<String, Group> groups = new HashMap<String, Group>();
+		for(Entry e : entries)
+			groups.computeIfAbsent(e.key, k -> new Group(k)).members.add(e);
+		for(Group g : groups.values()) {
+			if(g.members.size() < 2)
+				continue;
+			g.chooseCanonical();
+			report.groups.add(g);
+			for(Entry e : g.members)
+				if(e != g.canonical)
+					report.bytesDuplicated += e.size;
+		}
+		Collections.sort(report.groups, Comparator.comparing((Group g) -> g.members.get(0).file));
+		
+		if(link)
+			link(report, pool);
+		return report;
+	}
+	
+	private static List<Entry> scan(File f, boolean comparePixels) throws IOException {
+		PapaFile p = new PapaFile(f.getPath(), PapaFile.STRING | PapaFile.TEXTURE);
+		try {
+			// peek at the header counts, the other components were skipped while loading
+			boolean standalone = p.getNumTextures() == 1 && p.getNumVBuffers() + p.getNumIBuffers() + p.getNumMaterials()
+									+ p.getNumMeshes() + p.getNumSkeletons() + p.getNumModels() + p.getNumAnimations() == 0;
+			String relativeName = p.relativeFileNameAvailable() ? p.getRelativeFileName() : null;
+			List<Entry> entries = new ArrayList<Entry>();
+			for(int i = 0;i<p.getNumTextures();i++) {
+				PapaTexture t = p.getTexture(i);
+				if(t.isLinked())
+					continue;
+				String key = comparePixels ? pixelKey(t) : payloadKey(t);
+				entries.add(new Entry(f, relativeName, i, t.getName(), t.getData().length, standalone, key));
+			}
+			return entries;
+		} finally {
+			p.flush();
+		}
+	}
+	
+	private static String payloadKey(PapaTexture t) {
+		return t.getFormat()+" "+t.getWidth()+"x"+t.getHeight()+" mips "+t.getNumImages()+(t.getSRGB() ? " sRGB " : " ")
+				+Long.toHexString(t.getContentHash());
+	}
+	
+	private static String pixelKey(PapaTexture t) throws IOException {
+		int width = t.getWidth();
+		long[] hash = new long[1];
+		byte[] bytes = new byte[width * PIXEL_STRIP_ROWS * 4];
+		t.decodeStrips(0, PIXEL_STRIP_ROWS, (int[] argb, int y, int rows) -> {
+			ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().put(argb, 0, width * rows);
+			hash[0] = ContentHash.hash(bytes, 0, width * rows * 4, hash[0]);
+		});
+		return "pixels "+width+"x"+t.getHeight()+(t.getSRGB() ? " sRGB " : " ")+Long.toHexString(hash[0]);
+	}
+	
+	private static void link(Report report, ExecutorService pool) throws IOException {
+		if(PapaFile.getPlanetaryAnnihilationDirectory() == null)
+			throw new IOException("Textures can only be linked once the media directory is set");
+		HashMap<File, List<Entry>> byFile = new HashMap<File, List<Entry>>();
+		for(Group g : report.groups) {
+			if(g.canonical == null) {
+				report.problems.add(g.key+": no file holds only this texture, nothing to link to");
+				continue;
+			}
+			for(Entry e : g.members)
+				if(e != g.canonical && !e.standalone)
+					byFile.computeIfAbsent(e.file, k -> new ArrayList<Entry>()).add(e);
+		}
+		
+		List<File> files = new ArrayList<File>(byFile.keySet());
+		Collections.sort(files);
+		for(Outcome<Long> o : run(files, (File f) -> rewrite(f, byFile.get(f), report.canonicalNames()), pool)) {
+			if(o.error != null)
+				report.problems.add(o.file+": "+o.error);
+			else {
+				report.filesRewritten++;
+				report.bytesSaved += o.value;
+			}
+		}
+		for(List<Entry> list : byFile.values())
+			for(Entry e : list)
+				if(e.linked)
+					report.texturesLinked++;
+	}
+	
+	/**
+	 * Replaces the given textures of one file with links and writes the file back, returning the number of bytes saved.
+	 */
+	private static long rewrite(File f, List<Entry> entries, HashMap<String, String> canonicalNames) throws IOException {
+		long before = f.length();
+		PapaFile p = new PapaFile(f.getPath());
+		try {
+			PapaTexture[] textures = new PapaTexture[p.getNumTextures()];
+			for(int i = 0;i<textures.length;i++)
+				textures[i] = p.getTexture(i);
+			PapaMaterial[] materials = new PapaMaterial[p.getNumMaterials()];
+			for(int i = 0;i<materials.length;i++)
+				materials[i] = p.getMaterial(i);
+			
+			boolean changed = false;
+			for(Entry e : entries) {
+				String target = canonicalNames.get(e.key);
+				PapaTexture t = textures[e.textureIndex];
+				if(t.isLinked() || !e.key.equals(e.key.startsWith("pixels") ? pixelKey(t) : payloadKey(t)))
+					throw new IOException("File changed since it was scanned");
+				PapaTexture linked = findLink(p, target);
+				if(linked == null) {
+					t.setName(target);
+					linked = p.generateLinkedTexture(t);
+				} else { // the file already links there, through an earlier copy or from before
+					t.detach();
+					t.flush();
+				}
+				for(PapaMaterial m : materials)
+					m.replaceTexture(t, linked);
+				e.linked = true;
+				changed = true;
+			}
+			if(!changed)
+				return 0;
+			
+			p.build();
+			if(!p.buildSuccessful())
+				throw new IOException("Build failed: "+Arrays.toString(p.getBuildNotifications()));
+			byte[] bytes = p.getFileBytes();
+			Files.write(f.toPath(), bytes);
+			return before - bytes.length;
+		} finally {
+			p.flush();
+		}
+	}
+	
+	private static PapaTexture findLink(PapaFile p, String target) {
+		if(!p.containsLinkedFile(target))
+			return null;
+		for(int i = 0;i<p.getNumTextures();i++) {
+			PapaTexture t = p.getTexture(i);
+			if(t.isLinked() && t.getName().equals(target))
+				return t;
+		}
+		return null;
+	}
+	
+	private interface FileTask<T> {
+		public T apply(File f) throws IOException;
+	}
+	
+	private static class Outcome<T> {
+		private final File file;
+		private final T value;
+		private final String error;
+		
+		private Outcome(File file, T value, String error) {
+			this.file = file;
+			this.value = value;
+			this.error = error;
+		}
+	}
+	
+	private static <T> List<Outcome<T>> run(List<File> files, FileTask<T> task, ExecutorService pool) throws IOException {
+		List<Future<Outcome<T>>> futures = new ArrayList<Future<Outcome<T>>>();
+		List<Outcome<T>> outcomes = new ArrayList<Outcome<T>>();
+		for(File f : files) {
+			if(pool == null)
+				outcomes.add(attempt(f, task));
+			else
+				futures.add(pool.submit(() -> attempt(f, task)));
+		}
+		try {
+			for(Future<Outcome<T>> future : futures)
+				outcomes.add(future.get());
+		} catch (InterruptedException e) {
+			for(Future<Outcome<T>> future : futures)
+				future.cancel(true);
+			throw new IOException("Interrupted while processing files", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to process files", e.getCause());
+		}
+		return outcomes;
+	}
+	
+	private static <T> Outcome<T> attempt(File f, FileTask<T> task) {
+		try {
+			return new Outcome<T>(f, task.apply(f), null);
+		} catch (IOException | RuntimeException e) {
+			return new Outcome<T>(f, null, e.getClass().getSimpleName()+": "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * One texture inside one file.
+	 */
+	public static class Entry {
+		private final File file;
+		private final String relativeFileName;
+		private final int textureIndex;
+		private final String textureName;
+		private final int size;
+		private final boolean standalone;
+		private final String key;
+		private volatile boolean linked;
+		
+		private Entry(File file, String relativeFileName, int textureIndex, String textureName, int size, boolean standalone, String key) {
+			this.file = file;
+			this.relativeFileName = relativeFileName;
+			this.textureIndex = textureIndex;
+			this.textureName = textureName;
+			this.size = size;
+			this.standalone = standalone;
+			this.key = key;
+		}
+		
+		public File getFile() {
+			return file;
+		}
+		
+		public int getTextureIndex() {
+			return textureIndex;
+		}
+		
+		public String getTextureName() {
+			return textureName;
+		}
+		
+		/**
+		 * The size of the encoded texture data in bytes.
+		 */
+		public int getSize() {
+			return size;
+		}
+		
+		/**
+		 * True if the file holds nothing but this texture, so that it can be linked to.
+		 */
+		public boolean isStandalone() {
+			return standalone;
+		}
+		
+		/**
+		 * True if this copy was replaced by a link.
+		 */
+		public boolean isLinked() {
+			return linked;
+		}
+		
+		@Override
+		public String toString() {
+			return file+" ["+textureIndex+"] "+textureName;
+		}
+	}
+	
+	/**
+	 * Textures with the same content.
+	 */
+	public static class Group {
+		private final String key;
+		private final List<Entry> members = new ArrayList<Entry>();
+		private Entry canonical;
+		
+		private Group(String key) {
+			this.key = key;
+		}
+		
+		/**
+		 * Picks the standalone file with the shortest path, which is most likely the original.
+		 */
+		private void chooseCanonical() {
+			for(Entry e : members)
+				if(e.standalone && e.relativeFileName != null && (canonical == null
+						|| e.relativeFileName.length() < canonical.relativeFileName.length()))
+					canonical = e;
+		}
+		
+		/**
+		 * A description of the shared content, the format and size followed by the hash.
+		 */
+		public String getKey() {
+			return key;
+		}
+		
+		public List<Entry> getMembers() {
+			return Collections.unmodifiableList(members);
+		}
+		
+		/**
+		 * The copy the others link to, or null if no file holds only this texture.
+		 */
+		public Entry getCanonical() {
+			return canonical;
+		}
+	}
+	
+	public static class Report {
+		private final int filesScanned;
+		private int texturesScanned;
+		private final List<Group> groups = new ArrayList<Group>();
+		private final List<String> problems = Collections.synchronizedList(new ArrayList<String>());
+		private long bytesDuplicated, bytesSaved;
+		private int filesRewritten, texturesLinked;
+		
+		private Report(int filesScanned) {
+			this.filesScanned = filesScanned;
+		}
+		
+		private HashMap<String, String> canonicalNames() {
+			HashMap<String, String> names = new HashMap<String, String>();
+			for(Group g : groups)
+				if(g.canonical != null)
+					names.put(g.key, g.canonical.relativeFileName);
+			return names;
+		}
+		
+		public int getFilesScanned() {
+			return filesScanned;
+		}
+		
+		public int getTexturesScanned() {
+			return texturesScanned;
+		}
+		
+		public List<Group> getGroups() {
+			return Collections.unmodifiableList(groups);
+		}
+		
+		/**
+		 * Files which could not be read or rewritten, and groups which could not be linked.
+		 */
+		public List<String> getProblems() {
+			return Collections.unmodifiableList(problems);
+		}
+		
+		/**
+		 * The encoded size of every copy beyond the first, which is the most linking could save.
+		 */
+		public long getBytesDuplicated() {
+			return bytesDuplicated;
+		}
+		
+		/**
+		 * How much smaller the rewritten files became.
+		 */
+		public long getBytesSaved() {
+			return bytesSaved;
+		}
+		
+		public int getFilesRewritten() {
+			return filesRewritten;
+		}
+		
+		public int getTexturesLinked() {
+			return texturesLinked;
+		}
+		
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(filesScanned).append(" files, ").append(texturesScanned).append(" textures, ").append(groups.size())
+				.append(" duplicate groups, ").append(bytesDuplicated).append(" bytes duplicated");
+			if(filesRewritten != 0)
+				sb.append(", ").append(texturesLinked).append(" textures linked in ").append(filesRewritten)
+					.append(" files, ").append(bytesSaved).append(" bytes saved");
+			for(Group g : groups) {
+				sb.append("\n").append(g.key);
+				for(Entry e : g.members)
+					sb.append("\n\t").append(e == g.canonical ? "* " : e.linked ? "> " : "  ").append(e);
+			}
+			for(String s : problems)
+				sb.append("\n").append(s);
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,257 @@
+/*
+ *  This file is part of PapaFile
+ * 
+ *  File IO tools for Planetary Annihilation's papa files.
+ *  Copyright (C) 2020 Marcus Der <marcusder@hotmail.com>
+ * 
+ *  PapaFile is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  PapaFile is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU General Public License
+ *  along with PapaFile.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package papafile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.regex.Pattern;
+
+import papafile.PapaTexture.ImmutableTextureSettings;
+import papafile.PapaTexture.TextureSettings;
+
+/**
+ * Builds a texture from an image which is delivered top to bottom as strips of rows. Every strip is encoded as soon as
+ * it forms whole blocks, and the mipmaps are produced alongside by halving the incoming rows. Besides the encoded result,
+ * memory use only depends on the image width.<br>
+ * Mipmaps are made with the mipmap resize method of the settings. Filtering is done on premultiplied colours like the
+ * Java2D scaling which PapaTexture uses, so for even sizes the results are the same.
+ */
+public class TextureStripEncoder {
+	
+	private final int width;
+	private final int height;
+	private final String name;
+	private final ImmutableTextureSettings settings;
+	private final TextureCodec codec;
+	private final int mipmapFilter;
+	private final byte[] data;
+	private final Level[] levels;
+	private int rowsWritten = 0;
+	
+	/**
+	 * True if an image of the given size can be encoded with the given settings without the full image in memory. This is
+	 * not the case when the image has to be resized first.
+	 */
+	public static boolean canEncode(int width, int height, ImmutableTextureSettings settings) {
+		if(!settings.resize)
+			return true;
+		return PapaTexture.resizeInputValue(width, settings.resizeMode) == width
+				&& PapaTexture.resizeInputValue(height, settings.resizeMode) == height;
+	}
+	
+	/**
+	 * @param format The concrete format to encode to. The automatic formats in the settings have to be resolved beforehand,
+	 * as they depend on the whole image.
+	 */
+	public TextureStripEncoder(int width, int height, ImmutableTextureSettings settings, String format, String name) throws IOException {
+		if(!canEncode(width, height, settings))
+			throw new IllegalArgumentException("Image of size "+width+" by "+height+" has to be resized before encoding");
+		this.width = width;
+		this.height = height;
+		this.name = name;
+		this.settings = settings;
+		this.codec = TextureCodec.getEncoder(format);
+		this.mipmapFilter = settings.mipmapResizeMethod;
+		
+		int mipCount = 0;
+		if(settings.generateMipmaps) { // same chain as PapaTexture.generateTexture
+			int max = Math.max(width, height);
+			while(max>2) {
+				max/=2;
+				mipCount++;
+			}
+		}
+		
+		data = new byte[codec.calcSize(width, height, mipCount)];
+		levels = new Level[mipCount + 1];
+		for(int i = levels.length - 1;i>=0;i--) {
+			Level next = i == levels.length - 1 ? null : levels[i + 1];
+			levels[i] = new Level(Math.max(width >> i, 1), Math.max(height >> i, 1), codec.calcSize(width, height, i - 1), next);
+		}
+	}
+	
+	public int getWidth() {
+		return width;
+	}
+	
+	public int getHeight() {
+		return height;
+	}
+	
+	/**
+	 * Adds the next rows of the image, given as packed ARGB pixels.
+	 */
+	public void writeRows(int[] argb, int offset, int rows) {
+		if(rowsWritten + rows > height)
+			throw new IllegalStateException("More rows written than the image height of "+height);
+		for(int r = 0;r<rows;r++)
+			levels[0].addRow(argb, offset + r * width);
+		rowsWritten += rows;
+	}
+	
+	/**
+	 * Encodes what is left and creates the texture.
+	 */
+	public PapaTexture finish(PapaFile p) throws IOException {
+		if(rowsWritten != height)
+			throw new IllegalStateException("Only "+rowsWritten+" of "+height+" rows were written");
+		for(Level l : levels)
+			l.flush();
+		PapaTexture t = new PapaTexture(name, codec.formatIndex(), (byte) levels.length, settings.SRGB, (short) width, (short) height, data, p);
+		if(Pattern.compile(settings.srgbTexname).matcher(name.toLowerCase()).find())
+			t.setSRGB(true);
+		return t;
+	}
+	
+	private static final int[] CUBIC = {-1, 9, 9, -1};
+	
+	private static int premultiply(int argb) {
+		int a = argb>>>24;
+		if(a == 0xff)
+			return argb;
+		int scale = a * 0x10101;
+		return a<<24 | (((argb>>>16) & 0xff) * scale + 0x800000)>>>24<<16 | (((argb>>>8) & 0xff) * scale + 0x800000)>>>24<<8
+				| ((argb & 0xff) * scale + 0x800000)>>>24;
+	}
+	
+	private static int unpremultiply(int argb) {
+		int a = argb>>>24;
+		if(a == 0xff || a == 0)
+			return argb;
+		long scale = (0xff000000L + a / 2) / a;
+		return a<<24 | divide((argb>>>16) & 0xff, a, scale)<<16 | divide((argb>>>8) & 0xff, a, scale)<<8 | divide(argb & 0xff, a, scale);
+	}
+	
+	private static int divide(int c, int a, long scale) {
+		return c >= a ? 0xff : (int) ((c * scale + 0x800000)>>>24);
+	}
+	
+	private class Level {
+		private final int width;
+		private final int height;
+		private final ByteBuffer writer;
+		private final Level next;
+		private final int[] block; // the rows of the block row being filled
+		private final int[] halved; // the pending row for the next level
+		private int blockRows = 0;
+		private int rowsReceived = 0;
+		private final int[][] window; // the last 4 rows, premultiplied, indexed by row & 3
+		private int rowsSent = 0;
+		
+		private Level(int width, int height, int offset, Level next) {
+			this.width = width;
+			this.height = height;
+			this.writer = ByteBuffer.wrap(data, offset, data.length - offset).slice();
+			this.writer.order(ByteOrder.LITTLE_ENDIAN);
+			this.block = new int[width * Math.min(codec.getBlockHeight(), height)];
+			this.halved = new int[Math.max(width >> 1, 1)];
+			this.window = next == null ? null : new int[4][width];
+			this.next = next;
+		}
+		
+		private void addRow(int[] argb, int offset) {
+			if(rowsReceived == height)
+				return; // odd row count, the last row does not reach the next level
+			System.arraycopy(argb, offset, block, blockRows * width, width);
+			blockRows++;
+			if(blockRows * width == block.length)
+				encodeBlockRow();
+			
+			if(next == null) {
+				rowsReceived++;
+				return;
+			}
+			int[] row = window[rowsReceived & 3];
+			for(int x = 0;x<width;x++)
+				row[x] = premultiply(argb[offset + x]);
+			rowsReceived++;
+			// row y of the next level reads rows 2y-1 to 2y+2 of this one
+			while(rowsSent < next.height && Math.min(2 * rowsSent + 2, height - 1) < rowsReceived) {
+				halve(rowsSent);
+				next.addRow(halved, 0);
+				rowsSent++;
+			}
+		}
+		
+		private int[] row(int y) {
+			return window[Math.min(Math.max(y, 0), height - 1) & 3];
+		}
+		
+		private int column(int x) {
+			return Math.min(Math.max(x, 0), width - 1);
+		}
+		
+		private void halve(int y) {
+			int w = halved.length;
+			switch(mipmapFilter) {
+				case TextureSettings.RESIZE_TYPE_NEAREST_NEIGHBOUR:
+					int[] source = row(2 * y + 1);
+					for(int x = 0;x<w;x++)
+						halved[x] = unpremultiply(source[column(2 * x + 1)]);
+					break;
+				case TextureSettings.RESIZE_TYPE_BILEANR: // a 2x2 box, as the sample points fall between the source pixels
+					int[] row0 = row(2 * y), row1 = row(2 * y + 1);
+					for(int x = 0;x<w;x++) {
+						int x0 = column(2 * x), x1 = column(2 * x + 1);
+						int p0 = row0[x0], p1 = row0[x1], p2 = row1[x0], p3 = row1[x1];
+						int a = ((p0>>>24) + (p1>>>24) + (p2>>>24) + (p3>>>24) + 2) >> 2;
+						int r = (((p0>>>16) & 0xff) + ((p1>>>16) & 0xff) + ((p2>>>16) & 0xff) + ((p3>>>16) & 0xff) + 2) >> 2;
+						int g = (((p0>>>8) & 0xff) + ((p1>>>8) & 0xff) + ((p2>>>8) & 0xff) + ((p3>>>8) & 0xff) + 2) >> 2;
+						int b = ((p0 & 0xff) + (p1 & 0xff) + (p2 & 0xff) + (p3 & 0xff) + 2) >> 2;
+						halved[x] = unpremultiply(a<<24 | r<<16 | g<<8 | b);
+					}
+					break;
+				default: // bicubic, which at half size is the kernel (-1, 9, 9, -1) / 16 in both directions
+					int[][] rows = {row(2 * y - 1), row(2 * y), row(2 * y + 1), row(2 * y + 2)};
+					for(int x = 0;x<w;x++) {
+						int a = 0, r = 0, g = 0, b = 0;
+						for(int j = 0;j<4;j++) {
+							int[] line = rows[j];
+							for(int i = 0;i<4;i++) {
+								int p = line[column(2 * x - 1 + i)];
+								int k = CUBIC[i] * CUBIC[j];
+								a += k * (p>>>24);
+								r += k * ((p>>>16) & 0xff);
+								g += k * ((p>>>8) & 0xff);
+								b += k * (p & 0xff);
+							}
+						}
+						a = Math.min(Math.max((a + 128) >> 8, 0), 255);
+						r = Math.min(Math.max((r + 128) >> 8, 0), a);
+						g = Math.min(Math.max((g + 128) >> 8, 0), a);
+						b = Math.min(Math.max((b + 128) >> 8, 0), a);
+						halved[x] = unpremultiply(a<<24 | r<<16 | g<<8 | b);
+					}
+					break;
+			}
+		}
+		
+		private void encodeBlockRow() {
+			codec.encodeARGB(block, width, blockRows, writer, settings.method);
+			blockRows = 0;
+		}
+		
+		private void flush() {
+			if(blockRows != 0)
+				encodeBlockRow();
+		}
+	}
+}
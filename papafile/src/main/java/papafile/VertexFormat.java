@@ -0,0 +1,219 @@
+/*
+ *  This file is part of PapaFile
+ * 
+ *  File IO tools for Planetary Annihilation's papa files.
+ *  Copyright (C) 2020 Marcus Der <marcusder@hotmail.com>
+ * 
+ *  PapaFile is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  PapaFile is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU General Public License
+ *  along with PapaFile.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package papafile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import static papafile.VertexFormat.Attribute.*;
+
+/**
+ * Describes the byte layout of each of the vertex formats as a list of attributes, and converts between that layout and
+ * one primitive array per attribute.
+ */
+public final class VertexFormat {
+	
+	public enum Type {
+		FLOAT(4), UNSIGNED_BYTE(1);
+		
+		public final int size;
+		
+		private Type(int size) {
+			this.size = size;
+		}
+	}
+	
+	public enum Attribute {
+		POSITION	(Type.FLOAT, 3, false),
+		NORMAL		(Type.FLOAT, 3, false),
+		TANGENT		(Type.FLOAT, 3, false),
+		BINORMAL	(Type.FLOAT, 3, false),
+		COLOUR		(Type.UNSIGNED_BYTE, 4, true), // rgba
+		COLOUR8F	(Type.FLOAT, 8, false),
+		TEXCOORD1	(Type.FLOAT, 2, false),
+		TEXCOORD2	(Type.FLOAT, 2, false),
+		TEXCOORD3	(Type.FLOAT, 2, false),
+		BONES		(Type.UNSIGNED_BYTE, 4, false),
+		WEIGHTS		(Type.UNSIGNED_BYTE, 4, true),
+		MATRIX		(Type.FLOAT, 16, false);
+		
+		public final Type type;
+		public final int count;
+		/** True if the stored integers represent values from 0 to 1. */
+		public final boolean normalized;
+		
+		private Attribute(Type type, int count, boolean normalized) {
+			this.type = type;
+			this.count = count;
+			this.normalized = normalized;
+		}
+		
+		public int size() {
+			return type.size * count;
+		}
+	}
+	
+	/**
+	 * An attribute at a byte offset within a vertex.
+	 */
+	public static final class Element {
+		public final Attribute attribute;
+		public final int offset;
+		
+		private Element(Attribute attribute, int offset) {
+			this.attribute = attribute;
+			this.offset = offset;
+		}
+	}
+	
+	private static final VertexFormat[] formats = {
+		new VertexFormat(0,		"Position3",									POSITION),
+		new VertexFormat(1,		"Position3Color4bTexCoord2",					POSITION, COLOUR, TEXCOORD1),
+		new VertexFormat(2,		"Position3Color4bTexCoord4",					POSITION, COLOUR, TEXCOORD1, TEXCOORD2),
+		new VertexFormat(3,		"Position3Color4bTexCoord6",					POSITION, COLOUR, TEXCOORD1, TEXCOORD2, TEXCOORD3),
+		new VertexFormat(4,		"Position3Normal3",								POSITION, NORMAL),
+		new VertexFormat(5,		"Position3Normal3TexCoord2",					POSITION, NORMAL, TEXCOORD1),
+		new VertexFormat(6,		"Position3Normal3Color4TexCoord2",				POSITION, NORMAL, COLOUR, TEXCOORD1),
+		new VertexFormat(7,		"Position3Normal3Color4TexCoord4",				POSITION, NORMAL, COLOUR, TEXCOORD1, TEXCOORD2),
+		new VertexFormat(8,		"Position3Weights4bBones4bNormal3TexCoord2",	POSITION, BONES, WEIGHTS, NORMAL, TEXCOORD1), // bones come first despite the name
+		new VertexFormat(9,		"Position3Normal3Tan3Bin3TexCoord2",			POSITION, NORMAL, TANGENT, BINORMAL, TEXCOORD1),
+		new VertexFormat(10,	"Position3Normal3Tan3Bin3TexCoord4",			POSITION, NORMAL, TANGENT, BINORMAL, TEXCOORD1, TEXCOORD2),
+		new VertexFormat(11,	"Position3Normal3Tan3Bin3Color4TexCoord4",		POSITION, NORMAL, TANGENT, BINORMAL, COLOUR, TEXCOORD1, TEXCOORD2),
+		new VertexFormat(12,	"TexCoord4",									TEXCOORD1, TEXCOORD2),
+		new VertexFormat(13,	"Position3Color8fTexCoord6",					POSITION, COLOUR8F, TEXCOORD1, TEXCOORD2, TEXCOORD3),
+		new VertexFormat(14,	"Matrix",										MATRIX)};
+	
+	private final byte index;
+	private final String name;
+	private final Element[] elements;
+	private final Element[] byAttribute = new Element[Attribute.values().length];
+	private final int stride;
+	
+	private VertexFormat(int index, String name, Attribute... attributes) {
+		this.index = (byte) index;
+		this.name = name;
+		this.elements = new Element[attributes.length];
+		int offset = 0;
+		for(int i = 0;i<attributes.length;i++) {
+			elements[i] = new Element(attributes[i], offset);
+			byAttribute[attributes[i].ordinal()] = elements[i];
+			offset += attributes[i].size();
+		}
+		this.stride = offset;
+	}
+	
+	public static VertexFormat get(int index) throws IOException {
+		if(index < 0 || index >= formats.length)
+			throw new IOException("Unsupported format: "+index);
+		return formats[index];
+	}
+	
+	public static int getNumFormats() {
+		return formats.length;
+	}
+	
+	public byte getIndex() {
+		return index;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	/** The size of a single vertex in bytes. */
+	public int getStride() {
+		return stride;
+	}
+	
+	public Element[] getElements() {
+		return elements.clone();
+	}
+	
+	public boolean has(Attribute attribute) {
+		return byAttribute[attribute.ordinal()] != null;
+	}
+	
+	public int calcSize(int vertices) {
+		return vertices * stride;
+	}
+	
+	/**
+	 * Splits interleaved vertex data into one array per attribute of this format. The results are stored by attribute
+	 * ordinal in floats or bytes depending on the attribute type.
+	 */
+	void decode(ByteBuffer data, int vertices, float[][] floats, byte[][] bytes) {
+		ByteBuffer buf = data.duplicate();
+		buf.position(0);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		FloatBuffer floatView = buf.asFloatBuffer(); // every offset and the stride are multiples of 4
+		int strideFloats = stride / 4;
+		
+		for(Element e : elements) {
+			int count = e.attribute.count;
+			if(e.attribute.type == Type.FLOAT) {
+				float[] dest = new float[vertices * count];
+				for(int v = 0, in = e.offset / 4, out = 0;v<vertices;v++, in += strideFloats)
+					for(int c = 0;c<count;c++)
+						dest[out++] = floatView.get(in + c);
+				floats[e.attribute.ordinal()] = dest;
+			} else {
+				byte[] dest = new byte[vertices * count];
+				for(int v = 0, in = e.offset, out = 0;v<vertices;v++, in += stride)
+					for(int c = 0;c<count;c++)
+						dest[out++] = buf.get(in + c);
+				bytes[e.attribute.ordinal()] = dest;
+			}
+		}
+	}
+	
+	/**
+	 * Interleaves the attribute arrays back into the layout of this format.
+	 */
+	byte[] encode(int vertices, float[][] floats, byte[][] bytes) {
+		byte[] result = new byte[calcSize(vertices)];
+		ByteBuffer buf = ByteBuffer.wrap(result);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		FloatBuffer floatView = buf.asFloatBuffer();
+		int strideFloats = stride / 4;
+		
+		for(Element e : elements) {
+			int count = e.attribute.count;
+			if(e.attribute.type == Type.FLOAT) {
+				float[] src = floats[e.attribute.ordinal()];
+				for(int v = 0, out = e.offset / 4, in = 0;v<vertices;v++, out += strideFloats)
+					for(int c = 0;c<count;c++)
+						floatView.put(out + c, src[in++]);
+			} else {
+				byte[] src = bytes[e.attribute.ordinal()];
+				for(int v = 0, out = e.offset, in = 0;v<vertices;v++, out += stride)
+					for(int c = 0;c<count;c++)
+						result[out + c] = src[in++];
+			}
+		}
+		return result;
+	}
+	
+	@Override
+	public String toString() {
+		return name;
+	}
+}